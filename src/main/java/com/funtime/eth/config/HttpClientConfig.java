@@ -0,0 +1,85 @@
+package com.funtime.eth.config;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.okhttp3.OkHttpMetricsEventListener;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 共享的HTTP客户端,所有第三方接口和回调共用一个连接池和调度器.
+ */
+@Configuration
+public class HttpClientConfig {
+
+    @Value("${config.http.max_idle_connections:50}")
+    public int MAX_IDLE_CONNECTIONS;
+
+    @Value("${config.http.keep_alive_seconds:300}")
+    public long KEEP_ALIVE_SECONDS;
+
+    @Value("${config.http.max_requests:256}")
+    public int MAX_REQUESTS;
+
+    @Value("${config.http.max_requests_per_host:32}")
+    public int MAX_REQUESTS_PER_HOST;
+
+    @Value("${config.http.connect_timeout_seconds:10}")
+    public long CONNECT_TIMEOUT_SECONDS;
+
+    @Value("${config.http.read_timeout_seconds:30}")
+    public long READ_TIMEOUT_SECONDS;
+
+    @Value("${config.http.write_timeout_seconds:30}")
+    public long WRITE_TIMEOUT_SECONDS;
+
+    @Bean
+    public ConnectionPool connectionPool() {
+        return new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Bean
+    public Dispatcher dispatcher() {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+        return dispatcher;
+    }
+
+    @Bean
+    public OkHttpClient okHttpClient(ConnectionPool connectionPool, Dispatcher dispatcher, MeterRegistry meterRegistry) {
+        Gauge.builder("okhttp.pool.connections", connectionPool, ConnectionPool::connectionCount)
+                .description("open connections in the shared pool")
+                .register(meterRegistry);
+        Gauge.builder("okhttp.pool.idle.connections", connectionPool, ConnectionPool::idleConnectionCount)
+                .description("idle connections in the shared pool")
+                .register(meterRegistry);
+        Gauge.builder("okhttp.dispatcher.running", dispatcher, Dispatcher::runningCallsCount)
+                .description("calls currently executing")
+                .register(meterRegistry);
+        Gauge.builder("okhttp.dispatcher.queued", dispatcher, Dispatcher::queuedCallsCount)
+                .description("calls waiting for a per-host or global slot")
+                .register(meterRegistry);
+
+        return new OkHttpClient.Builder()
+                .connectionPool(connectionPool)
+                .dispatcher(dispatcher)
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .writeTimeout(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .retryOnConnectionFailure(true)
+                .eventListener(OkHttpMetricsEventListener.builder(meterRegistry, "okhttp.requests")
+                        .uriMapper(request -> request.url().host())
+                        .build())
+                .build();
+    }
+}
@@ -0,0 +1,22 @@
+package com.funtime.eth.config;
+
+import com.funtime.eth.rpc.CoalescingWeb3jService;
+import com.funtime.eth.rpc.RpcNodePool;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.web3j.protocol.Web3j;
+
+/**
+ * 所有服务共用的Web3j,替代starter按单个地址创建的实例.请求先经{@link CoalescingWeb3jService}合并,
+ * 再由{@link RpcNodePool}在多个节点间路由.
+ */
+@Configuration
+public class Web3jConfig {
+
+    @Bean
+    @Primary
+    public Web3j web3j(CoalescingWeb3jService coalescingWeb3jService) {
+        return Web3j.build(coalescingWeb3jService);
+    }
+}
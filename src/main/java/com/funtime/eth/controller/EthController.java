@@ -2,9 +2,11 @@ package com.funtime.eth.controller;
 
 import com.alibaba.fastjson.JSON;
 import com.funtime.eth.model.*;
+import com.funtime.eth.service.BatchTransactionService;
 import com.funtime.eth.service.BlockchainService;
+import com.funtime.eth.service.CallbackDispatcher;
 import com.funtime.eth.service.TokenService;
-import com.funtime.eth.utils.OkHttpUtil;
+import com.funtime.eth.service.TransactionStatusService;
 import io.swagger.annotations.ApiOperation;
 import org.bouncycastle.util.encoders.Hex;
 import org.slf4j.Logger;
@@ -15,10 +17,9 @@ import org.springframework.web.bind.annotation.*;
 import org.web3j.crypto.CipherException;
 import org.web3j.crypto.Credentials;
 import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.Response;
 import org.web3j.protocol.core.methods.response.EthSendTransaction;
-import org.web3j.protocol.core.methods.response.TransactionReceipt;
 import org.web3j.protocol.core.methods.response.Web3ClientVersion;
-import org.web3j.utils.Convert;
 
 import java.io.IOException;
 import java.math.BigDecimal;
@@ -26,7 +27,8 @@ import java.math.BigInteger;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
-import java.util.concurrent.ExecutionException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 @RequestMapping("/api")
@@ -40,10 +42,17 @@ public class EthController {
 
     private final BlockchainService service;
     private final TokenService tokenChainService;
+    private final BatchTransactionService batchTransactionService;
+    private final CallbackDispatcher callbackDispatcher;
+    private final TransactionStatusService transactionStatusService;
 
-    public EthController(BlockchainService service, TokenService tokenChainService) {
+    public EthController(BlockchainService service, TokenService tokenChainService, BatchTransactionService batchTransactionService,
+                         CallbackDispatcher callbackDispatcher, TransactionStatusService transactionStatusService) {
         this.service = service;
         this.tokenChainService = tokenChainService;
+        this.batchTransactionService = batchTransactionService;
+        this.callbackDispatcher = callbackDispatcher;
+        this.transactionStatusService = transactionStatusService;
     }
 
     @PostMapping("/process")
@@ -131,49 +140,12 @@ public class EthController {
      *
      * @param transactionHash
      * @return
-     * @throws InterruptedException
-     * @throws ExecutionException
      */
     @ApiOperation(value = "Get Transaction Receipt", notes = "Get Transaction Receipt")
     @RequestMapping(value = {"/getTransactionReceipt/{transactionHash}"}, method = {RequestMethod.GET}, produces = {"application/json"})
-    public TransactionReceiptResponse getTransactionReceipt(@PathVariable("transactionHash") String transactionHash) throws IOException, InterruptedException, ExecutionException {
+    public CompletableFuture<TransactionReceiptResponse> getTransactionReceipt(@PathVariable("transactionHash") String transactionHash) {
         logger.info("REST getTransactionReceipt() REQ-->" + transactionHash);
-        TransactionReceipt transactionReceipt = null;
-        TransactionReceiptResponse transactionReceiptResponse = null;
-        try {
-            org.web3j.protocol.core.methods.response.EthTransaction ethTransaction = tokenChainService.getTransaction(transactionHash);
-            transactionReceipt = service.getTransactionReceipt(transactionHash);
-            transactionReceiptResponse = new TransactionReceiptResponse();
-            if (ethTransaction.getResult() != null && transactionReceipt != null) {
-                BigInteger gasPrice = ethTransaction.getResult().getGasPrice();
-                BigInteger time = tokenChainService.getBlockEthBlock(ethTransaction.getResult().getBlockNumber().intValue()).getBlock().getTimestamp();
-                BigInteger defaultGas = new BigInteger("21000");
-                BigInteger gasLimit = ethTransaction.getResult().getGas().compareTo(defaultGas) == 1 ? defaultGas : ethTransaction.getResult().getGas();
-                BigInteger bgasUsed = gasLimit.multiply(gasPrice);
-                BigDecimal gasUsed = Convert.fromWei(bgasUsed.toString(), Convert.Unit.ETHER);
-                BigDecimal amount = Convert.fromWei(ethTransaction.getTransaction().get().getValue().toString(), Convert.Unit.ETHER);
-                transactionReceiptResponse.setAmount(String.valueOf(amount));
-                transactionReceiptResponse.setBlockHash(ethTransaction.getResult().getBlockHash());
-                transactionReceiptResponse.setBlockNumber(ethTransaction.getResult().getBlockNumber().toString());
-                transactionReceiptResponse.setContractAddress(transactionReceipt.getContractAddress());
-                transactionReceiptResponse.setFrom(ethTransaction.getResult().getFrom());
-                transactionReceiptResponse.setGasPrice(gasPrice.toString());
-                transactionReceiptResponse.setGasUsed(String.valueOf(gasUsed));
-                transactionReceiptResponse.setStatus(transactionReceipt.getStatus());
-                transactionReceiptResponse.setTo(ethTransaction.getResult().getTo());
-                transactionReceiptResponse.setTransactionHash(ethTransaction.getTransaction().get().getHash());
-                transactionReceiptResponse.setTransactionIndex(ethTransaction.getResult().getTransactionIndex().toString());
-                transactionReceiptResponse.setDateTime(String.valueOf(time));
-            }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return transactionReceipt == null ? null : transactionReceiptResponse;
+        return transactionStatusService.getTransactionStatus(transactionHash, new BigInteger("21000"));
     }
 
     @ApiOperation(value = "Get Web3 Client Version", notes = "Get Web3 Client Version")
@@ -206,8 +178,8 @@ public class EthController {
             if (transaction.getBusinesCode() != null) {
                 logger.info("transaction.getBusinesCode():" + transaction.getBusinesCode());
                 tokenEthSendTransaction.setBusinesCode(transaction.getBusinesCode());
-                OkHttpUtil.postJsonParams(TRANSACTION_CALLBACK, JSON.toJSONString(tokenEthSendTransaction));
-                logger.info("transaction callback end!");
+                callbackDispatcher.dispatch(TRANSACTION_CALLBACK, JSON.toJSONString(tokenEthSendTransaction));
+                logger.info("transaction callback queued!");
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -215,4 +187,31 @@ public class EthController {
 
         return tokenEthSendTransaction;
     }
-}
\ No newline at end of file
+
+    /**
+     * Batch ETH && Token Transaction
+     *
+     * @param transactions contractAddress empty for ETH, otherwise ERC-20 token
+     * @return result per transaction, same order as request
+     */
+    @ApiOperation(value = "Batch Transaction", notes = "Batch ETH && Token Transaction")
+    @RequestMapping(value = "transaction/batch", method = RequestMethod.POST)
+    public List<BatchTransactionResult> batchTransto(@RequestBody List<TokenTransaction> transactions) {
+        logger.info("REST transaction/batch() REQ-->" + transactions.size());
+        List<BatchTransactionResult> results = batchTransactionService.transfer(transactions);
+        // call back
+        for (BatchTransactionResult result : results) {
+            if (result.getBusinesCode() != null) {
+                TokenSendTransaction tokenEthSendTransaction = new TokenSendTransaction();
+                tokenEthSendTransaction.setResult(result.getTransactionHash());
+                if (result.getError() != null) {
+                    tokenEthSendTransaction.setError(new Response.Error(-32000, result.getError()));
+                }
+                tokenEthSendTransaction.setBusinesCode(result.getBusinesCode());
+                callbackDispatcher.dispatch(TRANSACTION_CALLBACK, JSON.toJSONString(tokenEthSendTransaction));
+            }
+        }
+        logger.info("transaction/batch callback queued!");
+        return results;
+    }
+}
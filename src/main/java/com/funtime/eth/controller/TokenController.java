@@ -2,26 +2,37 @@ package com.funtime.eth.controller;
 
 import com.alibaba.fastjson.JSON;
 import com.funtime.eth.model.*;
+import com.funtime.eth.service.BackfillService;
+import com.funtime.eth.service.CallbackDispatcher;
+import com.funtime.eth.service.ChainIndexer;
+import com.funtime.eth.service.DepositWatcher;
+import com.funtime.eth.service.GasPriceOracle;
+import com.funtime.eth.service.PriceFeedService;
+import com.funtime.eth.service.TokenBalanceService;
 import com.funtime.eth.service.TokenService;
-import com.funtime.eth.utils.ConvertUtil;
-import com.funtime.eth.utils.JsonUtil;
+import com.funtime.eth.service.TransactionStatusService;
+import com.funtime.eth.service.TransactionStatusStream;
+import com.funtime.eth.service.WatchedAddressRegistry;
 import com.funtime.eth.utils.OkHttpUtil;
 import io.swagger.annotations.ApiOperation;
+import okhttp3.HttpUrl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.web3j.protocol.Web3j;
 import org.web3j.protocol.core.methods.response.EthSendTransaction;
-import org.web3j.protocol.core.methods.response.EthTransaction;
-import org.web3j.protocol.core.methods.response.TransactionReceipt;
 import org.web3j.utils.Convert;
 
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 @RequestMapping("/api")
@@ -30,9 +41,6 @@ public class TokenController {
     @Value("${config.third_party_api}")
     public String THIRD_PARTY_API;
 
-    @Value("${config.third_party_price_api}")
-    public String THIRD_PARTY_PRICE_API;
-
     @Value("${config.transaction_callback}")
     public String TRANSACTION_CALLBACK;
 
@@ -40,11 +48,48 @@ public class TokenController {
 
     private final Web3j web3j;
 
+    private final OkHttpUtil okHttpUtil;
+
+    private final CallbackDispatcher callbackDispatcher;
+
+    private final TokenBalanceService tokenBalanceService;
+
+    private final TransactionStatusService transactionStatusService;
+
+    private final ChainIndexer chainIndexer;
+
+    private final WatchedAddressRegistry watchedAddressRegistry;
+
+    private final BackfillService backfillService;
+
+    private final DepositWatcher depositWatcher;
+
+    private final TransactionStatusStream transactionStatusStream;
+
+    private final PriceFeedService priceFeedService;
+    private final GasPriceOracle gasPriceOracle;
+
     private static String ETH_TYPE = "m/44'/60'/0'/0/0";
 
-    public TokenController(TokenService service, Web3j web3j) {
+    public TokenController(TokenService service, Web3j web3j, OkHttpUtil okHttpUtil, CallbackDispatcher callbackDispatcher,
+                           TokenBalanceService tokenBalanceService, TransactionStatusService transactionStatusService,
+                           ChainIndexer chainIndexer, WatchedAddressRegistry watchedAddressRegistry,
+                           BackfillService backfillService, DepositWatcher depositWatcher,
+                           TransactionStatusStream transactionStatusStream, PriceFeedService priceFeedService,
+                           GasPriceOracle gasPriceOracle) {
         this.service = service;
         this.web3j = web3j;
+        this.okHttpUtil = okHttpUtil;
+        this.callbackDispatcher = callbackDispatcher;
+        this.tokenBalanceService = tokenBalanceService;
+        this.transactionStatusService = transactionStatusService;
+        this.chainIndexer = chainIndexer;
+        this.watchedAddressRegistry = watchedAddressRegistry;
+        this.backfillService = backfillService;
+        this.depositWatcher = depositWatcher;
+        this.transactionStatusStream = transactionStatusStream;
+        this.priceFeedService = priceFeedService;
+        this.gasPriceOracle = gasPriceOracle;
     }
 
     @ApiOperation(value = "ETH账号生成", notes = "ETH账号生成,包含助记词")
@@ -64,6 +109,19 @@ public class TokenController {
         return service.getBalance(fromAddress, contractAddress);
     }
 
+    /**
+     * 批量查询代币余额
+     *
+     * @param query 地址列表 × 合约列表
+     * @return 每个(地址,合约)的余额
+     */
+    @ApiOperation(value = "批量查询代币余额", notes = "批量查询代币余额,地址 × 合约")
+    @RequestMapping(value = {"/token/balances"}, method = {RequestMethod.POST}, produces = {"application/json"})
+    public List<TokenBalance> getTokenBalances(@RequestBody TokenBalanceQuery query) {
+        logger.info("REST token/balances() REQ-->" + query.getAddresses().size() + " x " + query.getContractAddresses().size());
+        return tokenBalanceService.getBalances(query.getAddresses(), query.getContractAddresses());
+    }
+
     /**
      * 查询代币名称
      *
@@ -139,8 +197,8 @@ public class TokenController {
             if (transaction.getBusinesCode() != null) {
                 logger.info("transaction.getBusinesCode():" + transaction.getBusinesCode());
                 tokenEthSendTransaction.setBusinesCode(transaction.getBusinesCode());
-                OkHttpUtil.postJsonParams(TRANSACTION_CALLBACK, JSON.toJSONString(tokenEthSendTransaction));
-                logger.info("transaction callback end!" + JSON.toJSONString(tokenEthSendTransaction));
+                callbackDispatcher.dispatch(TRANSACTION_CALLBACK, JSON.toJSONString(tokenEthSendTransaction));
+                logger.info("transaction callback queued!" + JSON.toJSONString(tokenEthSendTransaction));
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -149,25 +207,103 @@ public class TokenController {
         return tokenEthSendTransaction;
     }
 
+    /**
+     * 交易记录列表,跟踪地址从本地索引分页返回,其他地址转发etherscan
+     *
+     * @param address 钱包地址
+     * @param page    页码,从1开始
+     * @param offset  每页条数
+     * @param sort    asc / desc
+     * @return etherscan txlist格式
+     */
     @ApiOperation(value = "交易记录列表", notes = "交易记录列表")
     @RequestMapping(value = {"/token/getAccountTransactions/{address}"}, method = {RequestMethod.GET}, produces = {"application/json"})
-    public String getAccountTransactions(@PathVariable("address") String address) {
+    public String getAccountTransactions(@PathVariable("address") String address,
+                                         @RequestParam(value = "page", defaultValue = "1") int page,
+                                         @RequestParam(value = "offset", defaultValue = "100") int offset,
+                                         @RequestParam(value = "sort", defaultValue = "desc") String sort) {
         logger.info("REST token/getAccountTransactions() REQ-->" + address);
         String result = null;
         try {
-            result = OkHttpUtil.get(THIRD_PARTY_API.replace("{}", address), null);
+            if (chainIndexer.isIndexed(address)) {
+                Map<String, Object> response = new LinkedHashMap<>();
+                response.put("status", "1");
+                response.put("message", "OK");
+                response.put("result", chainIndexer.getTransactions(address, page, offset, !"asc".equalsIgnoreCase(sort)));
+                return JSON.toJSONString(response);
+            }
+            HttpUrl url = HttpUrl.parse(THIRD_PARTY_API.replace("{}", address)).newBuilder()
+                    .setQueryParameter("page", String.valueOf(page))
+                    .setQueryParameter("offset", String.valueOf(offset))
+                    .setQueryParameter("sort", "asc".equalsIgnoreCase(sort) ? "asc" : "desc")
+                    .build();
+            result = okHttpUtil.get(url.toString(), null);
         } catch (Exception e) {
             e.printStackTrace();
         }
         return result;
     }
 
-    @ApiOperation(value = "Gas 估算", notes = "Gas 估算")
-    @RequestMapping(value = {"/token/getEthEstimateGas/{wei}"}, method = {RequestMethod.GET}, produces = {"application/json"})
-    public TokenEstimateGas getEthEstimateGas(@PathVariable("wei") BigDecimal wei) {
+    /**
+     * 添加需要建立交易索引的地址
+     *
+     * @param addresses 钱包地址
+     * @return 新增的地址
+     */
+    @ApiOperation(value = "添加索引地址", notes = "添加索引地址,此前的历史需回填")
+    @RequestMapping(value = {"/token/watchedAddresses"}, method = {RequestMethod.POST}, produces = {"application/json"})
+    public List<String> addWatchedAddresses(@RequestBody List<String> addresses) throws IOException {
+        logger.info("REST token/watchedAddresses() REQ-->" + addresses.size());
+        return watchedAddressRegistry.add(addresses);
+    }
+
+    /**
+     * 添加充值地址,到账后通过回调通知
+     *
+     * @param addresses 钱包地址
+     * @return 新增的数量
+     */
+    @ApiOperation(value = "添加充值地址", notes = "添加充值地址")
+    @RequestMapping(value = {"/token/depositAddresses"}, method = {RequestMethod.POST}, produces = {"application/json"})
+    public int addDepositAddresses(@RequestBody List<String> addresses) throws IOException {
+        logger.info("REST token/depositAddresses() REQ-->" + addresses.size());
+        return depositWatcher.addAddresses(addresses);
+    }
+
+    /**
+     * 回填历史区块的交易记录
+     *
+     * @param request from必填;to为空时回填到已索引的最新区块;addresses为空时回填所有索引地址
+     * @return 任务状态
+     */
+    @ApiOperation(value = "回填交易记录", notes = "回填交易记录,同一时间只运行一个任务")
+    @RequestMapping(value = {"/token/backfill"}, method = {RequestMethod.POST}, produces = {"application/json"})
+    public BackfillJob startBackfill(@RequestBody BackfillJob request) throws IOException {
+        logger.info("REST token/backfill() REQ-->" + JSON.toJSONString(request));
+        return backfillService.start(request);
+    }
+
+    @ApiOperation(value = "回填进度", notes = "回填进度")
+    @RequestMapping(value = {"/token/backfill"}, method = {RequestMethod.GET}, produces = {"application/json"})
+    public BackfillJob getBackfill() {
+        return backfillService.getJob();
+    }
+
+    @ApiOperation(value = "建议Gas价格", notes = "按最近区块的交易价格给出慢、标准、快三档,单位gwei")
+    @RequestMapping(value = {"/token/gasPrice"}, method = {RequestMethod.GET}, produces = {"application/json"})
+    public GasPriceSuggestion getGasPrice() {
+        return gasPriceOracle.getSuggestion();
+    }
+
+    @ApiOperation(value = "Gas 估算", notes = "Gas 估算,不传wei时使用标准档建议价格")
+    @RequestMapping(value = {"/token/getEthEstimateGas/{wei}", "/token/getEthEstimateGas"}, method = {RequestMethod.GET}, produces = {"application/json"})
+    public TokenEstimateGas getEthEstimateGas(@PathVariable(value = "wei", required = false) BigDecimal wei) {
         logger.info("REST token/getEthEstimateGas() REQ-->" + wei);
         TokenEstimateGas tokenEthEstimateGas = null;
         try {
+            if (wei == null) {
+                wei = gasPriceOracle.getSuggestion().getStandard();
+            }
             BigInteger gasPrice = Convert.toWei(wei, Convert.Unit.GWEI).toBigInteger();
             BigInteger gasLimit = BigInteger.valueOf(60000);
             BigInteger bgasUsed = gasLimit.multiply(gasPrice);
@@ -177,10 +313,12 @@ public class TokenController {
             tokenEthEstimateGas.setWei(wei);
             tokenEthEstimateGas.setGasUse(gasUsed);
 
-            // ETH->USD,CNY
-            String result = OkHttpUtil.get(THIRD_PARTY_PRICE_API, null);
-            Map<String, Object> map = JsonUtil.convertJsonStrToMap(result);
-            tokenEthEstimateGas.setRmb(gasUsed.multiply(ConvertUtil.getBigDecimal(map.get("CNY"))));
+            // ETH->CNY,使用后台刷新的行情
+            BigDecimal cny = priceFeedService.getPrice("CNY");
+            if (cny != null) {
+                tokenEthEstimateGas.setRmb(gasUsed.multiply(cny));
+                tokenEthEstimateGas.setPriceUpdatedAt(priceFeedService.getUpdatedAt());
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -192,50 +330,31 @@ public class TokenController {
      *
      * @param transactionHash
      * @return
-     * @throws InterruptedException
-     * @throws ExecutionException
      */
     @ApiOperation(value = "交易状态查询", notes = "交易状态查询")
     @RequestMapping(value = {"/token/getTransaction/{transactionHash}"}, method = {RequestMethod.GET}, produces = {"application/json"})
-    public TransactionReceiptResponse getTransaction(@PathVariable("transactionHash") String transactionHash) {
+    public CompletableFuture<TransactionReceiptResponse> getTransaction(@PathVariable("transactionHash") String transactionHash) {
         logger.info("REST token/getTransaction() REQ-->" + transactionHash);
-        TransactionReceipt transactionReceipt = null;
-        TransactionReceiptResponse transactionReceiptResponse = null;
-        try {
-            EthTransaction ethTransaction = service.getTransaction(transactionHash);
-            transactionReceipt = service.getTransactionReceipt(transactionHash);
-            transactionReceiptResponse = new TransactionReceiptResponse();
-            if (ethTransaction.getResult() != null && transactionReceipt != null) {
-                BigInteger gasPrice = ethTransaction.getResult().getGasPrice();
-                //            EthBlock.Block ethBlock = web3j.ethGetBlockByHash(ethTransaction.getResult().getBlockHash(), false).send().getBlock();
-                BigInteger time = service.getBlockEthBlock(ethTransaction.getResult().getBlockNumber().intValue()).getBlock().getTimestamp();
-                BigInteger defaultGas = new BigInteger("60000");
-                BigInteger gasLimit = ethTransaction.getResult().getGas().compareTo(defaultGas) == 1 ? defaultGas : ethTransaction.getResult().getGas();
-                BigInteger bgasUsed = gasLimit.multiply(gasPrice);
-                BigDecimal gasUsed = Convert.fromWei(bgasUsed.toString(), Convert.Unit.ETHER);
-                BigDecimal amount = Convert.fromWei(ethTransaction.getTransaction().get().getValue().toString(), Convert.Unit.ETHER);
-
-                transactionReceiptResponse.setAmount(String.valueOf(amount));
-                transactionReceiptResponse.setBlockHash(ethTransaction.getResult().getBlockHash());
-                transactionReceiptResponse.setBlockNumber(ethTransaction.getResult().getBlockNumber().toString());
-                transactionReceiptResponse.setContractAddress(transactionReceipt.getContractAddress());
-                transactionReceiptResponse.setFrom(ethTransaction.getResult().getFrom());
-                transactionReceiptResponse.setGasPrice(gasPrice.toString());
-                transactionReceiptResponse.setGasUsed(String.valueOf(gasUsed));
-                transactionReceiptResponse.setStatus(transactionReceipt.getStatus());
-                transactionReceiptResponse.setTo(ethTransaction.getResult().getTo());
-                transactionReceiptResponse.setTransactionHash(ethTransaction.getTransaction().get().getHash());
-                transactionReceiptResponse.setTransactionIndex(ethTransaction.getResult().getTransactionIndex().toString());
-                transactionReceiptResponse.setDateTime(String.valueOf(time));
-            }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (ExecutionException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        return transactionStatusService.getTransactionStatus(transactionHash, new BigInteger("60000"));
+    }
+
+    @ApiOperation(value = "ETH行情", notes = "后台定时刷新的ETH对BTC、USD、CNY价格及更新时间")
+    @RequestMapping(value = {"/token/ethPrice"}, method = {RequestMethod.GET}, produces = {"application/json"})
+    public PriceQuote getEthPrice() {
+        return priceFeedService.getQuote();
+    }
 
-        return transactionReceipt == null ? null : transactionReceiptResponse;
+    /**
+     * 订阅交易状态,状态变化时以SSE推送,代替轮询交易查询接口
+     *
+     * @param hashes    交易hash,逗号分隔
+     * @param addresses 发送方或接收方地址,逗号分隔
+     */
+    @ApiOperation(value = "订阅交易状态", notes = "SSE推送pending、mined、确认数、confirmed、failed、dropped状态变化")
+    @RequestMapping(value = {"/token/transactionStatus/stream"}, method = {RequestMethod.GET}, produces = {MediaType.TEXT_EVENT_STREAM_VALUE})
+    public SseEmitter streamTransactionStatus(@RequestParam(value = "hashes", required = false) List<String> hashes,
+                                              @RequestParam(value = "addresses", required = false) List<String> addresses) {
+        logger.info("REST streamTransactionStatus() REQ-->" + hashes + " " + addresses);
+        return transactionStatusStream.subscribe(hashes, addresses);
     }
 }
\ No newline at end of file
@@ -0,0 +1,32 @@
+package com.funtime.eth.event;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * 链重组事件,{@code forkBlock}及之后的区块已被替换,随后会按新链重新发布这些高度的{@link NewHeadEvent}
+ */
+public class ChainReorgEvent extends ApplicationEvent {
+
+    private final long forkBlock;
+    private final long oldHead;
+
+    public ChainReorgEvent(Object source, long forkBlock, long oldHead) {
+        super(source);
+        this.forkBlock = forkBlock;
+        this.oldHead = oldHead;
+    }
+
+    /**
+     * 第一个被替换的区块高度
+     */
+    public long getForkBlock() {
+        return forkBlock;
+    }
+
+    /**
+     * 重组前的最新区块高度
+     */
+    public long getOldHead() {
+        return oldHead;
+    }
+}
@@ -0,0 +1,21 @@
+package com.funtime.eth.event;
+
+import com.funtime.eth.model.Deposit;
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * 检测到充值地址收到ETH或ERC-20代币
+ */
+public class DepositEvent extends ApplicationEvent {
+
+    private final Deposit deposit;
+
+    public DepositEvent(Object source, Deposit deposit) {
+        super(source);
+        this.deposit = deposit;
+    }
+
+    public Deposit getDeposit() {
+        return deposit;
+    }
+}
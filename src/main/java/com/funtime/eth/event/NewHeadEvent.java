@@ -0,0 +1,25 @@
+package com.funtime.eth.event;
+
+import org.springframework.context.ApplicationEvent;
+import org.web3j.protocol.core.methods.response.EthBlock;
+
+/**
+ * 新区块事件,携带不含交易体的区块头
+ */
+public class NewHeadEvent extends ApplicationEvent {
+
+    private final EthBlock.Block block;
+
+    public NewHeadEvent(Object source, EthBlock.Block block) {
+        super(source);
+        this.block = block;
+    }
+
+    public EthBlock.Block getBlock() {
+        return block;
+    }
+
+    public long getBlockNumber() {
+        return block.getNumber().longValue();
+    }
+}
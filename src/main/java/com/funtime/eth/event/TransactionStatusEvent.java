@@ -0,0 +1,21 @@
+package com.funtime.eth.event;
+
+import com.funtime.eth.model.TransactionConfirmation;
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * 交易状态变化事件,携带变化后的状态快照
+ */
+public class TransactionStatusEvent extends ApplicationEvent {
+
+    private final TransactionConfirmation confirmation;
+
+    public TransactionStatusEvent(Object source, TransactionConfirmation confirmation) {
+        super(source);
+        this.confirmation = confirmation;
+    }
+
+    public TransactionConfirmation getConfirmation() {
+        return confirmation;
+    }
+}
@@ -0,0 +1,25 @@
+package com.funtime.eth.model;
+
+import lombok.Data;
+
+import java.util.List;
+import java.util.Map;
+
+@Data
+public class BackfillJob {
+    public static final String RUNNING = "running";
+    public static final String COMPLETED = "completed";
+    public static final String FAILED = "failed";
+
+    private Long from;
+    private Long to;
+    private long next;
+    private List<String> addresses;
+    /**
+     * 地址最早一笔交易所在区块,from大于0时只有最早交易不早于from的地址才标记为已回填
+     */
+    private Map<String, Long> firstBlocks;
+    private String status;
+    private String error;
+    private long updatedAt;
+}
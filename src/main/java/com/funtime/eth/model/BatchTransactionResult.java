@@ -0,0 +1,25 @@
+package com.funtime.eth.model;
+
+import lombok.Data;
+
+import java.math.BigInteger;
+
+@Data
+public class BatchTransactionResult {
+    public static final String SENT = "sent";
+    /**
+     * 广播请求失败,交易可能已到达节点,以确认回调为准,不应重新发起
+     */
+    public static final String UNKNOWN = "unknown";
+    public static final String FAILED = "failed";
+
+    private int index;
+    private String fromAddress;
+    private String toAddress;
+    private String contractAddress;
+    private BigInteger nonce;
+    private String transactionHash;
+    private String status;
+    private String error;
+    private String businesCode;
+}
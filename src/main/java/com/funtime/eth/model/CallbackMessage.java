@@ -0,0 +1,12 @@
+package com.funtime.eth.model;
+
+import lombok.Data;
+
+@Data
+public class CallbackMessage {
+    private String id;
+    private String url;
+    private String body;
+    private int attempts;
+    private long createdAt;
+}
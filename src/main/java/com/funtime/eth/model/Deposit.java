@@ -0,0 +1,25 @@
+package com.funtime.eth.model;
+
+import lombok.Data;
+
+/**
+ * 充值记录,ETH充值的contractAddress为空字符串,value为最小单位.链重组后原记录以reverted状态再次通知,
+ * 重新打包后以新的blockHash再次confirmed,id由blockHash、transactionHash、logIndex和status组成,用于去重
+ */
+@Data
+public class Deposit {
+    public static final String CONFIRMED = "confirmed";
+    public static final String REVERTED = "reverted";
+
+    private String id;
+    private String transactionHash;
+    private String logIndex;
+    private String blockNumber;
+    private String blockHash;
+    private String timeStamp;
+    private String from;
+    private String to;
+    private String contractAddress;
+    private String value;
+    private String status;
+}
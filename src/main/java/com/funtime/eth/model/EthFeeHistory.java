@@ -0,0 +1,25 @@
+package com.funtime.eth.model;
+
+import lombok.Data;
+import org.web3j.protocol.core.Response;
+
+import java.util.List;
+
+/**
+ * eth_feeHistory的返回,web3j未内置.baseFeePerGas比区块数多一个,最后一个是下一个区块的基础费用,
+ * reward按请求的分位数给出每个区块的小费
+ */
+public class EthFeeHistory extends Response<EthFeeHistory.FeeHistory> {
+
+    public FeeHistory getFeeHistory() {
+        return getResult();
+    }
+
+    @Data
+    public static class FeeHistory {
+        private String oldestBlock;
+        private List<String> baseFeePerGas;
+        private List<Double> gasUsedRatio;
+        private List<List<String>> reward;
+    }
+}
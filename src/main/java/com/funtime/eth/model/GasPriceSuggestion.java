@@ -0,0 +1,25 @@
+package com.funtime.eth.model;
+
+import lombok.Data;
+
+import java.math.BigDecimal;
+
+/**
+ * 建议gas价格,单位gwei.source为blocks时由最近区块统计得出,node为节点eth_gasPrice,default为固定值.
+ * baseFee为下一个区块的基础费用,与三档小费一起由eth_feeHistory得出,节点不支持EIP-1559时为null
+ */
+@Data
+public class GasPriceSuggestion {
+    private BigDecimal slow;
+    private BigDecimal standard;
+    private BigDecimal fast;
+    private BigDecimal baseFee;
+    private BigDecimal slowPriorityFee;
+    private BigDecimal standardPriorityFee;
+    private BigDecimal fastPriorityFee;
+    private String source;
+    private long blockNumber;
+    private int blocks;
+    private long samples;
+    private long updatedAt;
+}
@@ -0,0 +1,24 @@
+package com.funtime.eth.model;
+
+import lombok.Data;
+
+/**
+ * 本地索引的转账记录,字段与etherscan txlist保持一致,代币转账的contractAddress为合约地址
+ */
+@Data
+public class IndexedTransaction {
+    private String blockNumber;
+    private String timeStamp;
+    private String hash;
+    private String nonce;
+    private String blockHash;
+    private String transactionIndex;
+    private String logIndex;
+    private String from;
+    private String to;
+    private String value;
+    private String contractAddress;
+    private String gas;
+    private String gasPrice;
+    private String confirmations;
+}
@@ -0,0 +1,18 @@
+package com.funtime.eth.model;
+
+import lombok.Data;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+/**
+ * ETH行情,updatedAt为最后一次刷新成功的时间,stale表示已超过允许的时效
+ */
+@Data
+public class PriceQuote {
+    private String symbol;
+    private Map<String, BigDecimal> prices;
+    private long updatedAt;
+    private long ageMillis;
+    private boolean stale;
+}
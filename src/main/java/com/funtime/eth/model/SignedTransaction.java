@@ -0,0 +1,20 @@
+package com.funtime.eth.model;
+
+import lombok.Data;
+
+import java.math.BigInteger;
+
+/**
+ * 已签名的交易,保留签名参数以便加价重发
+ */
+@Data
+public class SignedTransaction {
+    private String hexValue;
+    private String transactionHash;
+    private BigInteger nonce;
+    private String to;
+    private BigInteger value;
+    private String data;
+    private BigInteger gasLimit;
+    private TransactionFees fees;
+}
@@ -0,0 +1,11 @@
+package com.funtime.eth.model;
+
+import lombok.Data;
+
+@Data
+public class TokenBalance {
+    private String address;
+    private String contractAddress;
+    private String balance;
+    private String error;
+}
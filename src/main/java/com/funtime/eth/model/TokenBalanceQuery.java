@@ -0,0 +1,11 @@
+package com.funtime.eth.model;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class TokenBalanceQuery {
+    private List<String> addresses;
+    private List<String> contractAddresses;
+}
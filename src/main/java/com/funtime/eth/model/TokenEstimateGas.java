@@ -11,4 +11,8 @@ public class TokenEstimateGas {
     BigInteger gasLimit;
     BigDecimal gasUse;
     BigDecimal rmb;
+    /**
+     * 换算rmb所用行情的更新时间
+     */
+    Long priceUpdatedAt;
 }
@@ -0,0 +1,11 @@
+package com.funtime.eth.model;
+
+import lombok.Data;
+
+@Data
+public class TokenMetadata {
+    private String contractAddress;
+    private String name;
+    private String symbol;
+    private int decimals;
+}
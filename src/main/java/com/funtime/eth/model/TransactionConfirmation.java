@@ -0,0 +1,26 @@
+package com.funtime.eth.model;
+
+import lombok.Data;
+
+@Data
+public class TransactionConfirmation {
+    public static final String PENDING = "pending";
+    public static final String MINED = "mined";
+    public static final String CONFIRMED = "confirmed";
+    public static final String FAILED = "failed";
+    public static final String DROPPED = "dropped";
+    public static final String REPLACED = "replaced";
+    public static final String CANCELLED = "cancelled";
+
+    private String transactionHash;
+    private String fromAddress;
+    private String toAddress;
+    private String businesCode;
+    private String status;
+    private Long blockNumber;
+    private String blockHash;
+    private int confirmations;
+    private Long gasUsed;
+    private String replacedBy;
+    private long registeredBlock;
+}
@@ -0,0 +1,16 @@
+package com.funtime.eth.model;
+
+import lombok.Data;
+
+import java.math.BigInteger;
+
+/**
+ * 交易费用参数,单位wei.type为0时只使用gasPrice,为2时使用maxFeePerGas和maxPriorityFeePerGas
+ */
+@Data
+public class TransactionFees {
+    private int type;
+    private BigInteger gasPrice;
+    private BigInteger maxFeePerGas;
+    private BigInteger maxPriorityFeePerGas;
+}
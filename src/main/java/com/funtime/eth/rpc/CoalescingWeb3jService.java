@@ -0,0 +1,219 @@
+package com.funtime.eth.rpc;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.web3j.protocol.ObjectMapperFactory;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 合并并发的只读请求
+ * <p>
+ * 方法和参数完全相同的请求在前一个返回之前只发送一次,结果共享给所有调用方;不同的请求在
+ * {@code config.rpc.coalesce.window_millis}内攒成一次JSON-RPC批量请求,最多{@code config.rpc.coalesce.max_batch}个.
+ * 广播交易、过滤器等有副作用的方法直接交给{@link RpcNodePool}.批量请求失败时逐个重发,兼容不支持批量的节点.
+ */
+@Component
+public class CoalescingWeb3jService implements Web3jService {
+
+    private static final Logger logger = LoggerFactory.getLogger(CoalescingWeb3jService.class);
+
+    private static final Set<String> PASS_THROUGH_METHODS = ImmutableSet.of(
+            "eth_sendRawTransaction", "eth_sendTransaction", "eth_sign",
+            "eth_newFilter", "eth_newBlockFilter", "eth_newPendingTransactionFilter",
+            "eth_getFilterChanges", "eth_getFilterLogs", "eth_uninstallFilter");
+
+    @Value("${config.rpc.coalesce.enabled:true}")
+    public boolean ENABLED;
+
+    @Value("${config.rpc.coalesce.window_millis:2}")
+    public long WINDOW_MILLIS;
+
+    @Value("${config.rpc.coalesce.max_batch:50}")
+    public int MAX_BATCH;
+
+    @Value("${config.rpc.coalesce.senders:8}")
+    public int SENDERS;
+
+    private final ObjectMapper objectMapper = ObjectMapperFactory.getObjectMapper();
+
+    private final RpcNodePool rpcNodePool;
+    private final JsonRpcBatchClient batchClient;
+
+    private final Map<String, CompletableFuture<? extends Response>> inFlight = new ConcurrentHashMap<>();
+
+    private final BlockingQueue<Pending<?>> queue = new LinkedBlockingQueue<>();
+
+    private final Counter coalescedCounter;
+    private final Counter batchCounter;
+
+    private ExecutorService collector;
+
+    private ExecutorService senders;
+
+    public CoalescingWeb3jService(RpcNodePool rpcNodePool, JsonRpcBatchClient batchClient, MeterRegistry meterRegistry) {
+        this.rpcNodePool = rpcNodePool;
+        this.batchClient = batchClient;
+        this.coalescedCounter = Counter.builder("rpc.requests.coalesced")
+                .description("requests served by an identical in-flight request")
+                .register(meterRegistry);
+        this.batchCounter = Counter.builder("rpc.batches")
+                .description("micro-batches sent to the node")
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void init() {
+        collector = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("rpc-coalesce-%d").setDaemon(true).build());
+        senders = Executors.newFixedThreadPool(SENDERS,
+                new ThreadFactoryBuilder().setNameFormat("rpc-coalesce-sender-%d").setDaemon(true).build());
+        collector.execute(this::collect);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        collector.shutdownNow();
+        senders.shutdown();
+    }
+
+    @Override
+    public <T extends Response> T send(Request request, Class<T> responseType) throws IOException {
+        if (!ENABLED || PASS_THROUGH_METHODS.contains(request.getMethod())) {
+            return rpcNodePool.send(request, responseType);
+        }
+        try {
+            return sendAsync(request, responseType).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends Response> CompletableFuture<T> sendAsync(Request request, Class<T> responseType) {
+        if (!ENABLED || PASS_THROUGH_METHODS.contains(request.getMethod())) {
+            return rpcNodePool.sendAsync(request, responseType);
+        }
+        String key;
+        try {
+            key = request.getMethod() + objectMapper.writeValueAsString(request.getParams()) + responseType.getName();
+        } catch (JsonProcessingException e) {
+            return rpcNodePool.sendAsync(request, responseType);
+        }
+        CompletableFuture<T> future = new CompletableFuture<>();
+        CompletableFuture<? extends Response> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalescedCounter.increment();
+            return (CompletableFuture<T>) existing;
+        }
+        future.whenComplete((response, e) -> inFlight.remove(key, future));
+        queue.add(new Pending<>(request, responseType, RpcPriority.of(request.getMethod()), future));
+        return future;
+    }
+
+    private void collect() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                List<Pending<?>> batch = new ArrayList<>();
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - batch.size());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WINDOW_MILLIS);
+                while (batch.size() < MAX_BATCH) {
+                    Pending<?> next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, MAX_BATCH - batch.size());
+                }
+                senders.execute(() -> dispatch(batch));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void dispatch(List<Pending<?>> batch) {
+        if (batch.size() > 1) {
+            List<Request<?, ?>> requests = new ArrayList<>(batch.size());
+            RpcPriority priority = RpcPriority.BACKFILL;
+            for (Pending<?> pending : batch) {
+                requests.add(pending.request);
+                // 批量请求按其中最高的优先级限流
+                if (pending.priority.ordinal() < priority.ordinal()) {
+                    priority = pending.priority;
+                }
+            }
+            try {
+                List<JsonNode> nodes = batchClient.sendRaw(requests, priority);
+                batchCounter.increment();
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).complete(batchClient, nodes.get(i));
+                }
+                return;
+            } catch (IOException e) {
+                logger.warn("batch of " + batch.size() + " requests failed, sending one by one: " + e.getMessage());
+            }
+        }
+        for (Pending<?> pending : batch) {
+            pending.sendAlone(rpcNodePool);
+        }
+    }
+
+    private static class Pending<T extends Response> {
+        private final Request<?, ?> request;
+        private final Class<T> responseType;
+        private final RpcPriority priority;
+        private final CompletableFuture<T> future;
+
+        private Pending(Request<?, ?> request, Class<T> responseType, RpcPriority priority, CompletableFuture<T> future) {
+            this.request = request;
+            this.responseType = responseType;
+            this.priority = priority;
+            this.future = future;
+        }
+
+        private void complete(JsonRpcBatchClient batchClient, JsonNode node) {
+            try {
+                future.complete(batchClient.convert(request, node, responseType));
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        private void sendAlone(RpcNodePool rpcNodePool) {
+            try {
+                future.complete(RpcPriority.with(priority, () -> rpcNodePool.send(request, responseType)));
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.funtime.eth.rpc;
+
+import java.io.IOException;
+
+/**
+ * 节点返回非2xx的HTTP状态码,保留状态码用于识别限流(429)
+ */
+public class HttpStatusException extends IOException {
+
+    private final int code;
+
+    public HttpStatusException(int code) {
+        super("Invalid response received: " + code);
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+}
@@ -0,0 +1,198 @@
+package com.funtime.eth.rpc;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.web3j.protocol.ObjectMapperFactory;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * JSON-RPC批量请求
+ * <p>
+ * web3j 3.x不支持批量请求,这里把多个{@link Request}序列化为一个JSON数组发送给节点,
+ * 再按id把结果映射回各自的请求.超过{@code config.rpc_batch_size}的请求会被拆分成多次发送.
+ * 每批请求由{@link RpcNodePool}选择节点,失败时换节点重发.
+ */
+@Component
+public class JsonRpcBatchClient {
+
+    private static final Logger logger = LoggerFactory.getLogger(JsonRpcBatchClient.class);
+
+    private static final MediaType JSON_MEDIA_TYPE = MediaType.parse("application/json; charset=utf-8");
+
+    @Value("${config.rpc_batch_size:100}")
+    public int RPC_BATCH_SIZE;
+
+    @Value("${config.rpc_batch_parallelism:4}")
+    public int RPC_BATCH_PARALLELISM;
+
+    private final ObjectMapper objectMapper = ObjectMapperFactory.getObjectMapper();
+
+    private final RpcNodePool rpcNodePool;
+
+    private ExecutorService executor;
+
+    public JsonRpcBatchClient(RpcNodePool rpcNodePool) {
+        this.rpcNodePool = rpcNodePool;
+    }
+
+    @PostConstruct
+    public void init() {
+        executor = Executors.newFixedThreadPool(RPC_BATCH_PARALLELISM,
+                new ThreadFactoryBuilder().setNameFormat("rpc-batch-%d").setDaemon(true).build());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdown();
+    }
+
+    /**
+     * 批量发送同一类型的请求,按批次依次发送,任一批次失败时整体失败,已发送批次的结果不返回;
+     * 广播交易需要逐批调用,分别处理每批的结果
+     *
+     * @param requests     请求列表
+     * @param responseType 响应类型
+     * @return 与请求一一对应的响应
+     * @throws IOException 网络错误或节点不支持批量请求
+     */
+    public <T extends Response> List<T> send(List<? extends Request<?, ?>> requests, Class<T> responseType) throws IOException {
+        List<T> responses = new ArrayList<>(requests.size());
+        for (int from = 0; from < requests.size(); from += RPC_BATCH_SIZE) {
+            List<? extends Request<?, ?>> chunk = requests.subList(from, Math.min(from + RPC_BATCH_SIZE, requests.size()));
+            responses.addAll(sendChunk(chunk, responseType, RpcPriority.of(chunk.get(0).getMethod())));
+        }
+        return responses;
+    }
+
+    /**
+     * 批量发送同一类型的请求,拆分后的各批次并行发送
+     *
+     * @param requests     请求列表
+     * @param responseType 响应类型
+     * @return 与请求一一对应的响应
+     */
+    public <T extends Response> CompletableFuture<List<T>> sendParallel(List<? extends Request<?, ?>> requests, Class<T> responseType) {
+        List<CompletableFuture<List<T>>> chunks = new ArrayList<>();
+        for (int from = 0; from < requests.size(); from += RPC_BATCH_SIZE) {
+            List<? extends Request<?, ?>> chunk = requests.subList(from, Math.min(from + RPC_BATCH_SIZE, requests.size()));
+            // 优先级在调用线程上确定,批次在线程池中发送
+            RpcPriority priority = RpcPriority.of(chunk.get(0).getMethod());
+            chunks.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return sendChunk(chunk, responseType, priority);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor));
+        }
+        return CompletableFuture.allOf(chunks.toArray(new CompletableFuture[0])).thenApply(ignored -> {
+            List<T> responses = new ArrayList<>(requests.size());
+            for (CompletableFuture<List<T>> chunk : chunks) {
+                responses.addAll(chunk.join());
+            }
+            return responses;
+        });
+    }
+
+    private <T extends Response> List<T> sendChunk(List<? extends Request<?, ?>> chunk, Class<T> responseType,
+                                                   RpcPriority priority) throws IOException {
+        List<JsonNode> nodes = sendRaw(chunk, priority);
+        List<T> responses = new ArrayList<>(chunk.size());
+        for (int i = 0; i < chunk.size(); i++) {
+            responses.add(convert(chunk.get(i), nodes.get(i), responseType));
+        }
+        logger.debug("batch " + chunk.get(0).getMethod() + " size " + chunk.size());
+        return responses;
+    }
+
+    /**
+     * 用一次批量请求发送不同类型的请求,不拆分
+     *
+     * @param requests 请求列表
+     * @param priority 限流优先级
+     * @return 与请求一一对应的原始结果,节点未返回的为null
+     * @throws IOException 网络错误或节点不支持批量请求
+     */
+    public List<JsonNode> sendRaw(List<? extends Request<?, ?>> requests, RpcPriority priority) throws IOException {
+        String payload = objectMapper.writeValueAsString(requests);
+        boolean send = false;
+        for (Request<?, ?> request : requests) {
+            send |= RpcNodePool.isBroadcast(request.getMethod());
+        }
+        JsonNode root = send
+                ? rpcNodePool.executeSend(priority, requests.size(), node -> post(node, payload))
+                : rpcNodePool.execute(priority, requests.size(), node -> post(node, payload));
+
+        Map<Long, JsonNode> byId = new HashMap<>();
+        for (JsonNode node : root) {
+            byId.put(node.path("id").asLong(), node);
+        }
+        List<JsonNode> nodes = new ArrayList<>(requests.size());
+        for (Request<?, ?> request : requests) {
+            nodes.add(byId.get(request.getId()));
+        }
+        return nodes;
+    }
+
+    /**
+     * 把{@link #sendRaw}的结果转换为响应对象
+     */
+    public <T extends Response> T convert(Request<?, ?> request, JsonNode node, Class<T> responseType) throws IOException {
+        if (node == null) {
+            return missingResponse(responseType, request);
+        }
+        return objectMapper.treeToValue(node, responseType);
+    }
+
+    private JsonNode post(RpcNode node, String payload) throws IOException {
+        okhttp3.Request httpRequest = new okhttp3.Request.Builder()
+                .url(node.getUrl())
+                .post(RequestBody.create(JSON_MEDIA_TYPE, payload))
+                .build();
+
+        JsonNode root;
+        try (okhttp3.Response httpResponse = node.getHttpClient().newCall(httpRequest).execute()) {
+            ResponseBody body = httpResponse.body();
+            if (!httpResponse.isSuccessful() || body == null) {
+                throw new HttpStatusException(httpResponse.code());
+            }
+            root = objectMapper.readTree(body.byteStream());
+        }
+        if (!root.isArray()) {
+            throw new IOException("batch request rejected: " + root);
+        }
+        return root;
+    }
+
+    private static <T extends Response> T missingResponse(Class<T> responseType, Request<?, ?> request) throws IOException {
+        try {
+            T response = responseType.newInstance();
+            response.setId(request.getId());
+            response.setError(new Response.Error(-32603, "no response for request " + request.getId()));
+            return response;
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new IOException(e);
+        }
+    }
+}
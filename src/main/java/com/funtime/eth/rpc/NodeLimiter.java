@@ -0,0 +1,123 @@
+package com.funtime.eth.rpc;
+
+/**
+ * 单个节点的限流
+ * <p>
+ * 令牌桶限制每秒请求数,批量请求按其中的请求个数消耗令牌,超过桶容量的批量请求在桶满时放行并记为欠账,
+ * 还清之前后续请求继续等待;并发数按AIMD调整,请求成功时缓慢增加,
+ * 节点返回429或超时时减半并清空令牌,让节点有时间恢复.等待中的高优先级请求总是先于低优先级请求获得配额.
+ */
+class NodeLimiter {
+
+    private final double ratePerSecond;
+
+    private final double burst;
+
+    private final int minConcurrency;
+
+    private final int maxConcurrency;
+
+    private final int[] waiting = new int[RpcPriority.values().length];
+
+    private double tokens;
+
+    private long refilledAt = System.nanoTime();
+
+    private double limit;
+
+    private int inFlight;
+
+    /**
+     * @param ratePerSecond  每秒请求数,不大于0时不限制
+     * @param burst          令牌桶容量
+     * @param minConcurrency 最小并发数
+     * @param maxConcurrency 最大并发数,也是初始并发数
+     */
+    NodeLimiter(double ratePerSecond, double burst, int minConcurrency, int maxConcurrency) {
+        this.ratePerSecond = ratePerSecond;
+        this.burst = Math.max(1, burst);
+        this.minConcurrency = Math.max(1, minConcurrency);
+        this.maxConcurrency = Math.max(this.minConcurrency, maxConcurrency);
+        this.tokens = this.burst;
+        this.limit = this.maxConcurrency;
+    }
+
+    /**
+     * 获取配额,成功后必须调用{@link #release}
+     *
+     * @param priority      请求优先级
+     * @param permits       请求个数
+     * @param timeoutMillis 最长等待时间
+     * @return 超时未获得配额返回false
+     */
+    synchronized boolean acquire(RpcPriority priority, int permits, long timeoutMillis) throws InterruptedException {
+        double needed = Math.min(permits, burst);
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        waiting[priority.ordinal()]++;
+        boolean acquired = false;
+        try {
+            while (true) {
+                refill();
+                if (!higherWaiting(priority) && inFlight < (int) limit && (ratePerSecond <= 0 || tokens >= needed)) {
+                    if (ratePerSecond > 0) {
+                        tokens -= permits;
+                    }
+                    inFlight++;
+                    acquired = true;
+                    return true;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                if (ratePerSecond > 0 && tokens < needed) {
+                    remaining = Math.min(remaining, (long) Math.ceil((needed - tokens) * 1000 / ratePerSecond));
+                }
+                wait(Math.max(1, remaining));
+            }
+        } finally {
+            waiting[priority.ordinal()]--;
+            if (!acquired) {
+                // 放弃等待的高优先级请求不应继续挡住低优先级请求
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 释放配额并调整并发数
+     *
+     * @param overloaded 节点返回429或超时
+     */
+    synchronized void release(boolean overloaded) {
+        inFlight--;
+        if (overloaded) {
+            limit = Math.max(minConcurrency, limit / 2);
+            tokens = Math.min(tokens, 0);
+        } else {
+            limit = Math.min(maxConcurrency, limit + 1 / limit);
+        }
+        notifyAll();
+    }
+
+    synchronized double getLimit() {
+        return limit;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (ratePerSecond > 0) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) / 1e9 * ratePerSecond);
+        }
+        refilledAt = now;
+    }
+
+    private boolean higherWaiting(RpcPriority priority) {
+        for (int i = 0; i < priority.ordinal(); i++) {
+            if (waiting[i] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,125 @@
+package com.funtime.eth.rpc;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import org.web3j.protocol.http.HttpService;
+
+/**
+ * 节点池中的一个节点,记录延迟、错误率和区块高度
+ * <p>
+ * 延迟和错误率都是指数加权移动平均,最近的请求权重更高.
+ */
+public class RpcNode {
+
+    private static final double ALPHA = 0.2;
+
+    private final String url;
+
+    private final OkHttpClient httpClient;
+
+    private final HttpService service;
+
+    private final NodeLimiter limiter;
+
+    private volatile double latencyMillis = -1;
+
+    private volatile double errorRate;
+
+    private volatile int consecutiveFailures;
+
+    private volatile long retryAt;
+
+    private volatile long blockNumber = -1;
+
+    RpcNode(String url, OkHttpClient httpClient, NodeLimiter limiter) {
+        this.url = url;
+        // 非2xx响应抛出带状态码的异常,HttpService自己只抛出包含响应体的ClientConnectionException
+        this.httpClient = httpClient.newBuilder()
+                .addInterceptor(chain -> {
+                    okhttp3.Response response = chain.proceed(chain.request());
+                    if (!response.isSuccessful()) {
+                        response.close();
+                        throw new HttpStatusException(response.code());
+                    }
+                    return response;
+                })
+                .build();
+        this.service = new HttpService(url, this.httpClient, false);
+        this.limiter = limiter;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * 用于监控和日志的节点名,不含路径中的key
+     */
+    public String getHost() {
+        HttpUrl httpUrl = HttpUrl.parse(url);
+        return httpUrl == null ? url : httpUrl.host();
+    }
+
+    public OkHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public HttpService getService() {
+        return service;
+    }
+
+    NodeLimiter getLimiter() {
+        return limiter;
+    }
+
+    public double getConcurrencyLimit() {
+        return limiter.getLimit();
+    }
+
+    public double getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    public long getBlockNumber() {
+        return blockNumber;
+    }
+
+    void setBlockNumber(long blockNumber) {
+        this.blockNumber = blockNumber;
+    }
+
+    synchronized void recordSuccess(long elapsedNanos) {
+        double millis = elapsedNanos / 1_000_000.0;
+        latencyMillis = latencyMillis < 0 ? millis : latencyMillis + ALPHA * (millis - latencyMillis);
+        errorRate = errorRate * (1 - ALPHA);
+        consecutiveFailures = 0;
+    }
+
+    synchronized void recordFailure(long cooldownMillis) {
+        errorRate = errorRate * (1 - ALPHA) + ALPHA;
+        consecutiveFailures++;
+        // 连续失败时退避,最长32倍
+        retryAt = System.currentTimeMillis() + (cooldownMillis << Math.min(consecutiveFailures - 1, 5));
+    }
+
+    boolean isCoolingDown() {
+        return consecutiveFailures > 0 && System.currentTimeMillis() < retryAt;
+    }
+
+    /**
+     * 路由评分,越小越优先.尚无延迟数据的节点按0处理,让它尽快获得样本
+     */
+    double score() {
+        return Math.max(latencyMillis, 0) * (1 + 4 * errorRate);
+    }
+
+    @Override
+    public String toString() {
+        return getHost() + "{latency=" + Math.round(latencyMillis) + "ms, errorRate=" + String.format("%.2f", errorRate)
+                + ", block=" + blockNumber + "}";
+    }
+}
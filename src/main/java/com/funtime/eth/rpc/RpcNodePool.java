@@ -0,0 +1,394 @@
+package com.funtime.eth.rpc;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import okhttp3.OkHttpClient;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.web3j.protocol.Web3jService;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.Response;
+import org.web3j.protocol.core.methods.response.EthBlockNumber;
+import org.web3j.protocol.exceptions.ClientConnectionException;
+import org.web3j.utils.Async;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 多节点JSON-RPC连接池
+ * <p>
+ * 节点地址由{@code web3j.client-addresses}逗号分隔配置,未配置时只使用{@code web3j.client-address}.
+ * 读请求按延迟和错误率选择最优节点,网络错误或HTTP错误时依次换下一个节点重试;广播交易按{@code config.rpc.broadcast}
+ * 发送到所有节点(all)或按配置顺序发送到第一个可用节点(primary),批量广播总是只发给第一个可用节点.
+ * 广播交易只在确定未发出(连接失败、等待限流超时)时换节点,其他错误不重试,避免经重试路径发到每个节点.后台定时查询各节点区块高度,
+ * 落后超过{@code config.rpc.max_block_lag}个区块或连续失败处于退避期的节点暂不参与路由,全部不可用时仍按评分尝试.
+ * 每个节点按{@code config.rpc.rate_limit}限制每秒请求数,并发数随429和超时自适应,见{@link NodeLimiter}.
+ */
+@Component
+public class RpcNodePool implements Web3jService {
+
+    private static final Logger logger = LoggerFactory.getLogger(RpcNodePool.class);
+
+    private static final String BROADCAST_PRIMARY = "primary";
+
+    /**
+     * Infura等服务商超出请求配额时返回的错误码
+     */
+    private static final int RATE_LIMITED_CODE = -32005;
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    @Value("${web3j.client-addresses:${web3j.client-address}}")
+    public String[] CLIENT_ADDRESSES;
+
+    @Value("${config.rpc.broadcast:all}")
+    public String BROADCAST;
+
+    @Value("${config.rpc.max_block_lag:3}")
+    public int MAX_BLOCK_LAG;
+
+    @Value("${config.rpc.cooldown_millis:1000}")
+    public long COOLDOWN_MILLIS;
+
+    @Value("${config.rpc.health_check_seconds:5}")
+    public long HEALTH_CHECK_SECONDS;
+
+    @Value("${config.rpc.rate_limit:0}")
+    public double RATE_LIMIT;
+
+    @Value("${config.rpc.burst:${config.rpc.rate_limit:0}}")
+    public double BURST;
+
+    @Value("${config.rpc.min_concurrency:2}")
+    public int MIN_CONCURRENCY;
+
+    @Value("${config.rpc.max_concurrency:64}")
+    public int MAX_CONCURRENCY;
+
+    @Value("${config.rpc.acquire_timeout_millis:30000}")
+    public long ACQUIRE_TIMEOUT_MILLIS;
+
+    @Value("${config.rpc.failover_wait_millis:100}")
+    public long FAILOVER_WAIT_MILLIS;
+
+    private final OkHttpClient httpClient;
+    private final MeterRegistry meterRegistry;
+
+    private List<RpcNode> nodes;
+
+    private ScheduledExecutorService scheduler;
+
+    public RpcNodePool(OkHttpClient httpClient, MeterRegistry meterRegistry) {
+        this.httpClient = httpClient;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        Set<String> urls = new LinkedHashSet<>();
+        for (String address : CLIENT_ADDRESSES) {
+            if (StringUtils.isNotBlank(address)) {
+                urls.add(address.trim());
+            }
+        }
+        if (urls.isEmpty()) {
+            throw new IllegalStateException("no web3j client address configured");
+        }
+        List<RpcNode> list = new ArrayList<>();
+        for (String url : urls) {
+            RpcNode node = new RpcNode(url, httpClient, new NodeLimiter(RATE_LIMIT, BURST, MIN_CONCURRENCY, MAX_CONCURRENCY));
+            list.add(node);
+            Gauge.builder("rpc.node.latency", node, RpcNode::getLatencyMillis)
+                    .description("moving average latency in milliseconds")
+                    .tag("node", node.getHost())
+                    .register(meterRegistry);
+            Gauge.builder("rpc.node.error.rate", node, RpcNode::getErrorRate)
+                    .description("moving average error rate")
+                    .tag("node", node.getHost())
+                    .register(meterRegistry);
+            Gauge.builder("rpc.node.concurrency.limit", node, RpcNode::getConcurrencyLimit)
+                    .description("adaptive concurrency limit")
+                    .tag("node", node.getHost())
+                    .register(meterRegistry);
+            Gauge.builder("rpc.node.block", node, RpcNode::getBlockNumber)
+                    .description("latest block number reported by the node")
+                    .tag("node", node.getHost())
+                    .register(meterRegistry);
+        }
+        nodes = Collections.unmodifiableList(list);
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("rpc-health-%d").setDaemon(true).build());
+        scheduler.scheduleWithFixedDelay(this::checkHeights, 0, HEALTH_CHECK_SECONDS, TimeUnit.SECONDS);
+        logger.info("rpc node pool started with " + nodes.size() + " nodes");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    public List<RpcNode> getNodes() {
+        return nodes;
+    }
+
+    @Override
+    public <T extends Response> T send(Request request, Class<T> responseType) throws IOException {
+        RpcPriority priority = RpcPriority.of(request.getMethod());
+        NodeCall<T> call = node -> checkRateLimited(node.getService().send(request, responseType));
+        if (!isBroadcast(request.getMethod())) {
+            return execute(candidates(), priority, 1, call, true);
+        }
+        if (BROADCAST_PRIMARY.equals(BROADCAST) || nodes.size() == 1) {
+            return execute(configuredOrder(), priority, 1, call, false);
+        }
+        return broadcast(priority, call);
+    }
+
+    @Override
+    public <T extends Response> CompletableFuture<T> sendAsync(Request request, Class<T> responseType) {
+        RpcPriority priority = RpcPriority.of(request.getMethod());
+        return Async.run(() -> RpcPriority.with(priority, () -> send(request, responseType)));
+    }
+
+    /**
+     * 在最优节点上执行请求,网络错误或限流等待超时时换下一个节点
+     *
+     * @param priority 请求优先级
+     * @param permits  包含的请求个数,批量请求按个数限流
+     * @param call     对单个节点的请求
+     * @return 第一个成功节点的结果
+     * @throws IOException 所有节点都失败
+     */
+    public <R> R execute(RpcPriority priority, int permits, NodeCall<R> call) throws IOException {
+        return execute(candidates(), priority, permits, call, true);
+    }
+
+    /**
+     * 发送包含广播交易的请求,按配置顺序发给第一个可用节点,只在确定未发出时换节点
+     */
+    public <R> R executeSend(RpcPriority priority, int permits, NodeCall<R> call) throws IOException {
+        return execute(configuredOrder(), priority, permits, call, false);
+    }
+
+    /**
+     * @param idempotent 可以重复发送,为false时只在确定未发出时换节点
+     */
+    private <R> R execute(List<RpcNode> targets, RpcPriority priority, int permits, NodeCall<R> call,
+                          boolean idempotent) throws IOException {
+        IOException failure = null;
+        for (int i = 0; i < targets.size(); i++) {
+            RpcNode node = targets.get(i);
+            // 还有其他节点可选时只短暂等待配额
+            long waitMillis = i < targets.size() - 1 ? FAILOVER_WAIT_MILLIS : ACQUIRE_TIMEOUT_MILLIS;
+            try {
+                return invoke(node, priority, permits, waitMillis, call);
+            } catch (IOException e) {
+                logger.warn("rpc node " + node.getHost() + " failed: " + e.getMessage());
+                if (!idempotent && !isNotSent(e)) {
+                    throw e;
+                }
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * 并发发送到所有节点,返回第一个成功的响应;都被拒绝时返回第一个拒绝的响应
+     */
+    private <T extends Response> T broadcast(RpcPriority priority, NodeCall<T> call) throws IOException {
+        List<RpcNode> targets = nodes;
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(targets.size());
+        AtomicReference<T> rejected = new AtomicReference<>();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (RpcNode node : targets) {
+            Async.run(() -> invoke(node, priority, 1, ACQUIRE_TIMEOUT_MILLIS, call)).whenComplete((response, e) -> {
+                if (e == null && !response.hasError()) {
+                    result.complete(response);
+                } else if (e == null) {
+                    rejected.compareAndSet(null, response);
+                } else {
+                    logger.warn("broadcast to " + node.getHost() + " failed: " + e.getMessage());
+                    failure.compareAndSet(null, e);
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    if (rejected.get() != null) {
+                        result.complete(rejected.get());
+                    } else {
+                        result.completeExceptionally(failure.get());
+                    }
+                }
+            });
+        }
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            while (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    private <R> R invoke(RpcNode node, RpcPriority priority, int permits, long waitMillis, NodeCall<R> call) throws IOException {
+        NodeLimiter limiter = node.getLimiter();
+        try {
+            if (!limiter.acquire(priority, permits, waitMillis)) {
+                throw new AcquireTimeoutException("rate limit wait timeout, priority " + priority);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for rate limit");
+        }
+        boolean overloaded = false;
+        long start = System.nanoTime();
+        try {
+            R result = call.call(node);
+            node.recordSuccess(System.nanoTime() - start);
+            return result;
+        } catch (IOException e) {
+            overloaded = isOverloaded(e);
+            node.recordFailure(COOLDOWN_MILLIS);
+            throw e;
+        } catch (ClientConnectionException e) {
+            // web3j的HttpService对非2xx响应抛出的运行时异常,同样换节点
+            node.recordFailure(COOLDOWN_MILLIS);
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            limiter.release(overloaded);
+        }
+    }
+
+    /**
+     * 节点以JSON-RPC错误返回的限流当作网络错误处理,换节点重试
+     */
+    private static <T extends Response> T checkRateLimited(T response) throws IOException {
+        if (response.hasError() && response.getError().getCode() == RATE_LIMITED_CODE) {
+            throw new RateLimitedException("rate limited: " + response.getError().getMessage());
+        }
+        return response;
+    }
+
+    private static boolean isOverloaded(IOException e) {
+        return e instanceof SocketTimeoutException || e instanceof RateLimitedException
+                || e instanceof HttpStatusException && ((HttpStatusException) e).getCode() == TOO_MANY_REQUESTS;
+    }
+
+    /**
+     * 确定请求没有到达节点
+     */
+    private static boolean isNotSent(IOException e) {
+        return e instanceof AcquireTimeoutException || e instanceof ConnectException || e instanceof UnknownHostException;
+    }
+
+    private List<RpcNode> candidates() {
+        return ordered(true);
+    }
+
+    private List<RpcNode> configuredOrder() {
+        return ordered(false);
+    }
+
+    /**
+     * 可用节点排在前,落后或退避中的节点排在最后作为兜底
+     *
+     * @param byScore 按评分排序,否则保持配置顺序
+     */
+    private List<RpcNode> ordered(boolean byScore) {
+        long best = bestBlockNumber();
+        List<RpcNode> available = new ArrayList<>(nodes.size());
+        List<RpcNode> excluded = new ArrayList<>();
+        for (RpcNode node : nodes) {
+            if (node.isCoolingDown() || isLagging(node, best)) {
+                excluded.add(node);
+            } else {
+                available.add(node);
+            }
+        }
+        if (byScore) {
+            Comparator<RpcNode> comparator = Comparator.comparingDouble(RpcNode::score);
+            available.sort(comparator);
+            excluded.sort(comparator);
+        }
+        available.addAll(excluded);
+        return available;
+    }
+
+    private boolean isLagging(RpcNode node, long best) {
+        return node.getBlockNumber() >= 0 && best - node.getBlockNumber() > MAX_BLOCK_LAG;
+    }
+
+    private long bestBlockNumber() {
+        long best = -1;
+        for (RpcNode node : nodes) {
+            best = Math.max(best, node.getBlockNumber());
+        }
+        return best;
+    }
+
+    private void checkHeights() {
+        for (RpcNode node : nodes) {
+            try {
+                // 健康检查不占用限流配额
+                long start = System.nanoTime();
+                EthBlockNumber response = new Request<>("eth_blockNumber", Collections.<String>emptyList(),
+                        node.getService(), EthBlockNumber.class).send();
+                if (response.hasError()) {
+                    node.recordFailure(COOLDOWN_MILLIS);
+                } else {
+                    node.recordSuccess(System.nanoTime() - start);
+                    node.setBlockNumber(response.getBlockNumber().longValue());
+                }
+            } catch (Exception e) {
+                node.recordFailure(COOLDOWN_MILLIS);
+                logger.debug("rpc node " + node.getHost() + " health check failed: " + e.getMessage());
+            }
+        }
+        logger.debug("rpc nodes " + nodes);
+    }
+
+    static boolean isBroadcast(String method) {
+        return "eth_sendRawTransaction".equals(method) || "eth_sendTransaction".equals(method);
+    }
+
+    public interface NodeCall<R> {
+        R call(RpcNode node) throws IOException;
+    }
+
+    private static class AcquireTimeoutException extends IOException {
+        private AcquireTimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    private static class RateLimitedException extends IOException {
+        private RateLimitedException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.funtime.eth.rpc;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * RPC请求优先级,节点限流时优先级高的请求先获得配额
+ * <p>
+ * 默认按方法名区分,批量回填等后台任务可以在当前线程上覆盖.
+ */
+public enum RpcPriority {
+    /**
+     * 发送交易及发送前的nonce、gas查询
+     */
+    SEND,
+    /**
+     * 跟踪新区块和交易确认
+     */
+    CONFIRMATION,
+    /**
+     * 余额等普通查询
+     */
+    READ,
+    /**
+     * 历史区块回填
+     */
+    BACKFILL;
+
+    private static final Map<String, RpcPriority> METHODS = ImmutableMap.<String, RpcPriority>builder()
+            .put("eth_sendRawTransaction", SEND)
+            .put("eth_sendTransaction", SEND)
+            .put("eth_getTransactionCount", SEND)
+            .put("eth_estimateGas", SEND)
+            .put("eth_gasPrice", SEND)
+            .put("eth_getTransactionReceipt", CONFIRMATION)
+            .put("eth_getTransactionByHash", CONFIRMATION)
+            .put("eth_blockNumber", CONFIRMATION)
+            .put("eth_getBlockByNumber", CONFIRMATION)
+            .put("eth_getBlockByHash", CONFIRMATION)
+            .build();
+
+    private static final ThreadLocal<RpcPriority> OVERRIDE = new ThreadLocal<>();
+
+    /**
+     * 当前线程覆盖的优先级
+     *
+     * @return 未覆盖时返回null
+     */
+    public static RpcPriority current() {
+        return OVERRIDE.get();
+    }
+
+    /**
+     * 请求的优先级,当前线程覆盖的优先级优先
+     */
+    public static RpcPriority of(String method) {
+        RpcPriority priority = OVERRIDE.get();
+        if (priority != null) {
+            return priority;
+        }
+        return METHODS.getOrDefault(method, READ);
+    }
+
+    /**
+     * 在当前线程以指定优先级执行
+     *
+     * @param priority 优先级,为null时不覆盖
+     * @param action   期间发出的请求都使用该优先级
+     */
+    public static <T> T with(RpcPriority priority, Action<T> action) throws IOException {
+        RpcPriority previous = OVERRIDE.get();
+        if (priority != null) {
+            OVERRIDE.set(priority);
+        }
+        try {
+            return action.run();
+        } finally {
+            if (previous == null) {
+                OVERRIDE.remove();
+            } else {
+                OVERRIDE.set(previous);
+            }
+        }
+    }
+
+    public interface Action<T> {
+        T run() throws IOException;
+    }
+}
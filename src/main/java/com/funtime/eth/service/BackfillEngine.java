@@ -0,0 +1,175 @@
+package com.funtime.eth.service;
+
+import com.funtime.eth.rpc.JsonRpcBatchClient;
+import com.funtime.eth.rpc.RpcPriority;
+import com.funtime.eth.utils.Constants;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.DefaultBlockParameterNumber;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.methods.request.EthFilter;
+import org.web3j.protocol.core.methods.response.EthBlock;
+import org.web3j.protocol.core.methods.response.EthLog;
+import org.web3j.protocol.core.methods.response.Log;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 区块区间扫描
+ * <p>
+ * 区间按{@code config.backfill.chunk_size}拆分,每段区块用一次JSON-RPC批量请求获取完整交易,
+ * 同时用一次eth_getLogs获取该段的Transfer日志.最多{@code config.backfill.max_in_flight}段同时请求,
+ * 结果按区块顺序交给处理器,前面的段未返回时后面的段只会等待,不会乱序.
+ */
+@Component
+public class BackfillEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(BackfillEngine.class);
+
+    @Value("${config.backfill.chunk_size:20}")
+    public int CHUNK_SIZE;
+
+    @Value("${config.backfill.max_in_flight:8}")
+    public int MAX_IN_FLIGHT;
+
+    private final Web3j web3j;
+    private final JsonRpcBatchClient batchClient;
+
+    private ExecutorService executor;
+
+    public BackfillEngine(Web3j web3j, JsonRpcBatchClient batchClient) {
+        this.web3j = web3j;
+        this.batchClient = batchClient;
+    }
+
+    @PostConstruct
+    public void init() {
+        executor = Executors.newFixedThreadPool(MAX_IN_FLIGHT,
+                new ThreadFactoryBuilder().setNameFormat("backfill-%d").setDaemon(true).build());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 顺序处理区间内的所有区块
+     *
+     * @param from      起始区块,包含
+     * @param to        结束区块,包含
+     * @param processor 区块处理器
+     * @throws IOException 节点查询或处理失败,此前已完成的段不受影响
+     */
+    public void scan(long from, long to, BlockProcessor processor) throws IOException {
+        // 调用方指定的RPC优先级传递到获取线程
+        RpcPriority priority = RpcPriority.current();
+        Deque<CompletableFuture<Chunk>> window = new ArrayDeque<>();
+        long next = from;
+        try {
+            while (next <= to || !window.isEmpty()) {
+                while (next <= to && window.size() < MAX_IN_FLIGHT) {
+                    long chunkFrom = next;
+                    long chunkTo = Math.min(to, next + CHUNK_SIZE - 1);
+                    window.addLast(CompletableFuture.supplyAsync(() -> {
+                        try {
+                            return RpcPriority.with(priority, () -> fetch(chunkFrom, chunkTo));
+                        } catch (IOException e) {
+                            throw new CompletionException(e);
+                        }
+                    }, executor));
+                    next = chunkTo + 1;
+                }
+                Chunk chunk = window.removeFirst().join();
+                for (EthBlock.Block block : chunk.blocks) {
+                    List<Log> logs = chunk.logs.get(block.getNumber().longValue());
+                    processor.process(block, logs == null ? Collections.<Log>emptyList() : logs);
+                }
+                processor.onChunkDone(chunk.to);
+            }
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            for (CompletableFuture<Chunk> future : window) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private Chunk fetch(long from, long to) throws IOException {
+        EthFilter filter = new EthFilter(new DefaultBlockParameterNumber(from), new DefaultBlockParameterNumber(to),
+                Collections.<String>emptyList());
+        filter.addSingleTopic(Constants.TRANSFER_EVENT_TOPIC);
+        CompletableFuture<EthLog> logsFuture = web3j.ethGetLogs(filter).sendAsync();
+
+        List<Request<?, EthBlock>> requests = new ArrayList<>();
+        for (long number = from; number <= to; number++) {
+            requests.add(web3j.ethGetBlockByNumber(new DefaultBlockParameterNumber(number), true));
+        }
+        List<EthBlock> ethBlocks = batchClient.send(requests, EthBlock.class);
+
+        Chunk chunk = new Chunk(to);
+        for (int i = 0; i < ethBlocks.size(); i++) {
+            EthBlock ethBlock = ethBlocks.get(i);
+            if (ethBlock.hasError() || ethBlock.getBlock() == null) {
+                throw new IOException("block " + (from + i) + " not available");
+            }
+            chunk.blocks.add(ethBlock.getBlock());
+        }
+        EthLog ethLog = logsFuture.join();
+        if (ethLog.hasError()) {
+            throw new IOException(ethLog.getError().getMessage());
+        }
+        for (EthLog.LogResult result : ethLog.getLogs()) {
+            Log log = (Log) result.get();
+            chunk.logs.computeIfAbsent(log.getBlockNumber().longValue(), key -> new ArrayList<>()).add(log);
+        }
+        logger.debug("fetched blocks " + from + " - " + to);
+        return chunk;
+    }
+
+    public interface BlockProcessor {
+        /**
+         * 处理一个包含完整交易的区块
+         *
+         * @param block 区块
+         * @param logs  该区块的Transfer日志
+         */
+        void process(EthBlock.Block block, List<Log> logs) throws IOException;
+
+        /**
+         * 一段区块处理完成,可在此保存进度
+         *
+         * @param lastBlock 该段最后一个区块
+         */
+        default void onChunkDone(long lastBlock) throws IOException {
+        }
+    }
+
+    private static class Chunk {
+        private final long to;
+        private final List<EthBlock.Block> blocks = new ArrayList<>();
+        private final Map<Long, List<Log>> logs = new HashMap<>();
+
+        private Chunk(long to) {
+            this.to = to;
+        }
+    }
+}
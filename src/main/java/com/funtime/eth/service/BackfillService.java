@@ -0,0 +1,219 @@
+package com.funtime.eth.service;
+
+import com.alibaba.fastjson.JSON;
+import com.funtime.eth.model.BackfillJob;
+import com.funtime.eth.rpc.RpcPriority;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.web3j.protocol.core.methods.response.EthBlock;
+import org.web3j.protocol.core.methods.response.Log;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 历史区块回填
+ * <p>
+ * 同一时间只运行一个任务,每处理完一段区块把进度写入{@code config.indexer.path}下的backfill.json,
+ * 服务重启后未完成的任务从记录的位置继续.回填范围不超过实时索引的checkpoint.
+ * 任务完成后,回填范围覆盖地址完整历史(from为0或不晚于调用方给出的最早交易区块)且覆盖到开始跟踪之前的地址
+ * 标记为已回填,此后由本地索引提供交易记录.
+ */
+@Service
+public class BackfillService {
+
+    private static final Logger logger = LoggerFactory.getLogger(BackfillService.class);
+
+    private static final String JOB_NAME = "backfill.json";
+
+    @Value("${config.indexer.enabled:false}")
+    public boolean ENABLED;
+
+    @Value("${config.indexer.path:/root/dev/wallet/indexer/}")
+    public String INDEXER_PATH;
+
+    private final BackfillEngine backfillEngine;
+    private final ChainIndexer chainIndexer;
+    private final TransferStore transferStore;
+    private final WatchedAddressRegistry watchedAddressRegistry;
+
+    private ExecutorService executor;
+
+    private volatile BackfillJob job;
+
+    public BackfillService(BackfillEngine backfillEngine, ChainIndexer chainIndexer, TransferStore transferStore,
+                           WatchedAddressRegistry watchedAddressRegistry) {
+        this.backfillEngine = backfillEngine;
+        this.chainIndexer = chainIndexer;
+        this.transferStore = transferStore;
+        this.watchedAddressRegistry = watchedAddressRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        executor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("backfill-job-%d").setDaemon(true).build());
+        File file = new File(INDEXER_PATH, JOB_NAME);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            job = JSON.parseObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8), BackfillJob.class);
+            if (ENABLED && BackfillJob.RUNNING.equals(job.getStatus())) {
+                logger.info("resume backfill from block " + job.getNext() + " to " + job.getTo());
+                executor.execute(this::run);
+            }
+        } catch (IOException e) {
+            logger.error("load backfill job error", e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 开始回填
+     *
+     * @param request from必填;to为空时回填到实时索引的checkpoint;addresses为空时回填所有跟踪地址;
+     *                from大于0时通过firstBlocks给出地址最早交易所在区块,否则任务完成后不标记为已回填
+     * @return 任务状态
+     */
+    public synchronized BackfillJob start(BackfillJob request) throws IOException {
+        if (!ENABLED) {
+            throw new IllegalStateException("indexer is disabled");
+        }
+        if (job != null && BackfillJob.RUNNING.equals(job.getStatus())) {
+            throw new IllegalStateException("backfill already running, next block " + job.getNext());
+        }
+        long checkpoint = transferStore.getCheckpoint();
+        if (request.getFrom() == null || request.getFrom() < 0 || request.getFrom() > checkpoint) {
+            throw new IllegalArgumentException("from must be between 0 and " + checkpoint);
+        }
+        BackfillJob next = new BackfillJob();
+        next.setFrom(request.getFrom());
+        next.setTo(request.getTo() == null ? checkpoint : Math.min(request.getTo(), checkpoint));
+        next.setNext(request.getFrom());
+        next.setAddresses(request.getAddresses());
+        if (request.getFirstBlocks() != null) {
+            Map<String, Long> firstBlocks = new HashMap<>();
+            request.getFirstBlocks().forEach((address, block) -> firstBlocks.put(address.toLowerCase(), block));
+            next.setFirstBlocks(firstBlocks);
+        }
+        next.setStatus(BackfillJob.RUNNING);
+        job = next;
+        save();
+        executor.execute(this::run);
+        return getJob();
+    }
+
+    /**
+     * 当前或最近一次任务
+     *
+     * @return 任务状态,没有任务时返回null
+     */
+    public BackfillJob getJob() {
+        BackfillJob current = job;
+        if (current == null) {
+            return null;
+        }
+        BackfillJob copy = new BackfillJob();
+        BeanUtils.copyProperties(current, copy);
+        return copy;
+    }
+
+    private void run() {
+        BackfillJob current = job;
+        Set<String> addresses = null;
+        if (current.getAddresses() != null && !current.getAddresses().isEmpty()) {
+            addresses = new HashSet<>();
+            for (String address : current.getAddresses()) {
+                addresses.add(address.toLowerCase());
+            }
+        }
+        Set<String> filter = addresses;
+        long started = System.currentTimeMillis();
+        try {
+            // 回填使用最低的RPC优先级,节点限流时让位于发送交易和实时查询
+            RpcPriority.with(RpcPriority.BACKFILL, () -> {
+                backfillEngine.scan(current.getNext(), current.getTo(), new BackfillEngine.BlockProcessor() {
+                    @Override
+                    public void process(EthBlock.Block block, List<Log> logs) throws IOException {
+                        chainIndexer.indexHistorical(block, logs, filter);
+                    }
+
+                    @Override
+                    public void onChunkDone(long lastBlock) throws IOException {
+                        current.setNext(lastBlock + 1);
+                        save();
+                    }
+                });
+                return null;
+            });
+            markBackfilled(current, filter);
+            current.setStatus(BackfillJob.COMPLETED);
+            logger.info("backfill " + current.getFrom() + " - " + current.getTo() + " completed in "
+                    + (System.currentTimeMillis() - started) + "ms");
+        } catch (Exception e) {
+            logger.error("backfill failed at block " + current.getNext(), e);
+            current.setStatus(BackfillJob.FAILED);
+            current.setError(e.getMessage());
+        }
+        try {
+            save();
+        } catch (IOException e) {
+            logger.error("save backfill job error", e);
+        }
+    }
+
+    /**
+     * 回填范围从地址最早交易覆盖到开始跟踪前一个区块时,地址历史已完整
+     */
+    private void markBackfilled(BackfillJob current, Set<String> filter) throws IOException {
+        List<String> completed = new ArrayList<>();
+        for (String address : filter != null ? filter : watchedAddressRegistry.getAddresses()) {
+            Long since = watchedAddressRegistry.getSince(address);
+            if (since != null && since - 1 <= current.getTo() && coversFirstBlock(current, address)) {
+                completed.add(address);
+            }
+        }
+        watchedAddressRegistry.markBackfilled(completed);
+    }
+
+    private static boolean coversFirstBlock(BackfillJob current, String address) {
+        if (current.getFrom() == 0) {
+            return true;
+        }
+        Long firstBlock = current.getFirstBlocks() == null ? null : current.getFirstBlocks().get(address);
+        return firstBlock != null && firstBlock >= current.getFrom();
+    }
+
+    private synchronized void save() throws IOException {
+        job.setUpdatedAt(System.currentTimeMillis());
+        File dir = new File(INDEXER_PATH);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("create indexer dir failed: " + dir);
+        }
+        File tmp = new File(dir, JOB_NAME + ".tmp");
+        Files.write(tmp.toPath(), JSON.toJSONString(job).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), new File(dir, JOB_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,187 @@
+package com.funtime.eth.service;
+
+import com.funtime.eth.event.ChainReorgEvent;
+import com.funtime.eth.event.NewHeadEvent;
+import com.funtime.eth.utils.Constants;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.DefaultBlockParameterNumber;
+import org.web3j.protocol.core.methods.request.EthFilter;
+import org.web3j.protocol.core.methods.response.EthBlock;
+import org.web3j.protocol.core.methods.response.EthLog;
+import org.web3j.protocol.core.methods.response.Log;
+import org.web3j.protocol.core.methods.response.Transaction;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 余额缓存
+ * <p>
+ * 余额只会在新区块产生时变化,缓存按(地址,代币)保存并记录所属区块高度.默认每个新区块清空缓存;
+ * 开启{@code config.balance_cache.touched_only}后,只失效该区块交易和Transfer日志涉及的地址,
+ * 合约内部转账的ETH无法从交易列表中识别,对这类地址应关闭该选项.落后过多时新区块跟踪会跳过中间的区块,
+ * 此时无法知道被跳过的区块涉及哪些地址,全部失效.
+ */
+@Component
+public class BalanceCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(BalanceCache.class);
+
+    /**
+     * ETH余额使用的代币标识
+     */
+    private static final String ETHER = "eth";
+
+    @Value("${config.balance_cache.enabled:true}")
+    public boolean ENABLED;
+
+    @Value("${config.balance_cache.touched_only:false}")
+    public boolean TOUCHED_ONLY;
+
+    @Value("${config.balance_cache.max_size:100000}")
+    public long MAX_SIZE;
+
+    private final Web3j web3j;
+    private final BlockHeadTracker blockHeadTracker;
+
+    private Cache<String, Entry> cache;
+
+    /**
+     * 最近处理的区块,用于发现被跳过的区块
+     */
+    private volatile long lastBlock = -1;
+
+    public BalanceCache(Web3j web3j, BlockHeadTracker blockHeadTracker) {
+        this.web3j = web3j;
+        this.blockHeadTracker = blockHeadTracker;
+    }
+
+    @PostConstruct
+    public void init() {
+        cache = CacheBuilder.newBuilder().maximumSize(MAX_SIZE).build();
+    }
+
+    /**
+     * 读取余额
+     *
+     * @param address         钱包地址
+     * @param contractAddress 代币合约地址,ETH余额传null
+     * @param loader          未命中时从节点查询
+     * @return 最小单位的余额
+     * @throws IOException 节点查询失败
+     */
+    public BigInteger get(String address, String contractAddress, Loader loader) throws IOException {
+        long head = blockHeadTracker.getHead();
+        if (!ENABLED || head < 0) {
+            return loader.load();
+        }
+        String key = key(address, contractAddress);
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null && (TOUCHED_ONLY || entry.blockNumber == head)) {
+            return entry.balance;
+        }
+        BigInteger balance = loader.load();
+        // 查询期间出现新区块时结果可能属于旧区块,不缓存
+        if (balance != null && blockHeadTracker.getHead() == head) {
+            cache.put(key, new Entry(balance, head));
+        }
+        return balance;
+    }
+
+    @EventListener
+    public void onNewHead(NewHeadEvent event) {
+        if (!ENABLED) {
+            return;
+        }
+        long previous = lastBlock;
+        lastBlock = event.getBlockNumber();
+        if (!TOUCHED_ONLY || previous >= 0 && event.getBlockNumber() > previous + 1) {
+            cache.invalidateAll();
+            return;
+        }
+        try {
+            Set<String> touched = touchedAddresses(event.getBlock());
+            int before = (int) cache.size();
+            for (Map.Entry<String, Entry> cached : cache.asMap().entrySet()) {
+                String[] parts = cached.getKey().split("\\|");
+                if (touched.contains(parts[0]) || touched.contains(parts[1])) {
+                    cache.invalidate(cached.getKey());
+                }
+            }
+            logger.debug("block " + event.getBlockNumber() + " touched " + touched.size() + " addresses, cache " + before + " -> " + cache.size());
+        } catch (Exception e) {
+            logger.warn("collect touched addresses error, clear balance cache: " + e.getMessage());
+            cache.invalidateAll();
+        }
+    }
+
+    @EventListener
+    public void onReorg(ChainReorgEvent event) {
+        // 被替换区块中的交易无法逐个还原,全部失效
+        cache.invalidateAll();
+    }
+
+    private Set<String> touchedAddresses(EthBlock.Block header) throws IOException {
+        DefaultBlockParameterNumber number = new DefaultBlockParameterNumber(header.getNumber());
+        Set<String> touched = new HashSet<>();
+        touched.add(header.getMiner().toLowerCase());
+
+        EthBlock ethBlock = web3j.ethGetBlockByNumber(number, true).send();
+        for (EthBlock.TransactionResult result : ethBlock.getBlock().getTransactions()) {
+            Transaction transaction = (Transaction) result.get();
+            touched.add(transaction.getFrom().toLowerCase());
+            if (transaction.getTo() != null) {
+                touched.add(transaction.getTo().toLowerCase());
+            }
+        }
+
+        EthFilter filter = new EthFilter(number, number, Collections.<String>emptyList());
+        filter.addSingleTopic(Constants.TRANSFER_EVENT_TOPIC);
+        EthLog ethLog = web3j.ethGetLogs(filter).send();
+        if (ethLog.hasError()) {
+            throw new IOException(ethLog.getError().getMessage());
+        }
+        for (EthLog.LogResult result : ethLog.getLogs()) {
+            Log log = (Log) result.get();
+            touched.add(log.getAddress().toLowerCase());
+            for (int i = 1; i < log.getTopics().size() && i < 3; i++) {
+                touched.add(topicToAddress(log.getTopics().get(i)));
+            }
+        }
+        return touched;
+    }
+
+    private static String topicToAddress(String topic) {
+        return ("0x" + topic.substring(topic.length() - 40)).toLowerCase();
+    }
+
+    private static String key(String address, String contractAddress) {
+        return address.toLowerCase() + "|" + (contractAddress == null ? ETHER : contractAddress.toLowerCase());
+    }
+
+    public interface Loader {
+        BigInteger load() throws IOException;
+    }
+
+    private static class Entry {
+        private final BigInteger balance;
+        private final long blockNumber;
+
+        private Entry(BigInteger balance, long blockNumber) {
+            this.balance = balance;
+            this.blockNumber = blockNumber;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.funtime.eth.service;
+
+import com.funtime.eth.model.BatchTransactionResult;
+import com.funtime.eth.model.SignedTransaction;
+import com.funtime.eth.model.TokenTransaction;
+import com.funtime.eth.model.TransactionFees;
+import com.funtime.eth.rpc.JsonRpcBatchClient;
+import com.funtime.eth.utils.Constants;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.methods.response.EthSendTransaction;
+import org.web3j.utils.Convert;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 批量转账
+ * <p>
+ * 按发送地址一次性预留连续nonce,多核并行签名,再通过JSON-RPC批量请求广播,
+ * 返回与请求顺序一致的逐笔结果.广播按批次发送,某一批次请求失败时其中的交易可能已到达节点,
+ * 按unknown返回签名得到的hash并跟踪确认;同一发送地址某个nonce失败后,后续nonce不再广播并回收.
+ * 单次最多{@code config.batch_transfer.max_size}笔.
+ */
+@Service
+public class BatchTransactionService {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchTransactionService.class);
+
+    @Value("${config.batch_transfer.max_size:500}")
+    public int MAX_SIZE;
+
+    private final Web3j web3j;
+    private final NonceManager nonceManager;
+    private final TokenService tokenService;
+    private final JsonRpcBatchClient batchClient;
+    private final ConfirmationTracker confirmationTracker;
+    private final TransactionSigner transactionSigner;
+    private final GasLimitEstimator gasLimitEstimator;
+    private final PendingTransactionMonitor pendingTransactionMonitor;
+
+    private final ExecutorService signExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+    public BatchTransactionService(Web3j web3j, NonceManager nonceManager, TokenService tokenService, JsonRpcBatchClient batchClient,
+                                   ConfirmationTracker confirmationTracker, TransactionSigner transactionSigner,
+                                   GasLimitEstimator gasLimitEstimator, PendingTransactionMonitor pendingTransactionMonitor) {
+        this.web3j = web3j;
+        this.nonceManager = nonceManager;
+        this.tokenService = tokenService;
+        this.batchClient = batchClient;
+        this.confirmationTracker = confirmationTracker;
+        this.transactionSigner = transactionSigner;
+        this.gasLimitEstimator = gasLimitEstimator;
+        this.pendingTransactionMonitor = pendingTransactionMonitor;
+    }
+
+    /**
+     * 批量转账,contractAddress为空时转ETH,否则为代币转账
+     *
+     * @param transactions 转账列表
+     * @return 逐笔结果
+     */
+    public List<BatchTransactionResult> transfer(List<TokenTransaction> transactions) {
+        if (transactions.size() > MAX_SIZE) {
+            throw new IllegalArgumentException("too many transactions, max " + MAX_SIZE);
+        }
+        List<BatchTransactionResult> results = new ArrayList<>(transactions.size());
+        Map<String, List<Integer>> bySender = new LinkedHashMap<>();
+        for (int i = 0; i < transactions.size(); i++) {
+            TokenTransaction transaction = transactions.get(i);
+            BatchTransactionResult result = new BatchTransactionResult();
+            result.setIndex(i);
+            result.setFromAddress(transaction.getFromAddress());
+            result.setToAddress(transaction.getToAddress());
+            result.setContractAddress(transaction.getContractAddress());
+            result.setBusinesCode(transaction.getBusinesCode());
+            results.add(result);
+            if (StringUtils.isEmpty(transaction.getFromAddress())) {
+                fail(result, "fromAddress is required");
+                continue;
+            }
+            bySender.computeIfAbsent(transaction.getFromAddress().toLowerCase(), key -> new ArrayList<>()).add(i);
+        }
+
+        // 按发送地址分配连续nonce
+        for (List<Integer> indexes : bySender.values()) {
+            String fromAddress = transactions.get(indexes.get(0)).getFromAddress();
+            try {
+                List<BigInteger> nonces = nonceManager.reserve(fromAddress, indexes.size());
+                for (int i = 0; i < indexes.size(); i++) {
+                    results.get(indexes.get(i)).setNonce(nonces.get(i));
+                }
+            } catch (IOException e) {
+                logger.error("reserve nonce error, address " + fromAddress, e);
+                for (Integer index : indexes) {
+                    fail(results.get(index), e.getMessage());
+                }
+            }
+        }
+
+        // 并行签名
+        List<CompletableFuture<SignedTransaction>> signed = new ArrayList<>(transactions.size());
+        for (int i = 0; i < transactions.size(); i++) {
+            TokenTransaction transaction = transactions.get(i);
+            BatchTransactionResult result = results.get(i);
+            if (result.getNonce() == null) {
+                signed.add(CompletableFuture.completedFuture(null));
+            } else {
+                signed.add(CompletableFuture.supplyAsync(() -> sign(transaction, result.getNonce()), signExecutor));
+            }
+        }
+
+        // 同一发送地址的nonce按请求顺序递增,某个nonce失败后不再广播该地址后续的交易
+        Map<String, BigInteger> halted = new HashMap<>();
+        List<BatchTransactionResult> pending = new ArrayList<>();
+        List<SignedTransaction> pendingSigned = new ArrayList<>();
+        for (int i = 0; i < transactions.size(); i++) {
+            BatchTransactionResult result = results.get(i);
+            if (result.getNonce() == null) {
+                continue;
+            }
+            try {
+                pendingSigned.add(signed.get(i).join());
+                pending.add(result);
+            } catch (Exception e) {
+                logger.error("sign transaction error, index " + i, e);
+                fail(result, "sign error: " + e.getMessage());
+                nonceManager.release(result.getFromAddress(), result.getNonce());
+                halt(halted, result);
+            }
+        }
+
+        broadcast(transactions, pending, pendingSigned, halted);
+        return results;
+    }
+
+    private void broadcast(List<TokenTransaction> transactions, List<BatchTransactionResult> pending,
+                           List<SignedTransaction> pendingSigned, Map<String, BigInteger> halted) {
+        // 逐批发送,已广播批次的结果不受后续批次失败影响
+        int position = 0;
+        while (position < pending.size()) {
+            List<BatchTransactionResult> chunk = new ArrayList<>();
+            List<SignedTransaction> chunkSigned = new ArrayList<>();
+            List<Request<?, EthSendTransaction>> requests = new ArrayList<>();
+            while (position < pending.size() && requests.size() < batchClient.RPC_BATCH_SIZE) {
+                BatchTransactionResult result = pending.get(position);
+                SignedTransaction signedTransaction = pendingSigned.get(position);
+                position++;
+                BigInteger failedNonce = halted.get(result.getFromAddress().toLowerCase());
+                if (failedNonce != null && result.getNonce().compareTo(failedNonce) > 0) {
+                    fail(result, "not sent, an earlier nonce of the sender failed");
+                    nonceManager.release(result.getFromAddress(), result.getNonce());
+                    continue;
+                }
+                chunk.add(result);
+                chunkSigned.add(signedTransaction);
+                requests.add(web3j.ethSendRawTransaction(signedTransaction.getHexValue()));
+            }
+            if (requests.isEmpty()) {
+                continue;
+            }
+            List<EthSendTransaction> responses;
+            try {
+                responses = batchClient.send(requests, EthSendTransaction.class);
+            } catch (IOException e) {
+                // 请求可能已到达节点,按可能已发送处理并跟踪确认,避免调用方重复付款
+                logger.error("batch broadcast error, outcome unknown for " + requests.size() + " transactions", e);
+                for (int i = 0; i < chunk.size(); i++) {
+                    BatchTransactionResult result = chunk.get(i);
+                    result.setStatus(BatchTransactionResult.UNKNOWN);
+                    nonceManager.onSendFailure(result.getFromAddress(), result.getNonce(), null);
+                    track(transactions, result, chunkSigned.get(i));
+                    halt(halted, result);
+                }
+                continue;
+            }
+            for (int i = 0; i < chunk.size(); i++) {
+                if (!handle(transactions, chunk.get(i), chunkSigned.get(i), responses.get(i))) {
+                    halt(halted, chunk.get(i));
+                }
+            }
+        }
+        logger.info("batch broadcast " + pending.size() + " transactions");
+    }
+
+    /**
+     * @return 节点是否已接受交易
+     */
+    private boolean handle(List<TokenTransaction> transactions, BatchTransactionResult result,
+                           SignedTransaction signedTransaction, EthSendTransaction response) {
+        if (response.hasError() && !isKnown(response.getError().getMessage())) {
+            fail(result, response.getError().getMessage());
+            nonceManager.onSendFailure(result.getFromAddress(), result.getNonce(), response.getError().getMessage());
+            return false;
+        }
+        // 节点已有该交易时同样视为发送成功
+        nonceManager.sent(result.getFromAddress(), result.getNonce());
+        result.setStatus(BatchTransactionResult.SENT);
+        track(transactions, result, signedTransaction);
+        return true;
+    }
+
+    private void track(List<TokenTransaction> transactions, BatchTransactionResult result, SignedTransaction signedTransaction) {
+        result.setTransactionHash(signedTransaction.getTransactionHash());
+        confirmationTracker.register(signedTransaction.getTransactionHash(), result.getFromAddress(),
+                StringUtils.isEmpty(result.getContractAddress()) ? result.getToAddress() : result.getContractAddress(),
+                result.getBusinesCode());
+        gasLimitEstimator.track(signedTransaction.getTransactionHash(), signedTransaction.getTo(), signedTransaction.getData(),
+                signedTransaction.getGasLimit());
+        pendingTransactionMonitor.track(result.getFromAddress(), signedTransaction.getTo(), signedTransaction,
+                transactions.get(result.getIndex()).getPrivateKey(), result.getBusinesCode());
+    }
+
+    private static boolean isKnown(String errorMessage) {
+        String message = errorMessage.toLowerCase();
+        return message.contains("already known") || message.contains("known transaction");
+    }
+
+    /**
+     * 记录发送地址最小的失败nonce,更大的nonce不再广播
+     */
+    private static void halt(Map<String, BigInteger> halted, BatchTransactionResult result) {
+        halted.merge(result.getFromAddress().toLowerCase(), result.getNonce(), BigInteger::min);
+    }
+
+    private static void fail(BatchTransactionResult result, String error) {
+        result.setStatus(BatchTransactionResult.FAILED);
+        result.setError(error);
+    }
+
+    private SignedTransaction sign(TokenTransaction transaction, BigInteger nonce) {
+        TransactionFees fees = transactionSigner.fees(transaction.getWei());
+        if (StringUtils.isEmpty(transaction.getContractAddress())) {
+            BigInteger value = Convert.toWei(transaction.getAmount(), Convert.Unit.ETHER).toBigInteger();
+            BigInteger gasLimit = gasLimitEstimator.estimate(transaction.getFromAddress(), transaction.getToAddress(), value, "",
+                    Constants.GAS_LIMIT_ETHER_TX);
+            return transactionSigner.sign(nonce, fees, gasLimit, transaction.getToAddress(), value, "", transaction.getPrivateKey());
+        }
+        if (!tokenService.applyDecimals(transaction)) {
+            throw new IllegalStateException("token metadata unavailable, contract " + transaction.getContractAddress());
+        }
+        String data = tokenService.encodeTransferData(transaction);
+        BigInteger gasLimit = gasLimitEstimator.estimate(transaction.getFromAddress(), transaction.getContractAddress(),
+                BigInteger.ZERO, data, Constants.GAS_LIMIT_TOKEN_TX);
+        return transactionSigner.sign(nonce, fees, gasLimit, transaction.getContractAddress(), BigInteger.ZERO, data,
+                transaction.getPrivateKey());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        signExecutor.shutdown();
+    }
+}
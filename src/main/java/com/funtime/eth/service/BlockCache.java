@@ -0,0 +1,177 @@
+package com.funtime.eth.service;
+
+import com.funtime.eth.event.ChainReorgEvent;
+import com.funtime.eth.event.NewHeadEvent;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.DefaultBlockParameterNumber;
+import org.web3j.protocol.core.methods.response.EthBlock;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * 区块头缓存
+ * <p>
+ * 只缓存不含交易体的区块头,按高度和hash索引.最近{@code config.block_cache.reorg_depth}个区块可能被回滚,
+ * 单独保存,发生链重组时丢弃被替换高度的记录;更早的区块视为已确定,进入不过期的LRU缓存.
+ */
+@Component
+public class BlockCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(BlockCache.class);
+
+    @Value("${config.block_cache.reorg_depth:12}")
+    public int REORG_DEPTH;
+
+    @Value("${config.block_cache.finalized_max_size:100000}")
+    public long FINALIZED_MAX_SIZE;
+
+    private final Web3j web3j;
+    private final BlockHeadTracker blockHeadTracker;
+
+    private final ConcurrentSkipListMap<Long, EthBlock.Block> recent = new ConcurrentSkipListMap<>();
+
+    private Cache<Long, EthBlock.Block> finalized;
+
+    private Cache<String, Long> hashIndex;
+
+    public BlockCache(Web3j web3j, BlockHeadTracker blockHeadTracker) {
+        this.web3j = web3j;
+        this.blockHeadTracker = blockHeadTracker;
+    }
+
+    @PostConstruct
+    public void init() {
+        finalized = CacheBuilder.newBuilder().maximumSize(FINALIZED_MAX_SIZE).build();
+        hashIndex = CacheBuilder.newBuilder().maximumSize(FINALIZED_MAX_SIZE + REORG_DEPTH * 4).build();
+    }
+
+    /**
+     * 按高度查询区块头
+     *
+     * @param blockNumber 区块高度
+     * @return 区块头,不存在时返回null
+     * @throws IOException 节点查询失败
+     */
+    public EthBlock.Block getByNumber(long blockNumber) throws IOException {
+        EthBlock.Block block = cached(blockNumber);
+        if (block != null) {
+            return block;
+        }
+        EthBlock ethBlock = web3j.ethGetBlockByNumber(new DefaultBlockParameterNumber(blockNumber), false).send();
+        if (ethBlock.hasError()) {
+            throw new IOException(ethBlock.getError().getMessage());
+        }
+        block = ethBlock.getBlock();
+        if (block != null) {
+            put(block);
+        }
+        return block;
+    }
+
+    /**
+     * 按高度异步查询区块头,命中缓存时直接返回已完成的future
+     *
+     * @param blockNumber 区块高度
+     * @return 区块头,不存在时为null
+     */
+    public CompletableFuture<EthBlock.Block> getByNumberAsync(long blockNumber) {
+        EthBlock.Block block = cached(blockNumber);
+        if (block != null) {
+            return CompletableFuture.completedFuture(block);
+        }
+        return web3j.ethGetBlockByNumber(new DefaultBlockParameterNumber(blockNumber), false).sendAsync()
+                .thenApply(ethBlock -> {
+                    if (ethBlock.hasError()) {
+                        throw new CompletionException(new IOException(ethBlock.getError().getMessage()));
+                    }
+                    if (ethBlock.getBlock() != null) {
+                        put(ethBlock.getBlock());
+                    }
+                    return ethBlock.getBlock();
+                });
+    }
+
+    /**
+     * 按hash查询区块头
+     *
+     * @param blockHash 区块hash
+     * @return 区块头,不存在时返回null
+     * @throws IOException 节点查询失败
+     */
+    public EthBlock.Block getByHash(String blockHash) throws IOException {
+        Long blockNumber = hashIndex.getIfPresent(blockHash.toLowerCase());
+        if (blockNumber != null) {
+            EthBlock.Block block = cached(blockNumber);
+            if (block != null && block.getHash().equalsIgnoreCase(blockHash)) {
+                return block;
+            }
+        }
+        EthBlock ethBlock = web3j.ethGetBlockByHash(blockHash, false).send();
+        if (ethBlock.hasError()) {
+            throw new IOException(ethBlock.getError().getMessage());
+        }
+        EthBlock.Block block = ethBlock.getBlock();
+        if (block != null) {
+            put(block);
+        }
+        return block;
+    }
+
+    @EventListener
+    public void onNewHead(NewHeadEvent event) {
+        long number = event.getBlockNumber();
+        // 新区块高度及以上的旧记录属于被替换的分叉
+        recent.tailMap(number, true).clear();
+        put(event.getBlock());
+        promote(number);
+    }
+
+    @EventListener
+    public void onReorg(ChainReorgEvent event) {
+        long fork = event.getForkBlock();
+        logger.warn("drop block headers from " + fork);
+        recent.tailMap(fork, true).clear();
+        // 超过重组深度的回滚,已确定的缓存也需要清理
+        for (long number = fork; number <= event.getOldHead() - REORG_DEPTH; number++) {
+            finalized.invalidate(number);
+        }
+    }
+
+    private EthBlock.Block cached(long blockNumber) {
+        EthBlock.Block block = recent.get(blockNumber);
+        return block != null ? block : finalized.getIfPresent(blockNumber);
+    }
+
+    private void put(EthBlock.Block block) {
+        long number = block.getNumber().longValue();
+        long head = blockHeadTracker.getHead();
+        if (head >= 0 && number <= head - REORG_DEPTH) {
+            finalized.put(number, block);
+        } else {
+            recent.put(number, block);
+        }
+        hashIndex.put(block.getHash().toLowerCase(), number);
+    }
+
+    private void promote(long head) {
+        Iterator<Map.Entry<Long, EthBlock.Block>> iterator = recent.headMap(head - REORG_DEPTH, true).entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, EthBlock.Block> entry = iterator.next();
+            finalized.put(entry.getKey(), entry.getValue());
+            iterator.remove();
+        }
+    }
+}
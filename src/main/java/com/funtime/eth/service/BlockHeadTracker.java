@@ -0,0 +1,189 @@
+package com.funtime.eth.service;
+
+import com.funtime.eth.event.ChainReorgEvent;
+import com.funtime.eth.event.NewHeadEvent;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Component;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.DefaultBlockParameterNumber;
+import org.web3j.protocol.core.methods.response.EthBlock;
+import org.web3j.protocol.core.methods.response.EthBlockNumber;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 新区块跟踪
+ * <p>
+ * 定时轮询{@code eth_blockNumber},高度增长时逐个获取新区块头并发布{@link NewHeadEvent},
+ * 缓存和确认跟踪等组件据此刷新状态,无需各自轮询节点.新区块与{@link CanonicalChainTracker}记录的主链不连续时,
+ * 先发布{@link ChainReorgEvent},再按新链重新发布被替换高度的{@link NewHeadEvent}.
+ * 配置了WebSocket订阅时由推送驱动,推送连接正常期间跳过轮询,超过{@code config.head.push_stale_ms}未收到推送时恢复轮询.
+ * 事件在单独的线程上按顺序发布,处理较慢的监听方不会推迟下一次轮询.
+ */
+@Component
+public class BlockHeadTracker {
+
+    private static final Logger logger = LoggerFactory.getLogger(BlockHeadTracker.class);
+
+    @Value("${config.head.poll_interval_ms:3000}")
+    public long POLL_INTERVAL_MS;
+
+    @Value("${config.head.max_catch_up:64}")
+    public int MAX_CATCH_UP;
+
+    @Value("${config.head.push_stale_ms:30000}")
+    public long PUSH_STALE_MS;
+
+    private final Web3j web3j;
+    private final ApplicationEventPublisher publisher;
+    private final CanonicalChainTracker canonicalChainTracker;
+
+    private ScheduledExecutorService scheduler;
+
+    private ExecutorService eventExecutor;
+
+    private volatile long head = -1;
+
+    private volatile boolean pushActive;
+
+    private volatile long lastPushAt;
+
+    public BlockHeadTracker(Web3j web3j, ApplicationEventPublisher publisher, CanonicalChainTracker canonicalChainTracker) {
+        this.web3j = web3j;
+        this.publisher = publisher;
+        this.canonicalChainTracker = canonicalChainTracker;
+    }
+
+    @PostConstruct
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("head-tracker-%d").setDaemon(true).build());
+        eventExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("head-events-%d").setDaemon(true).build());
+        scheduler.scheduleWithFixedDelay(this::poll, 0, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+        eventExecutor.shutdownNow();
+    }
+
+    /**
+     * 当前已知的最新区块高度
+     *
+     * @return 区块高度,尚未同步时返回-1
+     */
+    public long getHead() {
+        return head;
+    }
+
+    /**
+     * 收到推送的新区块
+     *
+     * @param number 区块高度,中间缺少的区块会补齐
+     */
+    public void notifyHead(long number) {
+        lastPushAt = System.currentTimeMillis();
+        scheduler.execute(() -> {
+            try {
+                onHead(number);
+            } catch (Exception e) {
+                logger.warn("handle pushed head " + number + " error: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * 推送连接状态变化,连接恢复时立即轮询一次补齐断开期间的区块
+     */
+    public void setPushActive(boolean active) {
+        pushActive = active;
+        if (active) {
+            lastPushAt = System.currentTimeMillis();
+        }
+        scheduler.execute(this::fetchLatest);
+    }
+
+    private void poll() {
+        if (pushActive && System.currentTimeMillis() - lastPushAt < PUSH_STALE_MS) {
+            return;
+        }
+        fetchLatest();
+    }
+
+    private void fetchLatest() {
+        try {
+            EthBlockNumber ethBlockNumber = web3j.ethBlockNumber().send();
+            if (ethBlockNumber.hasError()) {
+                logger.warn("poll blockNumber error: " + ethBlockNumber.getError().getMessage());
+                return;
+            }
+            onHead(ethBlockNumber.getBlockNumber().longValue());
+        } catch (Exception e) {
+            logger.warn("poll blockNumber error: " + e.getMessage());
+        }
+    }
+
+    private void onHead(long latest) throws IOException {
+        if (latest <= head) {
+            return;
+        }
+        // 首次同步或落后过多时只从最近的区块开始发布
+        long from = head < 0 ? latest : Math.max(head + 1, latest - MAX_CATCH_UP + 1);
+        for (long number = from; number <= latest; number++) {
+            EthBlock.Block block = getBlock(number);
+            if (block == null) {
+                return;
+            }
+            long fork = canonicalChainTracker.detectFork(block);
+            if (fork >= 0 && !reorg(fork, number)) {
+                return;
+            }
+            canonicalChainTracker.append(block);
+            head = number;
+            publish(new NewHeadEvent(this, block));
+        }
+    }
+
+    private boolean reorg(long fork, long number) throws IOException {
+        logger.warn("chain reorg at block " + fork + ", head " + head + " -> " + number);
+        canonicalChainTracker.rollback(fork);
+        publish(new ChainReorgEvent(this, fork, head));
+        for (long replaced = fork; replaced < number; replaced++) {
+            EthBlock.Block block = getBlock(replaced);
+            if (block == null) {
+                return false;
+            }
+            canonicalChainTracker.append(block);
+            head = replaced;
+            publish(new NewHeadEvent(this, block));
+        }
+        return true;
+    }
+
+    private void publish(Object event) {
+        eventExecutor.execute(() -> {
+            try {
+                publisher.publishEvent(event);
+            } catch (Exception e) {
+                logger.warn("handle " + event.getClass().getSimpleName() + " error: " + e.getMessage());
+            }
+        });
+    }
+
+    private EthBlock.Block getBlock(long number) throws IOException {
+        EthBlock ethBlock = web3j.ethGetBlockByNumber(new DefaultBlockParameterNumber(number), false).send();
+        return ethBlock.getBlock();
+    }
+}
@@ -1,7 +1,9 @@
 package com.funtime.eth.service;
 
 import com.funtime.eth.model.EthTransaction;
+import com.funtime.eth.model.SignedTransaction;
 import com.funtime.eth.model.TokenTransaction;
+import com.funtime.eth.model.TransactionFees;
 import com.funtime.eth.utils.Constants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,14 +32,31 @@ public class BlockchainService {
 
     private final Web3j web3j;
 
+    private final NonceManager nonceManager;
+
+    private final BalanceCache balanceCache;
+
+    private final ConfirmationTracker confirmationTracker;
+    private final TransactionSigner transactionSigner;
+    private final GasLimitEstimator gasLimitEstimator;
+    private final PendingTransactionMonitor pendingTransactionMonitor;
+
     @Value("${config.wallet_path}")
     public String WALLET_PATH;
 
     @Value("${config.transaction_receipt_path}")
     public String TRANSACTION_RECEIPT_PATH;
 
-    public BlockchainService(Web3j web3j) {
+    public BlockchainService(Web3j web3j, NonceManager nonceManager, BalanceCache balanceCache,
+                             ConfirmationTracker confirmationTracker, TransactionSigner transactionSigner,
+                             GasLimitEstimator gasLimitEstimator, PendingTransactionMonitor pendingTransactionMonitor) {
         this.web3j = web3j;
+        this.nonceManager = nonceManager;
+        this.balanceCache = balanceCache;
+        this.confirmationTracker = confirmationTracker;
+        this.transactionSigner = transactionSigner;
+        this.gasLimitEstimator = gasLimitEstimator;
+        this.pendingTransactionMonitor = pendingTransactionMonitor;
     }
 
     public EthTransaction process(EthTransaction trx) throws IOException {
@@ -62,9 +81,8 @@ public class BlockchainService {
         logger.info("Tx hash: {}", txHash);
 
         trx.setId(txHash);
-        EthGetTransactionReceipt receipt = web3j.ethGetTransactionReceipt(txHash).send();
-
-        receipt.getTransactionReceipt().ifPresent(transactionReceipt -> logger.info("Tx receipt:  {}", transactionReceipt.getCumulativeGasUsed().intValue()));
+        // 刚广播的交易还没有收据,由确认跟踪在后续区块中查询
+        confirmationTracker.register(txHash, transaction.getFrom(), transaction.getTo(), null);
 
         return trx;
     }
@@ -99,10 +117,9 @@ public class BlockchainService {
     public BigInteger getBalanceWei(String address) {
         BigInteger balance = null;
         try {
-            EthGetBalance ethGetBalance = web3j.ethGetBalance(address, DefaultBlockParameterName.LATEST).send();
-            balance = ethGetBalance.getBalance();
+            balance = balanceCache.get(address, null, () -> loadBalanceWei(address));
         } catch (IOException e) {
-            e.printStackTrace();
+            logger.error("get balance of " + address + " error: " + e.getMessage());
         }
         logger.info("address " + address + " balance " + balance + "wei");
         return balance;
@@ -117,16 +134,24 @@ public class BlockchainService {
     public BigDecimal getBalanceEth(String address) {
         BigDecimal balance = null;
         try {
-            EthGetBalance ethGetBalance = web3j.ethGetBalance(address, DefaultBlockParameterName.LATEST).send();
+            BigInteger wei = balanceCache.get(address, null, () -> loadBalanceWei(address));
             // 默认获取到的单位是WEI  转换为ETH
-            balance = Convert.fromWei(ethGetBalance.getBalance().toString(), Convert.Unit.ETHER);
+            balance = Convert.fromWei(wei.toString(), Convert.Unit.ETHER);
         } catch (IOException e) {
-            e.printStackTrace();
+            logger.error("get balance of " + address + " error: " + e.getMessage());
         }
         logger.info("address " + address + " balance " + balance + "eth");
         return balance;
     }
 
+    private BigInteger loadBalanceWei(String address) throws IOException {
+        EthGetBalance ethGetBalance = web3j.ethGetBalance(address, DefaultBlockParameterName.LATEST).send();
+        if (ethGetBalance.hasError()) {
+            throw new IOException(ethGetBalance.getError().getMessage());
+        }
+        return ethGetBalance.getBalance();
+    }
+
     /**
      * 生成一个普通交易对象
      *
@@ -166,10 +191,7 @@ public class BlockchainService {
         String txHash = response.getTransactionHash();
         logger.info("Tx hash: {}", txHash);
         trx.setId(txHash);
-        EthGetTransactionReceipt receipt = web3j.ethGetTransactionReceipt(txHash).send();
-        if (receipt.getTransactionReceipt().isPresent()) {
-            logger.info("Tx receipt: {}", receipt.getTransactionReceipt().get().getCumulativeGasUsed().intValue());
-        }
+        confirmationTracker.register(txHash, transaction.getFrom(), transaction.getTo(), null);
         return trx;
     }
 
@@ -219,41 +241,55 @@ public class BlockchainService {
 //        TransactionReceipt send = Transfer.sendFunds(web3j, credentials, address_to, BigDecimal.valueOf(transaction.getAmount().intValue()), Convert.Unit.FINNEY).send();
 
         //设置需要的矿工费
-        BigInteger gasPrice = Convert.toWei(transaction.getWei(), Convert.Unit.GWEI).toBigInteger();
-        BigInteger gasLimit = BigInteger.valueOf(21000);
+        TransactionFees fees = transactionSigner.fees(transaction.getWei());
 
         //转账人账户地址
         String ownAddress = transaction.getFromAddress();
         //被转人账户地址
         String toAddress = transaction.getToAddress();
-        //转账人私钥
-        Credentials credentials = Credentials.create(transaction.getPrivateKey());
         //getNonce
-        EthGetTransactionCount ethGetTransactionCount = web3j.ethGetTransactionCount(
-                ownAddress, DefaultBlockParameterName.LATEST).sendAsync().get();
-        BigInteger nonce = ethGetTransactionCount.getTransactionCount();
-
-        //创建交易
-        BigInteger value = Convert.toWei(transaction.getAmount(), Convert.Unit.ETHER).toBigInteger();
-        RawTransaction rawTransaction = RawTransaction.createEtherTransaction(
-                nonce, gasPrice, gasLimit, toAddress, value);
+        BigInteger nonce = nonceManager.reserve(ownAddress);
 
-        //签名Transaction
-        byte[] signedMessage = TransactionEncoder.signMessage(rawTransaction, credentials);
-        String hexValue = Numeric.toHexString(signedMessage);
+        BigInteger value;
+        BigInteger gasLimit;
+        SignedTransaction signed;
+        try {
+            //创建交易
+            value = Convert.toWei(transaction.getAmount(), Convert.Unit.ETHER).toBigInteger();
+            gasLimit = gasLimitEstimator.estimate(ownAddress, toAddress, value, null, Constants.GAS_LIMIT_ETHER_TX);
+            //签名Transaction
+            signed = transactionSigner.sign(nonce, fees, gasLimit, toAddress, value, null, transaction.getPrivateKey());
+        } catch (RuntimeException e) {
+            // 交易未发出,nonce可以直接回收
+            nonceManager.release(ownAddress, nonce);
+            throw e;
+        }
 
         String transactionHash = null;
 
         //发送交易
-        EthSendTransaction ethSendTransaction =
-                web3j.ethSendRawTransaction(hexValue).sendAsync().get();
+        EthSendTransaction ethSendTransaction;
+        try {
+            ethSendTransaction = web3j.ethSendRawTransaction(signed.getHexValue()).sendAsync().get();
+        } catch (ExecutionException | InterruptedException e) {
+            nonceManager.onSendFailure(ownAddress, nonce, null);
+            throw e;
+        }
         if (ethSendTransaction.getError() != null) {
             if (ethSendTransaction.getError().getMessage().contains("known transaction")) {
                 transactionHash = "0x" + ethSendTransaction.getError().getMessage().replace("known transaction:", "").trim();
+            } else {
+                nonceManager.onSendFailure(ownAddress, nonce, ethSendTransaction.getError().getMessage());
             }
         } else {
             transactionHash = ethSendTransaction.getTransactionHash();
         }
+        confirmationTracker.register(transactionHash, ownAddress, toAddress, transaction.getBusinesCode());
+        gasLimitEstimator.track(transactionHash, toAddress, null, gasLimit);
+        if (transactionHash != null) {
+            nonceManager.sent(ownAddress, nonce);
+            pendingTransactionMonitor.track(ownAddress, toAddress, signed, transaction.getPrivateKey(), transaction.getBusinesCode());
+        }
 
         //获得transactionHash
         logger.info("transactionHash:" + transactionHash);
@@ -0,0 +1,255 @@
+package com.funtime.eth.service;
+
+import com.alibaba.fastjson.JSON;
+import com.funtime.eth.model.CallbackMessage;
+import com.funtime.eth.utils.OkHttpUtil;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+/**
+ * 交易回调异步投递
+ * <p>
+ * 回调消息先写入本地outbox目录再进入有界队列,由工作线程投递;失败按指数退避重试,
+ * 超过最大次数后移入dead目录.服务重启后outbox中未投递的消息会被重新加载.
+ * {@code config.callback.batch_size}大于1时,同一地址的多条消息合并为JSON数组一次投递.
+ */
+@Component
+public class CallbackDispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(CallbackDispatcher.class);
+
+    private static final String DEAD_DIR = "dead";
+
+    @Value("${config.callback_outbox_path:/root/dev/wallet/callback/}")
+    public String CALLBACK_OUTBOX_PATH;
+
+    @Value("${config.callback.queue_capacity:10000}")
+    public int QUEUE_CAPACITY;
+
+    @Value("${config.callback.workers:4}")
+    public int WORKERS;
+
+    @Value("${config.callback.batch_size:1}")
+    public int BATCH_SIZE;
+
+    @Value("${config.callback.max_attempts:10}")
+    public int MAX_ATTEMPTS;
+
+    @Value("${config.callback.initial_backoff_ms:1000}")
+    public long INITIAL_BACKOFF_MS;
+
+    @Value("${config.callback.max_backoff_ms:300000}")
+    public long MAX_BACKOFF_MS;
+
+    @Value("${config.callback.sweep_interval_ms:30000}")
+    public long SWEEP_INTERVAL_MS;
+
+    private final OkHttpUtil okHttpUtil;
+
+    private BlockingQueue<CallbackMessage> queue;
+
+    /**
+     * 已在队列或等待重试中的消息id,扫描outbox时跳过
+     */
+    private final Set<String> tracked = ConcurrentHashMap.newKeySet();
+
+    private ExecutorService workers;
+
+    private ScheduledExecutorService scheduler;
+
+    private File outbox;
+
+    private volatile boolean running;
+
+    public CallbackDispatcher(OkHttpUtil okHttpUtil) {
+        this.okHttpUtil = okHttpUtil;
+    }
+
+    @PostConstruct
+    public void start() {
+        outbox = new File(CALLBACK_OUTBOX_PATH);
+        new File(outbox, DEAD_DIR).mkdirs();
+        queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        running = true;
+
+        workers = Executors.newFixedThreadPool(WORKERS, new ThreadFactoryBuilder().setNameFormat("callback-worker-%d").setDaemon(true).build());
+        for (int i = 0; i < WORKERS; i++) {
+            workers.execute(this::work);
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("callback-scheduler-%d").setDaemon(true).build());
+        // 启动时加载上次未投递的消息,之后定期补入因队列满而未入队的消息
+        scheduler.scheduleWithFixedDelay(this::sweep, 0, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    /**
+     * 提交回调,持久化后立即返回
+     *
+     * @param url  回调地址
+     * @param body JSON内容
+     */
+    public void dispatch(String url, String body) {
+        CallbackMessage message = new CallbackMessage();
+        message.setId(System.currentTimeMillis() + "-" + UUID.randomUUID().toString());
+        message.setUrl(url);
+        message.setBody(body);
+        message.setCreatedAt(System.currentTimeMillis());
+        tracked.add(message.getId());
+        try {
+            persist(message);
+        } catch (IOException e) {
+            logger.error("callback persist error, id " + message.getId(), e);
+        }
+        enqueue(message);
+    }
+
+    private void enqueue(CallbackMessage message) {
+        tracked.add(message.getId());
+        if (!queue.offer(message)) {
+            // 队列已满,消息留在outbox中等待下次扫描
+            tracked.remove(message.getId());
+            logger.warn("callback queue full, deferred id " + message.getId());
+        }
+    }
+
+    private void work() {
+        List<CallbackMessage> drained = new ArrayList<>();
+        while (running) {
+            try {
+                CallbackMessage first = queue.take();
+                drained.clear();
+                drained.add(first);
+                if (BATCH_SIZE > 1) {
+                    queue.drainTo(drained, BATCH_SIZE - 1);
+                }
+                for (List<CallbackMessage> group : groupByUrl(drained).values()) {
+                    deliver(group);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.error("callback worker error", e);
+            }
+        }
+    }
+
+    private static Map<String, List<CallbackMessage>> groupByUrl(List<CallbackMessage> messages) {
+        Map<String, List<CallbackMessage>> groups = new LinkedHashMap<>();
+        for (CallbackMessage message : messages) {
+            groups.computeIfAbsent(message.getUrl(), key -> new ArrayList<>()).add(message);
+        }
+        return groups;
+    }
+
+    private void deliver(List<CallbackMessage> group) {
+        String url = group.get(0).getUrl();
+        String payload;
+        if (BATCH_SIZE > 1) {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < group.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(group.get(i).getBody());
+            }
+            payload = sb.append(']').toString();
+        } else {
+            payload = group.get(0).getBody();
+        }
+
+        if (okHttpUtil.postJsonParamsAccepted(url, payload)) {
+            for (CallbackMessage message : group) {
+                new File(outbox, message.getId() + ".json").delete();
+                tracked.remove(message.getId());
+            }
+            logger.info("callback delivered, url " + url + " size " + group.size());
+            return;
+        }
+        for (CallbackMessage message : group) {
+            retry(message);
+        }
+    }
+
+    private void retry(CallbackMessage message) {
+        message.setAttempts(message.getAttempts() + 1);
+        try {
+            if (message.getAttempts() >= MAX_ATTEMPTS) {
+                File dead = new File(new File(outbox, DEAD_DIR), message.getId() + ".json");
+                try {
+                    Files.move(new File(outbox, message.getId() + ".json").toPath(), dead.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                } catch (NoSuchFileException e) {
+                    // outbox中的文件已不存在(如被手动清理),用内存中的消息写入死信目录,不再重试
+                    Files.write(dead.toPath(), JSON.toJSONString(message).getBytes(StandardCharsets.UTF_8));
+                } finally {
+                    tracked.remove(message.getId());
+                }
+                logger.error("callback give up after " + message.getAttempts() + " attempts, id " + message.getId());
+                return;
+            }
+            persist(message);
+        } catch (IOException e) {
+            logger.error("callback persist error, id " + message.getId(), e);
+            if (message.getAttempts() >= MAX_ATTEMPTS) {
+                // 已放弃的消息不再排队,outbox中仍存在的文件由定时扫描重新加载
+                return;
+            }
+        }
+        long backoff = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(message.getAttempts() - 1, 30));
+        backoff += ThreadLocalRandom.current().nextLong(backoff / 4 + 1);
+        logger.warn("callback failed, id " + message.getId() + " attempt " + message.getAttempts() + " retry in " + backoff + "ms");
+        scheduler.schedule(() -> enqueue(message), backoff, TimeUnit.MILLISECONDS);
+    }
+
+    private void sweep() {
+        File[] files = outbox.listFiles((dir, name) -> name.endsWith(".json"));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String id = file.getName().substring(0, file.getName().length() - ".json".length());
+            if (tracked.contains(id)) {
+                continue;
+            }
+            try {
+                CallbackMessage message = JSON.parseObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8), CallbackMessage.class);
+                enqueue(message);
+            } catch (Exception e) {
+                logger.error("callback outbox read error, file " + file.getName(), e);
+            }
+        }
+    }
+
+    private void persist(CallbackMessage message) throws IOException {
+        File tmp = new File(outbox, message.getId() + ".tmp");
+        Files.write(tmp.toPath(), JSON.toJSONString(message).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), new File(outbox, message.getId() + ".json").toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
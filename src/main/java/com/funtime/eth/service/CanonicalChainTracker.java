@@ -0,0 +1,100 @@
+package com.funtime.eth.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.methods.response.EthBlock;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * 主链区块hash记录
+ * <p>
+ * 保存最近{@code config.chain.tracked_blocks}个区块的hash.新区块的parentHash与记录不一致时,沿新链的parentHash
+ * 逐个回溯,直到与记录一致,得到第一个被替换的区块高度.
+ */
+@Component
+public class CanonicalChainTracker {
+
+    @Value("${config.chain.tracked_blocks:128}")
+    public int TRACKED_BLOCKS;
+
+    private final Web3j web3j;
+
+    private final ConcurrentSkipListMap<Long, String> hashes = new ConcurrentSkipListMap<>();
+
+    public CanonicalChainTracker(Web3j web3j) {
+        this.web3j = web3j;
+    }
+
+    /**
+     * 检查新区块是否引起重组
+     *
+     * @param header 新区块头
+     * @return 第一个被替换的区块高度,没有重组时返回-1
+     * @throws IOException 回溯新链失败
+     */
+    public long detectFork(EthBlock.Block header) throws IOException {
+        long number = header.getNumber().longValue();
+        String recorded = hashes.get(number);
+        if (recorded != null && !recorded.equalsIgnoreCase(header.getHash())) {
+            // 同一高度被替换,继续比较父区块
+            return findFork(number - 1, header.getParentHash());
+        }
+        String parent = hashes.get(number - 1);
+        if (parent == null || parent.equalsIgnoreCase(header.getParentHash())) {
+            return -1;
+        }
+        return findFork(number - 1, header.getParentHash());
+    }
+
+    private long findFork(long number, String canonicalHash) throws IOException {
+        while (true) {
+            String recorded = hashes.get(number);
+            if (recorded == null || recorded.equalsIgnoreCase(canonicalHash)) {
+                // 一致,或已超出记录范围,只能认为从记录的最早高度开始被替换
+                return number + 1;
+            }
+            EthBlock ethBlock = web3j.ethGetBlockByHash(canonicalHash, false).send();
+            if (ethBlock.hasError() || ethBlock.getBlock() == null) {
+                throw new IOException("block " + canonicalHash + " not available");
+            }
+            canonicalHash = ethBlock.getBlock().getParentHash();
+            number--;
+        }
+    }
+
+    /**
+     * 删除被替换区块的记录
+     *
+     * @param forkBlock 第一个被替换的区块高度
+     */
+    public void rollback(long forkBlock) {
+        hashes.tailMap(forkBlock, true).clear();
+    }
+
+    /**
+     * 记录主链区块
+     *
+     * @param header 区块头
+     */
+    public void append(EthBlock.Block header) {
+        long number = header.getNumber().longValue();
+        hashes.tailMap(number, true).clear();
+        hashes.put(number, header.getHash());
+        Map<Long, String> expired = hashes.headMap(number - TRACKED_BLOCKS, true);
+        expired.clear();
+    }
+
+    /**
+     * 主链上该高度的区块hash
+     *
+     * @param number 区块高度
+     * @return 区块hash,超出记录范围时返回null
+     */
+    public String getHash(long number) {
+        return hashes.get(number);
+    }
+}
@@ -0,0 +1,236 @@
+package com.funtime.eth.service;
+
+import com.funtime.eth.event.ChainReorgEvent;
+import com.funtime.eth.event.NewHeadEvent;
+import com.funtime.eth.model.IndexedTransaction;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.web3j.protocol.core.methods.response.EthBlock;
+import org.web3j.protocol.core.methods.response.Log;
+import org.web3j.protocol.core.methods.response.Transaction;
+import org.web3j.utils.Numeric;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * 地址交易索引
+ * <p>
+ * 跟随新区块扫描,提取跟踪地址的ETH转账和ERC-20 Transfer日志写入{@link TransferStore};落后较多时由
+ * {@link BackfillEngine}分段并发获取区块.
+ * 只索引已有{@code config.indexer.confirmations}个确认的区块,避免记录被回滚的交易;更深的链重组会回滚已写入的记录并重新索引.
+ */
+@Component
+public class ChainIndexer {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChainIndexer.class);
+
+    @Value("${config.indexer.enabled:false}")
+    public boolean ENABLED;
+
+    @Value("${config.indexer.confirmations:12}")
+    public int CONFIRMATIONS;
+
+    @Value("${config.indexer.max_blocks_per_round:1000}")
+    public int MAX_BLOCKS_PER_ROUND;
+
+    private final BackfillEngine backfillEngine;
+    private final TransferStore transferStore;
+    private final WatchedAddressRegistry watchedAddressRegistry;
+    private final BlockHeadTracker blockHeadTracker;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    private ExecutorService executor;
+
+    public ChainIndexer(BackfillEngine backfillEngine, TransferStore transferStore,
+                        WatchedAddressRegistry watchedAddressRegistry, BlockHeadTracker blockHeadTracker) {
+        this.backfillEngine = backfillEngine;
+        this.transferStore = transferStore;
+        this.watchedAddressRegistry = watchedAddressRegistry;
+        this.blockHeadTracker = blockHeadTracker;
+    }
+
+    @PostConstruct
+    public void init() {
+        executor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("chain-indexer-%d").setDaemon(true).build());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @EventListener
+    public void onNewHead(NewHeadEvent event) {
+        if (!ENABLED || !running.compareAndSet(false, true)) {
+            return;
+        }
+        long target = event.getBlockNumber() - CONFIRMATIONS;
+        executor.execute(() -> {
+            try {
+                catchUp(target);
+            } catch (Exception e) {
+                logger.warn("index blocks error: " + e.getMessage());
+            } finally {
+                running.set(false);
+            }
+        });
+    }
+
+    @EventListener
+    public void onReorg(ChainReorgEvent event) {
+        long fork = event.getForkBlock();
+        if (fork > transferStore.getCheckpoint()) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                transferStore.rollback(fork);
+            } catch (IOException e) {
+                logger.error("rollback transfer store error", e);
+            }
+        });
+    }
+
+    /**
+     * 地址是否由本地索引提供交易记录,历史回填完成前记录不完整,不由本地索引提供
+     */
+    public boolean isIndexed(String address) {
+        return ENABLED && transferStore.getCheckpoint() >= 0 && watchedAddressRegistry.contains(address)
+                && watchedAddressRegistry.isBackfilled(address);
+    }
+
+    /**
+     * 分页查询地址交易记录
+     *
+     * @param address 钱包地址
+     * @param page    页码,从1开始
+     * @param offset  每页条数
+     * @param desc    是否按时间倒序
+     * @return 交易记录,confirmations按当前区块高度计算
+     */
+    public List<IndexedTransaction> getTransactions(String address, int page, int offset, boolean desc) throws IOException {
+        List<IndexedTransaction> transactions = transferStore.query(address, page, offset, desc);
+        long head = blockHeadTracker.getHead();
+        for (IndexedTransaction transaction : transactions) {
+            transaction.setConfirmations(String.valueOf(head - Long.parseLong(transaction.getBlockNumber()) + 1));
+        }
+        return transactions;
+    }
+
+    private void catchUp(long target) throws IOException {
+        long checkpoint = transferStore.getCheckpoint();
+        // 首次启动从当前区块开始,更早的历史通过回填获得
+        long from = checkpoint < 0 ? target : checkpoint + 1;
+        long to = Math.min(target, from + MAX_BLOCKS_PER_ROUND - 1);
+        if (from > to) {
+            return;
+        }
+        backfillEngine.scan(from, to, this::index);
+        logger.debug("indexed blocks " + from + " - " + to);
+    }
+
+    /**
+     * 索引一个区块并推进checkpoint,区块需包含完整交易
+     *
+     * @param block 区块
+     * @param logs  该区块的Transfer日志
+     */
+    public void index(EthBlock.Block block, List<Log> logs) throws IOException {
+        transferStore.append(block.getNumber().longValue(), extract(block, logs, watchedAddressRegistry::contains));
+    }
+
+    /**
+     * 回填历史区块,只记录开始跟踪之前的部分,之后的记录已由实时索引写入
+     *
+     * @param block     区块
+     * @param logs      该区块的Transfer日志
+     * @param addresses 只回填这些地址,为null时回填所有跟踪地址
+     */
+    public void indexHistorical(EthBlock.Block block, List<Log> logs, Set<String> addresses) throws IOException {
+        long blockNumber = block.getNumber().longValue();
+        if (blockNumber > transferStore.getCheckpoint()) {
+            throw new IOException("block " + blockNumber + " is not indexed yet");
+        }
+        Predicate<String> filter = address -> {
+            if (address == null || (addresses != null && !addresses.contains(address.toLowerCase()))) {
+                return false;
+            }
+            Long since = watchedAddressRegistry.getSince(address);
+            return since != null && blockNumber < since;
+        };
+        List<IndexedTransaction> transactions = extract(block, logs, filter);
+        if (!transactions.isEmpty()) {
+            transferStore.appendHistorical(transactions);
+        }
+    }
+
+    private static List<IndexedTransaction> extract(EthBlock.Block block, List<Log> logs, Predicate<String> watched) {
+        String timeStamp = block.getTimestamp().toString();
+        List<IndexedTransaction> transactions = new ArrayList<>();
+        for (EthBlock.TransactionResult result : block.getTransactions()) {
+            Transaction transaction = (Transaction) result.get();
+            if (transaction.getValue().signum() == 0
+                    || !(watched.test(transaction.getFrom()) || watched.test(transaction.getTo()))) {
+                continue;
+            }
+            IndexedTransaction indexed = new IndexedTransaction();
+            indexed.setBlockNumber(block.getNumber().toString());
+            indexed.setTimeStamp(timeStamp);
+            indexed.setHash(transaction.getHash());
+            indexed.setNonce(transaction.getNonce().toString());
+            indexed.setBlockHash(block.getHash());
+            indexed.setTransactionIndex(transaction.getTransactionIndex().toString());
+            indexed.setFrom(transaction.getFrom());
+            indexed.setTo(transaction.getTo());
+            indexed.setValue(transaction.getValue().toString());
+            indexed.setContractAddress("");
+            indexed.setGas(transaction.getGas().toString());
+            indexed.setGasPrice(transaction.getGasPrice().toString());
+            transactions.add(indexed);
+        }
+        for (Log log : logs) {
+            // ERC-721的Transfer第三个参数也是indexed,共4个topic
+            if (log.getTopics().size() != 3) {
+                continue;
+            }
+            String from = topicToAddress(log.getTopics().get(1));
+            String to = topicToAddress(log.getTopics().get(2));
+            if (!(watched.test(from) || watched.test(to))) {
+                continue;
+            }
+            IndexedTransaction indexed = new IndexedTransaction();
+            indexed.setBlockNumber(block.getNumber().toString());
+            indexed.setTimeStamp(timeStamp);
+            indexed.setHash(log.getTransactionHash());
+            indexed.setBlockHash(block.getHash());
+            indexed.setTransactionIndex(log.getTransactionIndex().toString());
+            indexed.setLogIndex(log.getLogIndex().toString());
+            indexed.setFrom(from);
+            indexed.setTo(to);
+            indexed.setValue(log.getData() == null || "0x".equals(log.getData())
+                    ? "0" : Numeric.toBigInt(log.getData()).toString());
+            indexed.setContractAddress(log.getAddress());
+            transactions.add(indexed);
+        }
+        return transactions;
+    }
+
+    private static String topicToAddress(String topic) {
+        return ("0x" + topic.substring(topic.length() - 40)).toLowerCase();
+    }
+}
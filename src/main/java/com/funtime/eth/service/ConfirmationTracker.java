@@ -0,0 +1,348 @@
+package com.funtime.eth.service;
+
+import com.alibaba.fastjson.JSON;
+import com.funtime.eth.event.ChainReorgEvent;
+import com.funtime.eth.event.NewHeadEvent;
+import com.funtime.eth.event.TransactionStatusEvent;
+import com.funtime.eth.model.TransactionConfirmation;
+import com.funtime.eth.rpc.JsonRpcBatchClient;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.methods.response.EthGetTransactionReceipt;
+import org.web3j.protocol.core.methods.response.TransactionReceipt;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 交易确认跟踪
+ * <p>
+ * 广播成功的交易在此登记,每个新区块用一次JSON-RPC批量请求查询所有未完成交易的收据.
+ * 确认数达到{@code config.confirmation.depth}时回调业务方并结束跟踪;超过{@code config.confirmation.timeout_blocks}
+ * 个区块仍未打包视为丢弃.每次状态变化都会发布{@link TransactionStatusEvent}.
+ * 发生链重组时,所在区块被替换的交易(包括最近已结束的)回到pending重新跟踪,再次确认后重新回调.
+ * 交易被同nonce的新交易替换时以replaced状态结束并回调,replacedBy为新交易的hash;被取消时以cancelled状态结束.
+ * 回调内容为{@link TransactionConfirmation},与发送接口原有的回调格式不同,发送到单独配置的
+ * {@code config.confirmation.callback_url},未配置时不回调.
+ */
+@Component
+public class ConfirmationTracker {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConfirmationTracker.class);
+
+    @Value("${config.confirmation.depth:12}")
+    public int DEPTH;
+
+    @Value("${config.confirmation.timeout_blocks:200}")
+    public int TIMEOUT_BLOCKS;
+
+    @Value("${config.confirmation.callback_url:}")
+    public String CALLBACK_URL;
+
+    @Value("${config.confirmation.queue_size:10000}")
+    public int QUEUE_SIZE;
+
+    @Value("${config.confirmation_snapshot_path:}")
+    public String SNAPSHOT_PATH;
+
+    private final Web3j web3j;
+    private final JsonRpcBatchClient batchClient;
+    private final CallbackDispatcher callbackDispatcher;
+    private final BlockHeadTracker blockHeadTracker;
+    private final ApplicationEventPublisher publisher;
+
+    private final Map<String, TransactionConfirmation> tracked = new ConcurrentHashMap<>();
+
+    private final Cache<String, TransactionConfirmation> finished = CacheBuilder.newBuilder().maximumSize(10000).build();
+
+    private ExecutorService executor;
+
+    /**
+     * 最新的区块高度,连续到达的新区块只排队一次检查
+     */
+    private final AtomicLong latestHead = new AtomicLong(-1);
+
+    private final AtomicBoolean checkScheduled = new AtomicBoolean();
+
+    public ConfirmationTracker(Web3j web3j, JsonRpcBatchClient batchClient, CallbackDispatcher callbackDispatcher,
+                               BlockHeadTracker blockHeadTracker, ApplicationEventPublisher publisher) {
+        this.web3j = web3j;
+        this.batchClient = batchClient;
+        this.callbackDispatcher = callbackDispatcher;
+        this.blockHeadTracker = blockHeadTracker;
+        this.publisher = publisher;
+    }
+
+    @PostConstruct
+    public void init() {
+        // 单线程按区块顺序检查,不阻塞发布新区块的线程
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(QUEUE_SIZE),
+                new ThreadFactoryBuilder().setNameFormat("confirmation-tracker-%d").setDaemon(true).build());
+        loadSnapshot();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        saveSnapshot();
+    }
+
+    /**
+     * 登记已广播的交易
+     *
+     * @param transactionHash 交易hash
+     * @param fromAddress     发送方
+     * @param toAddress       接收方,代币转账为合约地址
+     * @param businesCode     业务编号,为空时只发布事件不回调
+     */
+    public void register(String transactionHash, String fromAddress, String toAddress, String businesCode) {
+        if (StringUtils.isEmpty(transactionHash)) {
+            return;
+        }
+        TransactionConfirmation confirmation = new TransactionConfirmation();
+        confirmation.setTransactionHash(transactionHash);
+        confirmation.setFromAddress(fromAddress);
+        confirmation.setToAddress(toAddress);
+        confirmation.setBusinesCode(businesCode);
+        confirmation.setStatus(TransactionConfirmation.PENDING);
+        confirmation.setRegisteredBlock(blockHeadTracker.getHead());
+        if (tracked.putIfAbsent(transactionHash.toLowerCase(), confirmation) == null) {
+            publish(confirmation);
+        }
+    }
+
+    /**
+     * 交易已被同nonce的新交易替换(加价重发或取消),结束对旧交易的跟踪,新交易需另行登记
+     *
+     * @param transactionHash 被替换的交易hash
+     * @param replacementHash 新交易hash
+     */
+    public void replace(String transactionHash, String replacementHash) {
+        retire(transactionHash, replacementHash, TransactionConfirmation.REPLACED);
+    }
+
+    /**
+     * 交易已被同nonce的0金额自转交易取消,结束跟踪并以cancelled状态回调,取消交易不带业务编号另行登记
+     *
+     * @param transactionHash 被取消的交易hash
+     * @param cancelHash      取消交易hash
+     */
+    public void cancel(String transactionHash, String cancelHash) {
+        retire(transactionHash, cancelHash, TransactionConfirmation.CANCELLED);
+    }
+
+    private void retire(String transactionHash, String replacementHash, String status) {
+        // 与收据检查在同一线程,避免旧交易同时被标记为打包
+        submit(() -> {
+            TransactionConfirmation confirmation = tracked.get(transactionHash.toLowerCase());
+            if (confirmation == null) {
+                return;
+            }
+            confirmation.setReplacedBy(replacementHash);
+            finish(confirmation, status);
+        });
+    }
+
+    /**
+     * 交易确认状态
+     *
+     * @param transactionHash 交易hash
+     * @return 状态快照,包括最近结束的交易,未跟踪时返回null
+     */
+    public TransactionConfirmation get(String transactionHash) {
+        TransactionConfirmation confirmation = tracked.get(transactionHash.toLowerCase());
+        if (confirmation == null) {
+            confirmation = finished.getIfPresent(transactionHash.toLowerCase());
+        }
+        return confirmation == null ? null : copy(confirmation);
+    }
+
+    @EventListener
+    public void onNewHead(NewHeadEvent event) {
+        latestHead.set(event.getBlockNumber());
+        if (checkScheduled.compareAndSet(false, true)) {
+            submit(() -> {
+                checkScheduled.set(false);
+                check(latestHead.get());
+            });
+        }
+    }
+
+    @EventListener
+    public void onReorg(ChainReorgEvent event) {
+        long fork = event.getForkBlock();
+        submit(() -> reopen(fork));
+    }
+
+    private void submit(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            checkScheduled.set(false);
+            logger.error("confirmation tracker queue full, task dropped");
+        }
+    }
+
+    private void reopen(long fork) {
+        for (TransactionConfirmation confirmation : tracked.values()) {
+            if (confirmation.getBlockNumber() != null && confirmation.getBlockNumber() >= fork) {
+                reset(confirmation, fork);
+            }
+        }
+        for (TransactionConfirmation confirmation : finished.asMap().values()) {
+            if (confirmation.getBlockNumber() != null && confirmation.getBlockNumber() >= fork) {
+                finished.invalidate(confirmation.getTransactionHash().toLowerCase());
+                tracked.put(confirmation.getTransactionHash().toLowerCase(), confirmation);
+                reset(confirmation, fork);
+            }
+        }
+    }
+
+    private void reset(TransactionConfirmation confirmation, long fork) {
+        logger.warn("transaction " + confirmation.getTransactionHash() + " in reorged block " + confirmation.getBlockNumber());
+        confirmation.setStatus(TransactionConfirmation.PENDING);
+        confirmation.setBlockNumber(null);
+        confirmation.setBlockHash(null);
+        confirmation.setConfirmations(0);
+        confirmation.setRegisteredBlock(fork);
+        publish(confirmation);
+    }
+
+    private void check(long head) {
+        if (tracked.isEmpty()) {
+            return;
+        }
+        List<TransactionConfirmation> confirmations = new ArrayList<>(tracked.values());
+        List<Request<?, EthGetTransactionReceipt>> requests = new ArrayList<>(confirmations.size());
+        for (TransactionConfirmation confirmation : confirmations) {
+            requests.add(web3j.ethGetTransactionReceipt(confirmation.getTransactionHash()));
+        }
+        List<EthGetTransactionReceipt> responses;
+        try {
+            responses = batchClient.sendParallel(requests, EthGetTransactionReceipt.class).join();
+        } catch (Exception e) {
+            logger.warn("check confirmations at block " + head + " error: " + e.getMessage());
+            return;
+        }
+        for (int i = 0; i < confirmations.size(); i++) {
+            EthGetTransactionReceipt response = responses.get(i);
+            if (response.hasError()) {
+                continue;
+            }
+            update(confirmations.get(i), response.getResult(), head);
+        }
+        logger.debug("checked " + confirmations.size() + " transactions at block " + head);
+    }
+
+    private void update(TransactionConfirmation confirmation, TransactionReceipt receipt, long head) {
+        if (confirmation.getRegisteredBlock() < 0) {
+            confirmation.setRegisteredBlock(head);
+        }
+        if (receipt == null) {
+            if (head - confirmation.getRegisteredBlock() >= TIMEOUT_BLOCKS) {
+                finish(confirmation, TransactionConfirmation.DROPPED);
+            } else if (!TransactionConfirmation.PENDING.equals(confirmation.getStatus())) {
+                // 所在区块被回滚,交易回到交易池
+                reset(confirmation, confirmation.getRegisteredBlock());
+            }
+            return;
+        }
+        long blockNumber = receipt.getBlockNumber().longValue();
+        int confirmations = (int) Math.max(0, head - blockNumber + 1);
+        boolean changed = !TransactionConfirmation.MINED.equals(confirmation.getStatus())
+                || !receipt.getBlockHash().equals(confirmation.getBlockHash())
+                || confirmations != confirmation.getConfirmations();
+        confirmation.setBlockNumber(blockNumber);
+        confirmation.setBlockHash(receipt.getBlockHash());
+        confirmation.setConfirmations(confirmations);
+        confirmation.setGasUsed(receipt.getGasUsed().longValue());
+        if (confirmations >= DEPTH) {
+            finish(confirmation, "0x0".equals(receipt.getStatus()) ? TransactionConfirmation.FAILED : TransactionConfirmation.CONFIRMED);
+        } else if (changed) {
+            confirmation.setStatus(TransactionConfirmation.MINED);
+            publish(confirmation);
+        }
+    }
+
+    private void finish(TransactionConfirmation confirmation, String status) {
+        confirmation.setStatus(status);
+        tracked.remove(confirmation.getTransactionHash().toLowerCase());
+        finished.put(confirmation.getTransactionHash().toLowerCase(), confirmation);
+        if (confirmation.getBusinesCode() != null && StringUtils.isNotEmpty(CALLBACK_URL)) {
+            callbackDispatcher.dispatch(CALLBACK_URL, JSON.toJSONString(confirmation));
+        }
+        logger.info("transaction " + confirmation.getTransactionHash() + " " + status + " at block " + confirmation.getBlockNumber());
+        publish(confirmation);
+    }
+
+    private void publish(TransactionConfirmation confirmation) {
+        publisher.publishEvent(new TransactionStatusEvent(this, copy(confirmation)));
+    }
+
+    private static TransactionConfirmation copy(TransactionConfirmation confirmation) {
+        TransactionConfirmation copy = new TransactionConfirmation();
+        BeanUtils.copyProperties(confirmation, copy);
+        return copy;
+    }
+
+    private void loadSnapshot() {
+        if (StringUtils.isEmpty(SNAPSHOT_PATH)) {
+            return;
+        }
+        File file = new File(SNAPSHOT_PATH);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            List<TransactionConfirmation> snapshot = JSON.parseArray(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8), TransactionConfirmation.class);
+            for (TransactionConfirmation confirmation : snapshot) {
+                tracked.put(confirmation.getTransactionHash().toLowerCase(), confirmation);
+            }
+            logger.info("confirmation snapshot loaded, size " + snapshot.size());
+        } catch (Exception e) {
+            logger.error("load confirmation snapshot error", e);
+        }
+    }
+
+    private void saveSnapshot() {
+        if (StringUtils.isEmpty(SNAPSHOT_PATH)) {
+            return;
+        }
+        File file = new File(SNAPSHOT_PATH);
+        File tmp = new File(SNAPSHOT_PATH + ".tmp");
+        try {
+            Files.write(tmp.toPath(), JSON.toJSONString(new ArrayList<>(tracked.values())).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error("save confirmation snapshot error", e);
+        }
+    }
+}
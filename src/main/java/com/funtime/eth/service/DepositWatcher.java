@@ -0,0 +1,319 @@
+package com.funtime.eth.service;
+
+import com.alibaba.fastjson.JSON;
+import com.funtime.eth.event.ChainReorgEvent;
+import com.funtime.eth.event.DepositEvent;
+import com.funtime.eth.event.NewHeadEvent;
+import com.funtime.eth.model.Deposit;
+import com.funtime.eth.utils.AddressSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.methods.response.EthBlock;
+import org.web3j.protocol.core.methods.response.EthGetTransactionReceipt;
+import org.web3j.protocol.core.methods.response.Log;
+import org.web3j.protocol.core.methods.response.Transaction;
+import org.web3j.utils.Numeric;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 充值检测
+ * <p>
+ * 跟随新区块扫描已有{@code config.deposit.confirmations}个确认的区块:ERC-20充值通过eth_getLogs按Transfer topic
+ * 过滤,ETH充值扫描区块交易,收款方与内存中的充值地址集合匹配后回调{@code config.deposit.callback_url}并发布{@link DepositEvent}.
+ * 充值地址每行一个保存在{@code config.deposit.addresses_path},扫描进度按段保存在{@code config.deposit.checkpoint_path},
+ * 重启后最后一段可能重复回调,业务方按id去重.发生超过确认数的链重组时,已通知的充值以reverted状态再次回调,
+ * 并从分叉点重新扫描,重新打包的充值在新区块中以新的id再次确认.
+ */
+@Component
+public class DepositWatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(DepositWatcher.class);
+
+    @Value("${config.deposit.enabled:false}")
+    public boolean ENABLED;
+
+    @Value("${config.deposit.confirmations:12}")
+    public int CONFIRMATIONS;
+
+    @Value("${config.deposit.max_blocks_per_round:1000}")
+    public int MAX_BLOCKS_PER_ROUND;
+
+    @Value("${config.deposit.expected_addresses:1000000}")
+    public int EXPECTED_ADDRESSES;
+
+    @Value("${config.deposit.addresses_path:}")
+    public String ADDRESSES_PATH;
+
+    @Value("${config.deposit.checkpoint_path:}")
+    public String CHECKPOINT_PATH;
+
+    @Value("${config.deposit.callback_url:}")
+    public String CALLBACK_URL;
+
+    private final Web3j web3j;
+    private final BackfillEngine backfillEngine;
+    private final CallbackDispatcher callbackDispatcher;
+    private final ApplicationEventPublisher publisher;
+    private final CanonicalChainTracker canonicalChainTracker;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /**
+     * 最近通知过的充值,按区块排序,用于链重组时撤销
+     */
+    private final ConcurrentSkipListMap<Long, List<Deposit>> recent = new ConcurrentSkipListMap<>();
+
+    private AddressSet addresses;
+
+    private ExecutorService executor;
+
+    private volatile long checkpoint = -1;
+
+    public DepositWatcher(Web3j web3j, BackfillEngine backfillEngine, CallbackDispatcher callbackDispatcher,
+                          ApplicationEventPublisher publisher, CanonicalChainTracker canonicalChainTracker) {
+        this.web3j = web3j;
+        this.backfillEngine = backfillEngine;
+        this.callbackDispatcher = callbackDispatcher;
+        this.publisher = publisher;
+        this.canonicalChainTracker = canonicalChainTracker;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        // 未启用时不按预期规模分配,集合随地址增加扩容
+        addresses = ENABLED ? new AddressSet(EXPECTED_ADDRESSES) : new AddressSet();
+        executor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("deposit-watcher-%d").setDaemon(true).build());
+        if (StringUtils.isNotEmpty(ADDRESSES_PATH) && new File(ADDRESSES_PATH).exists()) {
+            try (BufferedReader reader = Files.newBufferedReader(new File(ADDRESSES_PATH).toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.trim().isEmpty()) {
+                        addresses.add(line.trim());
+                    }
+                }
+            }
+            logger.info("deposit addresses loaded, size " + addresses.size());
+        }
+        if (StringUtils.isNotEmpty(CHECKPOINT_PATH) && new File(CHECKPOINT_PATH).exists()) {
+            checkpoint = Long.parseLong(new String(Files.readAllBytes(new File(CHECKPOINT_PATH).toPath()), StandardCharsets.UTF_8).trim());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 添加充值地址
+     *
+     * @param newAddresses 钱包地址
+     * @return 新增的数量
+     */
+    public synchronized int addAddresses(List<String> newAddresses) throws IOException {
+        // 先校验,再写文件,最后加入内存,避免内存中出现未保存的地址
+        Set<String> added = new LinkedHashSet<>();
+        for (String address : newAddresses) {
+            if (!AddressSet.isValid(address)) {
+                throw new IllegalArgumentException("invalid address: " + address);
+            }
+            if (!addresses.contains(address)) {
+                added.add(address.toLowerCase());
+            }
+        }
+        if (added.isEmpty()) {
+            return 0;
+        }
+        if (StringUtils.isNotEmpty(ADDRESSES_PATH)) {
+            StringBuilder lines = new StringBuilder();
+            for (String address : added) {
+                lines.append(address).append('\n');
+            }
+            File file = new File(ADDRESSES_PATH);
+            File dir = file.getParentFile();
+            if (dir != null && !dir.exists() && !dir.mkdirs()) {
+                throw new IOException("create dir failed: " + dir);
+            }
+            Files.write(file.toPath(), lines.toString().getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        for (String address : added) {
+            addresses.add(address);
+        }
+        return added.size();
+    }
+
+    public boolean isDepositAddress(String address) {
+        return addresses.contains(address);
+    }
+
+    @EventListener
+    public void onNewHead(NewHeadEvent event) {
+        if (!ENABLED || !running.compareAndSet(false, true)) {
+            return;
+        }
+        long target = event.getBlockNumber() - CONFIRMATIONS;
+        executor.execute(() -> {
+            try {
+                catchUp(target);
+            } catch (Exception e) {
+                logger.warn("scan deposits error: " + e.getMessage());
+            } finally {
+                running.set(false);
+            }
+        });
+    }
+
+    @EventListener
+    public void onReorg(ChainReorgEvent event) {
+        long fork = event.getForkBlock();
+        if (fork > checkpoint) {
+            return;
+        }
+        executor.execute(() -> {
+            for (List<Deposit> deposits : recent.tailMap(fork, true).values()) {
+                for (Deposit deposit : deposits) {
+                    deposit.setStatus(Deposit.REVERTED);
+                    publish(deposit);
+                }
+            }
+            recent.tailMap(fork, true).clear();
+            try {
+                saveCheckpoint(fork - 1);
+            } catch (IOException e) {
+                logger.error("rewind deposit checkpoint error", e);
+            }
+        });
+    }
+
+    private void catchUp(long target) throws IOException {
+        long from = checkpoint < 0 ? target : checkpoint + 1;
+        long to = Math.min(target, from + MAX_BLOCKS_PER_ROUND - 1);
+        if (from > to) {
+            return;
+        }
+        backfillEngine.scan(from, to, new BackfillEngine.BlockProcessor() {
+            @Override
+            public void process(EthBlock.Block block, List<Log> logs) throws IOException {
+                List<Deposit> deposits = match(block, logs);
+                for (Deposit deposit : deposits) {
+                    deposit.setStatus(Deposit.CONFIRMED);
+                    publish(deposit);
+                }
+                if (!deposits.isEmpty()) {
+                    recent.put(block.getNumber().longValue(), deposits);
+                }
+                recent.headMap(block.getNumber().longValue() - canonicalChainTracker.TRACKED_BLOCKS).clear();
+            }
+
+            @Override
+            public void onChunkDone(long lastBlock) throws IOException {
+                saveCheckpoint(lastBlock);
+            }
+        });
+    }
+
+    private List<Deposit> match(EthBlock.Block block, List<Log> logs) throws IOException {
+        List<Deposit> deposits = new ArrayList<>();
+        for (EthBlock.TransactionResult result : block.getTransactions()) {
+            Transaction transaction = (Transaction) result.get();
+            if (transaction.getValue().signum() == 0 || !addresses.contains(transaction.getTo()) || failed(transaction.getHash())) {
+                continue;
+            }
+            Deposit deposit = deposit(block);
+            deposit.setTransactionHash(transaction.getHash());
+            deposit.setFrom(transaction.getFrom());
+            deposit.setTo(transaction.getTo());
+            deposit.setContractAddress("");
+            deposit.setValue(transaction.getValue().toString());
+            deposits.add(deposit);
+        }
+        for (Log log : logs) {
+            // 只处理ERC-20的Transfer,ERC-721有4个topic
+            if (log.getTopics().size() != 3) {
+                continue;
+            }
+            String to = log.getTopics().get(2);
+            if (!addresses.contains(to.substring(to.length() - 40))) {
+                continue;
+            }
+            String from = log.getTopics().get(1);
+            Deposit deposit = deposit(block);
+            deposit.setTransactionHash(log.getTransactionHash());
+            deposit.setLogIndex(log.getLogIndex().toString());
+            deposit.setFrom("0x" + from.substring(from.length() - 40));
+            deposit.setTo("0x" + to.substring(to.length() - 40));
+            deposit.setContractAddress(log.getAddress());
+            deposit.setValue(log.getData() == null || "0x".equals(log.getData())
+                    ? "0" : Numeric.toBigInt(log.getData()).toString());
+            deposits.add(deposit);
+        }
+        return deposits;
+    }
+
+    /**
+     * 执行失败的交易仍然带有value,需要查询收据确认,命中充值地址的交易很少,逐笔查询即可
+     */
+    private boolean failed(String transactionHash) throws IOException {
+        EthGetTransactionReceipt receipt = web3j.ethGetTransactionReceipt(transactionHash).send();
+        if (receipt.hasError() || receipt.getResult() == null) {
+            throw new IOException("receipt of " + transactionHash + " not available");
+        }
+        return "0x0".equals(receipt.getResult().getStatus());
+    }
+
+    private static Deposit deposit(EthBlock.Block block) {
+        Deposit deposit = new Deposit();
+        deposit.setBlockNumber(block.getNumber().toString());
+        deposit.setBlockHash(block.getHash());
+        deposit.setTimeStamp(block.getTimestamp().toString());
+        return deposit;
+    }
+
+    private void publish(Deposit deposit) {
+        deposit.setId(deposit.getBlockHash() + ":" + deposit.getTransactionHash() + ":"
+                + (deposit.getLogIndex() == null ? "" : deposit.getLogIndex()) + ":" + deposit.getStatus());
+        logger.info("deposit " + deposit.getStatus() + " " + deposit.getValue() + " " + (deposit.getContractAddress().isEmpty() ? "wei" : deposit.getContractAddress())
+                + " to " + deposit.getTo() + ", tx " + deposit.getTransactionHash());
+        if (StringUtils.isNotEmpty(CALLBACK_URL)) {
+            callbackDispatcher.dispatch(CALLBACK_URL, JSON.toJSONString(deposit));
+        }
+        publisher.publishEvent(new DepositEvent(this, deposit));
+    }
+
+    private void saveCheckpoint(long blockNumber) throws IOException {
+        checkpoint = blockNumber;
+        if (StringUtils.isEmpty(CHECKPOINT_PATH)) {
+            return;
+        }
+        File file = new File(CHECKPOINT_PATH);
+        File tmp = new File(CHECKPOINT_PATH + ".tmp");
+        Files.write(tmp.toPath(), String.valueOf(blockNumber).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
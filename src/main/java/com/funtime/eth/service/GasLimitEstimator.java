@@ -0,0 +1,193 @@
+package com.funtime.eth.service;
+
+import com.funtime.eth.event.TransactionStatusEvent;
+import com.funtime.eth.model.TransactionConfirmation;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.methods.request.Transaction;
+import org.web3j.protocol.core.methods.response.EthEstimateGas;
+
+import javax.annotation.PostConstruct;
+import java.math.BigInteger;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * gas上限估算
+ * <p>
+ * 按(目标地址, 方法选择器)缓存首次eth_estimateGas的结果和最近{@code config.gas_limit.samples}笔已确认交易的实际gasUsed,
+ * 取其中最大值乘以{@code config.gas_limit.multiplier}作为gas上限,同一合约的同一方法不再逐笔调用eth_estimateGas.
+ * 估算值一直参与取最大值,避免样本都来自消耗较少的调用(如代币转给已有余额的地址)时上限偏低.
+ * 同一key并发的冷启动只估算一次;估算失败(如余额不足导致模拟执行回滚)时使用调用方给出的默认值,不缓存.
+ * 因gas不足失败的交易会清除对应的缓存,下一笔重新估算.不带调用数据的普通转账固定使用21000,不估算也不缓存.
+ */
+@Service
+public class GasLimitEstimator {
+
+    private static final Logger logger = LoggerFactory.getLogger(GasLimitEstimator.class);
+
+    private static final long TRANSFER_GAS = 21000;
+
+    @Value("${config.gas_limit.multiplier:1.2}")
+    public double MULTIPLIER;
+
+    @Value("${config.gas_limit.samples:20}")
+    public int SAMPLES;
+
+    @Value("${config.gas_limit.max:1000000}")
+    public long MAX_GAS;
+
+    @Value("${config.gas_limit.cache_size:10000}")
+    public long CACHE_SIZE;
+
+    private final Web3j web3j;
+
+    private Cache<String, GasUsage> usages;
+
+    /**
+     * 已发出、等待回执的交易
+     */
+    private Cache<String, Sent> sent;
+
+    public GasLimitEstimator(Web3j web3j) {
+        this.web3j = web3j;
+    }
+
+    @PostConstruct
+    public void init() {
+        usages = CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).build();
+        sent = CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).expireAfterWrite(1, TimeUnit.DAYS).build();
+    }
+
+    /**
+     * 估算gas上限
+     *
+     * @param from     发送地址
+     * @param to       接收地址或合约地址
+     * @param value    转账金额,单位wei
+     * @param data     调用数据,普通转账为空
+     * @param fallback 没有样本且估算失败时使用的值
+     * @return gas上限
+     */
+    public BigInteger estimate(String from, String to, BigInteger value, String data, BigInteger fallback) {
+        if (StringUtils.isEmpty(data)) {
+            // 普通转账的消耗是固定的,不留余量
+            return BigInteger.valueOf(TRANSFER_GAS);
+        }
+        String key = key(to, data);
+        GasUsage usage;
+        try {
+            usage = usages.get(key, () -> new GasUsage(SAMPLES, estimateGas(from, to, value, data)));
+        } catch (ExecutionException e) {
+            logger.warn("estimate gas of " + key + " failed, use " + fallback + ": " + e.getCause().getMessage());
+            return fallback;
+        }
+        long gas = usage.max();
+        return BigInteger.valueOf(Math.min(MAX_GAS, (long) Math.ceil(gas * MULTIPLIER)));
+    }
+
+    /**
+     * 登记已发出的交易,回执确认后学习实际消耗
+     *
+     * @param transactionHash 交易hash
+     * @param to              接收地址或合约地址
+     * @param data            调用数据
+     * @param gasLimit        交易使用的gas上限
+     */
+    public void track(String transactionHash, String to, String data, BigInteger gasLimit) {
+        if (transactionHash == null || to == null || StringUtils.isEmpty(data)) {
+            return;
+        }
+        sent.put(transactionHash.toLowerCase(), new Sent(key(to, data), gasLimit.longValue()));
+    }
+
+    @EventListener
+    public void onStatus(TransactionStatusEvent event) {
+        TransactionConfirmation confirmation = event.getConfirmation();
+        boolean confirmed = TransactionConfirmation.CONFIRMED.equals(confirmation.getStatus());
+        boolean failed = TransactionConfirmation.FAILED.equals(confirmation.getStatus());
+        if (!confirmed && !failed || confirmation.getGasUsed() == null) {
+            return;
+        }
+        String hash = confirmation.getTransactionHash().toLowerCase();
+        Sent tx = sent.getIfPresent(hash);
+        if (tx == null) {
+            return;
+        }
+        sent.invalidate(hash);
+        long gasUsed = confirmation.getGasUsed();
+        if (confirmed) {
+            GasUsage usage = usages.getIfPresent(tx.key);
+            if (usage == null) {
+                usages.put(tx.key, usage = new GasUsage(SAMPLES, gasUsed));
+            }
+            usage.observe(gasUsed);
+        } else if (gasUsed >= tx.gasLimit) {
+            logger.warn("transaction " + hash + " ran out of gas at " + gasUsed + ", re-estimate " + tx.key);
+            usages.invalidate(tx.key);
+        }
+    }
+
+    private long estimateGas(String from, String to, BigInteger value, String data) throws Exception {
+        Transaction transaction = new Transaction(from, null, null, null, to, value, StringUtils.isEmpty(data) ? null : data);
+        EthEstimateGas ethEstimateGas = web3j.ethEstimateGas(transaction).send();
+        if (ethEstimateGas.hasError()) {
+            throw new IllegalStateException(ethEstimateGas.getError().getMessage());
+        }
+        return ethEstimateGas.getAmountUsed().longValue();
+    }
+
+    /**
+     * 合约调用按方法选择器区分
+     */
+    private static String key(String to, String data) {
+        String selector = data.length() < 10 ? "" : data.substring(0, 10).toLowerCase();
+        return to.toLowerCase() + selector;
+    }
+
+    private static class Sent {
+        private final String key;
+        private final long gasLimit;
+
+        private Sent(String key, long gasLimit) {
+            this.key = key;
+            this.gasLimit = gasLimit;
+        }
+    }
+
+    /**
+     * 首次估算值和最近若干笔的实际消耗
+     */
+    private static class GasUsage {
+        private final long[] observed;
+        private final long estimated;
+        private int count;
+        private int next;
+
+        private GasUsage(int samples, long estimated) {
+            this.observed = new long[samples];
+            this.estimated = estimated;
+        }
+
+        private synchronized void observe(long gasUsed) {
+            observed[next] = gasUsed;
+            next = (next + 1) % observed.length;
+            count = Math.min(count + 1, observed.length);
+        }
+
+        private synchronized long max() {
+            long max = estimated;
+            for (int i = 0; i < count; i++) {
+                max = Math.max(max, observed[i]);
+            }
+            return max;
+        }
+    }
+}
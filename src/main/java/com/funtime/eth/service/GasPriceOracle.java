@@ -0,0 +1,288 @@
+package com.funtime.eth.service;
+
+import com.funtime.eth.event.ChainReorgEvent;
+import com.funtime.eth.event.NewHeadEvent;
+import com.funtime.eth.model.EthFeeHistory;
+import com.funtime.eth.model.GasPriceSuggestion;
+import com.funtime.eth.rpc.CoalescingWeb3jService;
+import com.funtime.eth.rpc.JsonRpcBatchClient;
+import com.funtime.eth.rpc.RpcPriority;
+import com.funtime.eth.utils.Constants;
+import com.funtime.eth.utils.GasPriceHistogram;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.DefaultBlockParameterNumber;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.methods.response.EthBlock;
+import org.web3j.protocol.core.methods.response.EthGasPrice;
+import org.web3j.utils.Convert;
+import org.web3j.utils.Numeric;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * gas价格预言
+ * <p>
+ * 每个新区块到达时取出区块内交易的gas价格加入{@link GasPriceHistogram},统计最近{@code config.gas_oracle.blocks}个区块,
+ * 按分位数给出慢、标准、快三档建议价格并缓存,查询不访问节点.启动后第一个区块到达时一次性补齐整个窗口.
+ * 链重组后从分叉高度重新采样.尚无样本时使用节点的eth_gasPrice,节点也不可用时使用{@link Constants#GAS_PRICE}.
+ * 同时用eth_feeHistory取同一窗口的基础费用和三档分位数的小费,供EIP-1559交易使用,节点不支持时只给出gasPrice.
+ */
+@Service
+public class GasPriceOracle {
+
+    private static final Logger logger = LoggerFactory.getLogger(GasPriceOracle.class);
+
+    private static final String SOURCE_BLOCKS = "blocks";
+    private static final String SOURCE_NODE = "node";
+    private static final String SOURCE_DEFAULT = "default";
+
+    @Value("${config.gas_oracle.blocks:20}")
+    public int BLOCKS;
+
+    @Value("${config.gas_oracle.slow_percentile:30}")
+    public double SLOW_PERCENTILE;
+
+    @Value("${config.gas_oracle.standard_percentile:60}")
+    public double STANDARD_PERCENTILE;
+
+    @Value("${config.gas_oracle.fast_percentile:90}")
+    public double FAST_PERCENTILE;
+
+    @Value("${config.gas_oracle.min_gwei:1}")
+    public BigDecimal MIN_GWEI;
+
+    @Value("${config.gas_oracle.max_gwei:500}")
+    public BigDecimal MAX_GWEI;
+
+    private final Web3j web3j;
+    private final JsonRpcBatchClient batchClient;
+    private final CoalescingWeb3jService web3jService;
+
+    private GasPriceHistogram histogram;
+
+    /**
+     * 最近一次eth_feeHistory得出的下一区块基础费用和慢、标准、快三档小费,单位wei,不支持时为null
+     */
+    private volatile BigInteger baseFee;
+
+    private volatile BigInteger[] priorityFees;
+
+    private volatile GasPriceSuggestion suggestion;
+
+    /**
+     * 已采样的最高区块,只在采样线程上读写
+     */
+    private long lastSampled = -1;
+
+    private ExecutorService executor;
+
+    public GasPriceOracle(Web3j web3j, JsonRpcBatchClient batchClient, CoalescingWeb3jService web3jService) {
+        this.web3j = web3j;
+        this.batchClient = batchClient;
+        this.web3jService = web3jService;
+    }
+
+    @PostConstruct
+    public void init() {
+        histogram = new GasPriceHistogram(BLOCKS);
+        executor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("gas-oracle-%d").setDaemon(true).build());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @EventListener
+    public void onNewHead(NewHeadEvent event) {
+        long head = event.getBlockNumber();
+        executor.execute(() -> {
+            try {
+                sample(head);
+            } catch (Exception e) {
+                logger.warn("sample gas price of block " + head + " error: " + e.getMessage());
+            }
+        });
+    }
+
+    @EventListener
+    public void onReorg(ChainReorgEvent event) {
+        long fork = event.getForkBlock();
+        executor.execute(() -> lastSampled = Math.min(lastSampled, fork - 1));
+    }
+
+    /**
+     * 当前建议价格
+     */
+    public GasPriceSuggestion getSuggestion() {
+        GasPriceSuggestion current = suggestion;
+        return current != null ? current : fallback();
+    }
+
+    /**
+     * 下一个区块的基础费用
+     *
+     * @return 单位wei,节点不支持EIP-1559时返回null
+     */
+    public BigInteger getBaseFee() {
+        return baseFee;
+    }
+
+    /**
+     * 小费建议
+     *
+     * @return 单位wei,依次为慢、标准、快三档,节点不支持EIP-1559时返回null
+     */
+    public BigInteger[] getPriorityFees() {
+        BigInteger[] fees = priorityFees;
+        return fees == null ? null : fees.clone();
+    }
+
+    private void sample(long head) throws Exception {
+        // 首次或断档时补齐整个窗口,同一高度再次到达说明发生了替换
+        long from = Math.max(lastSampled + 1, head - BLOCKS + 1);
+        if (from > head) {
+            from = head;
+        }
+        List<Request<?, EthBlock>> requests = new ArrayList<>();
+        for (long number = Math.max(from, 0); number <= head; number++) {
+            requests.add(web3j.ethGetBlockByNumber(new DefaultBlockParameterNumber(number), true));
+        }
+        // 补齐窗口按后台任务限流,之后每个区块一次请求按普通读取
+        RpcPriority priority = requests.size() > 1 ? RpcPriority.BACKFILL : null;
+        List<EthBlock> blocks = RpcPriority.with(priority, () -> batchClient.send(requests, EthBlock.class));
+        for (EthBlock ethBlock : blocks) {
+            if (ethBlock.hasError() || ethBlock.getBlock() == null) {
+                continue;
+            }
+            EthBlock.Block block = ethBlock.getBlock();
+            histogram.addBlock(block.getNumber().longValue(), gasPrices(block));
+        }
+        lastSampled = head;
+        sampleFeeHistory();
+        if (histogram.getSamples() > 0) {
+            suggestion = compute();
+        }
+    }
+
+    private void sampleFeeHistory() {
+        try {
+            List<Double> percentiles = Arrays.asList(SLOW_PERCENTILE, STANDARD_PERCENTILE, FAST_PERCENTILE);
+            EthFeeHistory ethFeeHistory = new Request<>("eth_feeHistory",
+                    Arrays.asList(Numeric.encodeQuantity(BigInteger.valueOf(BLOCKS)), "latest", percentiles),
+                    web3jService, EthFeeHistory.class).send();
+            if (ethFeeHistory.hasError() || ethFeeHistory.getFeeHistory() == null) {
+                logger.debug("eth_feeHistory not available: "
+                        + (ethFeeHistory.hasError() ? ethFeeHistory.getError().getMessage() : "empty result"));
+                return;
+            }
+            EthFeeHistory.FeeHistory feeHistory = ethFeeHistory.getFeeHistory();
+            List<String> baseFees = feeHistory.getBaseFeePerGas();
+            if (baseFees == null || baseFees.isEmpty() || feeHistory.getReward() == null) {
+                return;
+            }
+            BigInteger[] fees = new BigInteger[percentiles.size()];
+            for (int i = 0; i < fees.length; i++) {
+                // 每档取窗口内各区块该分位数小费的中位数
+                List<BigInteger> rewards = new ArrayList<>();
+                for (List<String> reward : feeHistory.getReward()) {
+                    if (reward != null && reward.size() > i) {
+                        rewards.add(Numeric.decodeQuantity(reward.get(i)));
+                    }
+                }
+                if (rewards.isEmpty()) {
+                    return;
+                }
+                Collections.sort(rewards);
+                fees[i] = rewards.get(rewards.size() / 2);
+            }
+            priorityFees = fees;
+            baseFee = Numeric.decodeQuantity(baseFees.get(baseFees.size() - 1));
+        } catch (Exception e) {
+            logger.warn("eth_feeHistory error: " + e.getMessage());
+        }
+    }
+
+    private static List<BigInteger> gasPrices(EthBlock.Block block) {
+        List<BigInteger> gasPrices = new ArrayList<>(block.getTransactions().size());
+        for (EthBlock.TransactionResult result : block.getTransactions()) {
+            if (!(result instanceof EthBlock.TransactionObject)) {
+                continue;
+            }
+            BigInteger gasPrice = ((EthBlock.TransactionObject) result).getGasPrice();
+            // 0价格多为矿工自己的交易,不代表市场价格
+            if (gasPrice != null && gasPrice.signum() > 0) {
+                gasPrices.add(gasPrice);
+            }
+        }
+        return gasPrices;
+    }
+
+    private GasPriceSuggestion compute() {
+        GasPriceSuggestion computed = new GasPriceSuggestion();
+        computed.setSlow(toGwei(histogram.percentile(SLOW_PERCENTILE)));
+        computed.setStandard(toGwei(histogram.percentile(STANDARD_PERCENTILE)));
+        computed.setFast(toGwei(histogram.percentile(FAST_PERCENTILE)));
+        BigInteger[] fees = priorityFees;
+        if (baseFee != null && fees != null) {
+            computed.setBaseFee(gwei(baseFee));
+            computed.setSlowPriorityFee(gwei(fees[0]));
+            computed.setStandardPriorityFee(gwei(fees[1]));
+            computed.setFastPriorityFee(gwei(fees[2]));
+        }
+        computed.setSource(SOURCE_BLOCKS);
+        computed.setBlockNumber(histogram.getLatestBlock());
+        computed.setBlocks(histogram.getBlocks());
+        computed.setSamples(histogram.getSamples());
+        computed.setUpdatedAt(System.currentTimeMillis());
+        return computed;
+    }
+
+    private GasPriceSuggestion fallback() {
+        BigInteger gasPrice = Constants.GAS_PRICE;
+        String source = SOURCE_DEFAULT;
+        try {
+            EthGasPrice ethGasPrice = web3j.ethGasPrice().send();
+            if (!ethGasPrice.hasError()) {
+                gasPrice = ethGasPrice.getGasPrice();
+                source = SOURCE_NODE;
+            }
+        } catch (Exception e) {
+            logger.warn("eth_gasPrice error: " + e.getMessage());
+        }
+        BigDecimal gwei = toGwei(gasPrice);
+        GasPriceSuggestion fallback = new GasPriceSuggestion();
+        fallback.setSlow(gwei);
+        fallback.setStandard(gwei);
+        fallback.setFast(gwei);
+        fallback.setSource(source);
+        fallback.setBlockNumber(-1);
+        fallback.setUpdatedAt(System.currentTimeMillis());
+        return fallback;
+    }
+
+    private BigDecimal toGwei(BigInteger wei) {
+        return gwei(wei).max(MIN_GWEI).min(MAX_GWEI);
+    }
+
+    private static BigDecimal gwei(BigInteger wei) {
+        return Convert.fromWei(new BigDecimal(wei), Convert.Unit.GWEI).setScale(2, RoundingMode.CEILING);
+    }
+}
@@ -0,0 +1,235 @@
+package com.funtime.eth.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.DefaultBlockParameterName;
+import org.web3j.protocol.core.methods.response.EthGetTransactionCount;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 本地nonce管理
+ * <p>
+ * 按发送地址在本地分配nonce,只有首次使用、节点返回"nonce too low"或无法确认是否送达时才向节点同步,
+ * 发送失败的nonce会被回收并优先分配,避免同一热钱包并发发送时拿到重复nonce.
+ * 同步时如果还有已预留但未发送完成的nonce,节点的pending nonce不包含它们,只向前推进计数,等全部完成后再完整同步,
+ * 期间的预留不再访问节点.
+ */
+@Component
+public class NonceManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(NonceManager.class);
+
+    /**
+     * 超过该时间仍未发送完成的预留视为已放弃,不再阻止完整同步
+     */
+    private static final long IN_FLIGHT_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final Web3j web3j;
+
+    private final Map<String, AccountNonce> accounts = new ConcurrentHashMap<>();
+
+    public NonceManager(Web3j web3j) {
+        this.web3j = web3j;
+    }
+
+    /**
+     * 为发送地址预留一个nonce
+     *
+     * @param address 发送地址
+     * @return nonce
+     * @throws IOException 同步节点nonce失败
+     */
+    public BigInteger reserve(String address) throws IOException {
+        return reserve(address, 1).get(0);
+    }
+
+    /**
+     * 为发送地址预留一组nonce,回收的nonce优先分配,其余按顺序连续分配
+     *
+     * @param address 发送地址
+     * @param count   数量
+     * @return 按从小到大排列的nonce
+     * @throws IOException 同步节点nonce失败
+     */
+    public List<BigInteger> reserve(String address, int count) throws IOException {
+        AccountNonce account = account(address);
+        synchronized (account) {
+            if (account.next == null) {
+                account.next = fetchPendingNonce(address);
+                account.released.clear();
+                logger.info("nonce synced, address " + address + " nonce " + account.next);
+            } else {
+                settle(account);
+                if (account.stale) {
+                    sync(address, account);
+                }
+            }
+            List<BigInteger> nonces = new ArrayList<>(count);
+            while (nonces.size() < count && !account.released.isEmpty()) {
+                nonces.add(account.released.pollFirst());
+            }
+            while (nonces.size() < count) {
+                nonces.add(account.next);
+                account.next = account.next.add(BigInteger.ONE);
+            }
+            long now = System.currentTimeMillis();
+            for (BigInteger nonce : nonces) {
+                account.inFlight.put(nonce, now);
+            }
+            return nonces;
+        }
+    }
+
+    private void sync(String address, AccountNonce account) throws IOException {
+        BigInteger pending = fetchPendingNonce(address);
+        long expired = System.currentTimeMillis() - IN_FLIGHT_TIMEOUT_MILLIS;
+        account.inFlight.values().removeIf(reservedAt -> reservedAt < expired);
+        if (account.inFlight.isEmpty()) {
+            account.next = pending;
+            account.released.clear();
+            account.stale = false;
+            account.syncWhenSettled = false;
+            logger.info("nonce synced, address " + address + " nonce " + account.next);
+            return;
+        }
+        // 还有未完成的预留,只丢弃节点已使用的nonce,不回退计数,等预留全部完成后再完整同步
+        account.next = account.next.max(pending);
+        account.released.removeIf(nonce -> nonce.compareTo(pending) < 0);
+        account.stale = false;
+        account.syncWhenSettled = true;
+        logger.info("nonce sync deferred, address " + address + " in flight " + account.inFlight.size());
+    }
+
+    /**
+     * 推迟的同步在预留全部完成或超时后重新标记过期
+     */
+    private static void settle(AccountNonce account) {
+        if (!account.syncWhenSettled) {
+            return;
+        }
+        long expired = System.currentTimeMillis() - IN_FLIGHT_TIMEOUT_MILLIS;
+        account.inFlight.values().removeIf(reservedAt -> reservedAt < expired);
+        if (account.inFlight.isEmpty()) {
+            account.stale = true;
+            account.syncWhenSettled = false;
+        }
+    }
+
+    /**
+     * 交易已被节点接受,nonce不再处于预留状态
+     *
+     * @param address 发送地址
+     * @param nonce   已使用的nonce
+     */
+    public void sent(String address, BigInteger nonce) {
+        AccountNonce account = account(address);
+        synchronized (account) {
+            account.inFlight.remove(nonce);
+            settle(account);
+        }
+    }
+
+    /**
+     * 交易未被节点接受时回收nonce,下一次预留时重新分配以填补空洞
+     *
+     * @param address 发送地址
+     * @param nonce   未使用的nonce
+     */
+    public void release(String address, BigInteger nonce) {
+        AccountNonce account = account(address);
+        synchronized (account) {
+            account.inFlight.remove(nonce);
+            settle(account);
+            if (account.next == null || nonce.compareTo(account.next) >= 0) {
+                return;
+            }
+            if (nonce.add(BigInteger.ONE).equals(account.next)) {
+                account.next = nonce;
+                // 连续回收到末尾时直接回退计数
+                while (!account.released.isEmpty() && account.released.last().add(BigInteger.ONE).equals(account.next)) {
+                    account.next = account.released.pollLast();
+                }
+            } else {
+                account.released.add(nonce);
+            }
+        }
+    }
+
+    /**
+     * 标记本地状态过期,下一次预留时重新从节点同步
+     *
+     * @param address 发送地址
+     */
+    public void resync(String address) {
+        AccountNonce account = account(address);
+        synchronized (account) {
+            account.stale = true;
+        }
+        logger.info("nonce resync scheduled, address " + address);
+    }
+
+    /**
+     * 根据节点返回的错误处理已预留的nonce
+     *
+     * @param address      发送地址
+     * @param nonce        已预留的nonce
+     * @param errorMessage 节点错误信息,为null表示请求未送达节点
+     */
+    public void onSendFailure(String address, BigInteger nonce, String errorMessage) {
+        if (errorMessage == null || isNonceConflict(errorMessage)) {
+            // 无法确认节点状态,或本地nonce已落后于节点
+            AccountNonce account = account(address);
+            synchronized (account) {
+                account.inFlight.remove(nonce);
+            }
+            resync(address);
+        } else {
+            release(address, nonce);
+        }
+    }
+
+    private static boolean isNonceConflict(String errorMessage) {
+        String message = errorMessage.toLowerCase();
+        return message.contains("nonce too low")
+                || message.contains("replacement transaction underpriced")
+                || message.contains("already known");
+    }
+
+    private AccountNonce account(String address) {
+        return accounts.computeIfAbsent(address.toLowerCase(), key -> new AccountNonce());
+    }
+
+    private BigInteger fetchPendingNonce(String address) throws IOException {
+        EthGetTransactionCount ethGetTransactionCount = web3j.ethGetTransactionCount(
+                address, DefaultBlockParameterName.PENDING).send();
+        if (ethGetTransactionCount.hasError()) {
+            throw new IOException("getTransactionCount error: " + ethGetTransactionCount.getError().getMessage());
+        }
+        return ethGetTransactionCount.getTransactionCount();
+    }
+
+    private static class AccountNonce {
+        private BigInteger next;
+        private boolean stale;
+        /**
+         * 同步被推迟,预留全部完成后需要完整同步
+         */
+        private boolean syncWhenSettled;
+        private final TreeSet<BigInteger> released = new TreeSet<>();
+        /**
+         * 已预留但还没有发送结果的nonce和预留时间
+         */
+        private final Map<BigInteger, Long> inFlight = new HashMap<>();
+    }
+}
@@ -0,0 +1,349 @@
+package com.funtime.eth.service;
+
+import com.funtime.eth.event.NewHeadEvent;
+import com.funtime.eth.event.TransactionStatusEvent;
+import com.funtime.eth.model.SignedTransaction;
+import com.funtime.eth.model.TransactionConfirmation;
+import com.funtime.eth.model.TransactionFees;
+import com.funtime.eth.rpc.JsonRpcBatchClient;
+import com.funtime.eth.utils.Constants;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.DefaultBlockParameterName;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.methods.response.EthGetTransactionCount;
+import org.web3j.protocol.core.methods.response.EthGetTransactionReceipt;
+import org.web3j.protocol.core.methods.response.EthSendTransaction;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 卡住交易的加价重发
+ * <p>
+ * 本服务广播的交易按(发送地址, nonce)登记,超过{@code config.stuck.blocks}个区块仍未打包时,用同一nonce和
+ * {@link TransactionSigner#bump}加价后的费用重新签名广播,同一发送地址按nonce从小到大处理,先解开最前面的阻塞.
+ * 每次替换后旧hash在{@link ConfirmationTracker}中以replaced状态结束并回调,新hash沿用原业务编号继续跟踪;
+ * 最终打包的是更早的某个hash时同样切换回去.已打包的交易达到确认深度(confirmed、failed)或被丢弃后才结束监控,
+ * 打包后因链重组回到交易池的交易会继续加价.该nonce被其他交易占用后不再处理.
+ * <p>
+ * 开启{@code config.stuck.cancel}后,加价{@code config.stuck.max_bumps}次仍未打包时改为发给自己的0金额交易取消原交易,
+ * 原交易以cancelled状态回调,取消交易不带业务编号,卡住时同样加价;之后原交易若仍被打包,重新按原业务编号跟踪和回调.
+ * <p>
+ * 重新签名需要私钥,私钥只在交易打包前保存在内存中,不落盘,服务重启后之前的交易不再自动加价.
+ */
+@Service
+public class PendingTransactionMonitor {
+
+    private static final Logger logger = LoggerFactory.getLogger(PendingTransactionMonitor.class);
+
+    @Value("${config.stuck.enabled:true}")
+    public boolean ENABLED;
+
+    @Value("${config.stuck.blocks:12}")
+    public int STUCK_BLOCKS;
+
+    @Value("${config.stuck.max_bumps:3}")
+    public int MAX_BUMPS;
+
+    @Value("${config.stuck.cancel:false}")
+    public boolean CANCEL;
+
+    private final Web3j web3j;
+    private final JsonRpcBatchClient batchClient;
+    private final TransactionSigner transactionSigner;
+    private final ConfirmationTracker confirmationTracker;
+    private final GasLimitEstimator gasLimitEstimator;
+    private final BlockHeadTracker blockHeadTracker;
+
+    /**
+     * 发送地址:nonce -> 交易
+     */
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+
+    /**
+     * 各次广播的hash -> 发送地址:nonce
+     */
+    private final Map<String, String> hashIndex = new ConcurrentHashMap<>();
+
+    private ExecutorService executor;
+
+    public PendingTransactionMonitor(Web3j web3j, JsonRpcBatchClient batchClient, TransactionSigner transactionSigner,
+                                     ConfirmationTracker confirmationTracker, GasLimitEstimator gasLimitEstimator,
+                                     BlockHeadTracker blockHeadTracker) {
+        this.web3j = web3j;
+        this.batchClient = batchClient;
+        this.transactionSigner = transactionSigner;
+        this.confirmationTracker = confirmationTracker;
+        this.gasLimitEstimator = gasLimitEstimator;
+        this.blockHeadTracker = blockHeadTracker;
+    }
+
+    @PostConstruct
+    public void init() {
+        executor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("pending-monitor-%d").setDaemon(true).build());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 登记已广播的交易
+     *
+     * @param fromAddress 发送地址
+     * @param toAddress   回调中的接收方,代币转账为合约地址
+     * @param signed      已签名的交易
+     * @param privateKey  发送地址的私钥,用于重新签名
+     * @param businesCode 业务编号
+     */
+    public void track(String fromAddress, String toAddress, SignedTransaction signed, String privateKey, String businesCode) {
+        if (!ENABLED || signed == null) {
+            return;
+        }
+        Pending transaction = new Pending(fromAddress, toAddress, privateKey, businesCode, signed, blockHeadTracker.getHead());
+        String key = key(fromAddress, signed.getNonce());
+        pending.put(key, transaction);
+        hashIndex.put(signed.getTransactionHash().toLowerCase(), key);
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    @EventListener
+    public void onStatus(TransactionStatusEvent event) {
+        TransactionConfirmation confirmation = event.getConfirmation();
+        String status = confirmation.getStatus();
+        if (!TransactionConfirmation.CONFIRMED.equals(status) && !TransactionConfirmation.FAILED.equals(status)
+                && !TransactionConfirmation.DROPPED.equals(status)) {
+            return;
+        }
+        String key = hashIndex.get(confirmation.getTransactionHash().toLowerCase());
+        if (key != null) {
+            executor.execute(() -> remove(key));
+        }
+    }
+
+    @EventListener
+    public void onNewHead(NewHeadEvent event) {
+        if (!ENABLED || pending.isEmpty()) {
+            return;
+        }
+        long head = event.getBlockNumber();
+        executor.execute(() -> {
+            try {
+                check(head);
+            } catch (Exception e) {
+                logger.warn("check stuck transactions at block " + head + " error: " + e.getMessage());
+            }
+        });
+    }
+
+    private void check(long head) throws Exception {
+        List<Pending> stuck = new ArrayList<>();
+        for (Pending transaction : pending.values()) {
+            if (transaction.sentBlock < 0) {
+                // 登记时还没有区块高度,从第一个区块开始计算
+                transaction.sentBlock = head;
+            } else if (head - transaction.sentBlock >= STUCK_BLOCKS) {
+                stuck.add(transaction);
+            }
+        }
+        if (stuck.isEmpty()) {
+            return;
+        }
+        stuck.sort(Comparator.comparing((Pending transaction) -> transaction.fromAddress.toLowerCase())
+                .thenComparing(transaction -> transaction.current.getNonce()));
+
+        // 一次批量查询所有历次hash的收据和各发送地址已打包的nonce
+        List<Request<?, EthGetTransactionReceipt>> receiptRequests = new ArrayList<>();
+        for (Pending transaction : stuck) {
+            for (String hash : transaction.hashes) {
+                receiptRequests.add(web3j.ethGetTransactionReceipt(hash));
+            }
+        }
+        Map<String, Request<?, EthGetTransactionCount>> nonceRequests = new LinkedHashMap<>();
+        for (Pending transaction : stuck) {
+            nonceRequests.computeIfAbsent(transaction.fromAddress.toLowerCase(),
+                    address -> web3j.ethGetTransactionCount(address, DefaultBlockParameterName.LATEST));
+        }
+        List<EthGetTransactionReceipt> receipts = batchClient.send(receiptRequests, EthGetTransactionReceipt.class);
+        List<EthGetTransactionCount> counts = batchClient.send(new ArrayList<>(nonceRequests.values()), EthGetTransactionCount.class);
+        Map<String, BigInteger> minedNonces = new LinkedHashMap<>();
+        int index = 0;
+        for (String address : nonceRequests.keySet()) {
+            EthGetTransactionCount count = counts.get(index++);
+            if (!count.hasError()) {
+                minedNonces.put(address, count.getTransactionCount());
+            }
+        }
+
+        index = 0;
+        for (Pending transaction : stuck) {
+            String mined = null;
+            for (String hash : transaction.hashes) {
+                EthGetTransactionReceipt receipt = receipts.get(index++);
+                if (!receipt.hasError() && receipt.getResult() != null) {
+                    mined = hash;
+                }
+            }
+            if (mined != null) {
+                onMined(transaction, mined, head);
+                continue;
+            }
+            BigInteger minedNonce = minedNonces.get(transaction.fromAddress.toLowerCase());
+            if (minedNonce != null && minedNonce.compareTo(transaction.current.getNonce()) > 0) {
+                logger.warn("nonce " + transaction.current.getNonce() + " of " + transaction.fromAddress
+                        + " used by another transaction, stop replacing " + transaction.current.getTransactionHash());
+                remove(key(transaction.fromAddress, transaction.current.getNonce()));
+                continue;
+            }
+            replace(transaction, head);
+        }
+    }
+
+    /**
+     * 已打包的交易等待达到确认深度,打包的是更早广播的hash时,把跟踪和回调切换回该hash
+     */
+    private void onMined(Pending transaction, String minedHash, long head) {
+        transaction.sentBlock = head;
+        String tracked = transaction.trackedHash;
+        if (!minedHash.equalsIgnoreCase(tracked)) {
+            logger.info("earlier transaction " + minedHash + " mined instead of " + tracked);
+            transaction.trackedHash = minedHash;
+            confirmationTracker.replace(tracked, minedHash);
+            if (transaction.isCancel(minedHash)) {
+                confirmationTracker.register(minedHash, transaction.fromAddress, transaction.fromAddress, null);
+            } else {
+                confirmationTracker.register(minedHash, transaction.fromAddress, transaction.toAddress, transaction.businesCode);
+            }
+        }
+    }
+
+    private void replace(Pending transaction, long head) throws Exception {
+        SignedTransaction previous = transaction.current;
+        TransactionFees fees = transactionSigner.bump(previous.getFees());
+        if (fees == null) {
+            logger.error("transaction " + previous.getTransactionHash() + " stuck at fee cap, nonce " + previous.getNonce()
+                    + " of " + transaction.fromAddress);
+            transaction.sentBlock = head;
+            return;
+        }
+        boolean cancel = transaction.cancelIndex >= 0 || CANCEL && transaction.bumps >= MAX_BUMPS;
+        SignedTransaction signed = cancel
+                ? transactionSigner.sign(previous.getNonce(), fees, Constants.GAS_LIMIT_ETHER_TX, transaction.fromAddress,
+                BigInteger.ZERO, null, transaction.privateKey)
+                : transactionSigner.sign(previous.getNonce(), fees, previous.getGasLimit(), previous.getTo(),
+                previous.getValue(), previous.getData(), transaction.privateKey);
+
+        EthSendTransaction response = web3j.ethSendRawTransaction(signed.getHexValue()).send();
+        transaction.sentBlock = head;
+        if (response.hasError()) {
+            String message = response.getError().getMessage();
+            if (message.contains("nonce too low")) {
+                // 原交易刚好打包,下一个区块由收据确认
+                logger.info("nonce " + previous.getNonce() + " of " + transaction.fromAddress + " already used");
+                return;
+            }
+            if (!message.contains("known transaction") && !message.contains("already known")) {
+                logger.warn("replace transaction " + previous.getTransactionHash() + " failed: " + message);
+                return;
+            }
+        }
+
+        String replacement = signed.getTransactionHash();
+        String tracked = transaction.trackedHash;
+        transaction.trackedHash = replacement;
+        boolean firstCancel = cancel && transaction.cancelIndex < 0;
+        if (firstCancel) {
+            transaction.cancelIndex = transaction.hashes.size();
+        }
+        transaction.current = signed;
+        transaction.hashes.add(replacement);
+        transaction.bumps++;
+        hashIndex.put(replacement.toLowerCase(), key(transaction.fromAddress, previous.getNonce()));
+        if (firstCancel) {
+            // 原交易以cancelled回调,取消交易与业务无关
+            confirmationTracker.cancel(tracked, replacement);
+            confirmationTracker.register(replacement, transaction.fromAddress, transaction.fromAddress, null);
+        } else if (cancel) {
+            confirmationTracker.replace(tracked, replacement);
+            confirmationTracker.register(replacement, transaction.fromAddress, transaction.fromAddress, null);
+        } else {
+            confirmationTracker.replace(tracked, replacement);
+            confirmationTracker.register(replacement, transaction.fromAddress, transaction.toAddress, transaction.businesCode);
+            gasLimitEstimator.track(replacement, signed.getTo(), signed.getData(), signed.getGasLimit());
+        }
+        logger.info((cancel ? "cancelled " : "replaced ") + previous.getTransactionHash() + " with " + replacement
+                + ", nonce " + previous.getNonce() + " of " + transaction.fromAddress);
+    }
+
+    private void remove(String key) {
+        Pending transaction = pending.remove(key);
+        if (transaction != null) {
+            for (String hash : transaction.hashes) {
+                hashIndex.remove(hash.toLowerCase());
+            }
+        }
+    }
+
+    private static String key(String address, BigInteger nonce) {
+        return address.toLowerCase() + ":" + nonce;
+    }
+
+    private static class Pending {
+        private final String fromAddress;
+        private final String toAddress;
+        private final String privateKey;
+        private final String businesCode;
+        private final List<String> hashes = new CopyOnWriteArrayList<>();
+        private volatile SignedTransaction current;
+
+        /**
+         * {@link ConfirmationTracker}中跟踪的hash,通常是最后广播的,更早的hash被打包时切换为该hash
+         */
+        private volatile String trackedHash;
+        private volatile long sentBlock;
+        private volatile int bumps;
+
+        /**
+         * 第一笔取消交易在hashes中的位置,之后的都是取消交易,未取消时为-1
+         */
+        private volatile int cancelIndex = -1;
+
+        private Pending(String fromAddress, String toAddress, String privateKey, String businesCode,
+                        SignedTransaction current, long sentBlock) {
+            this.fromAddress = fromAddress;
+            this.toAddress = toAddress;
+            this.privateKey = privateKey;
+            this.businesCode = businesCode;
+            this.current = current;
+            this.trackedHash = current.getTransactionHash();
+            this.sentBlock = sentBlock;
+            hashes.add(current.getTransactionHash());
+        }
+
+        private boolean isCancel(String hash) {
+            int index = hashes.indexOf(hash);
+            return cancelIndex >= 0 && index >= cancelIndex;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.funtime.eth.service;
+
+import com.funtime.eth.model.PriceQuote;
+import com.funtime.eth.utils.ConvertUtil;
+import com.funtime.eth.utils.JsonUtil;
+import com.funtime.eth.utils.OkHttpUtil;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ETH行情
+ * <p>
+ * 后台按{@code config.price.refresh_seconds}从{@code config.third_party_price_api}刷新ETH对BTC、USD、CNY的价格,
+ * 接口直接读取内存中的最新值,刷新失败时保留上一次的价格,超过{@code config.price.stale_seconds}未刷新成功标记为过期.
+ */
+@Service
+public class PriceFeedService {
+
+    private static final Logger logger = LoggerFactory.getLogger(PriceFeedService.class);
+
+    private static final String SYMBOL = "ETH";
+
+    @Value("${config.third_party_price_api}")
+    public String THIRD_PARTY_PRICE_API;
+
+    @Value("${config.price.refresh_seconds:60}")
+    public long REFRESH_SECONDS;
+
+    @Value("${config.price.stale_seconds:600}")
+    public long STALE_SECONDS;
+
+    private final OkHttpUtil okHttpUtil;
+
+    private volatile Map<String, BigDecimal> prices = Collections.emptyMap();
+
+    private volatile long updatedAt;
+
+    private ScheduledExecutorService scheduler;
+
+    public PriceFeedService(OkHttpUtil okHttpUtil) {
+        this.okHttpUtil = okHttpUtil;
+    }
+
+    @PostConstruct
+    public void init() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("price-feed-%d").setDaemon(true).build());
+        scheduler.scheduleWithFixedDelay(this::refresh, 0, REFRESH_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 最新行情
+     *
+     * @return 尚未刷新成功时prices为空
+     */
+    public PriceQuote getQuote() {
+        long now = System.currentTimeMillis();
+        PriceQuote quote = new PriceQuote();
+        quote.setSymbol(SYMBOL);
+        quote.setPrices(prices);
+        quote.setUpdatedAt(updatedAt);
+        quote.setAgeMillis(updatedAt == 0 ? -1 : now - updatedAt);
+        quote.setStale(updatedAt == 0 || now - updatedAt > TimeUnit.SECONDS.toMillis(STALE_SECONDS));
+        return quote;
+    }
+
+    /**
+     * 1 ETH的价格
+     *
+     * @param currency BTC、USD、CNY
+     * @return 尚未获取到时返回null
+     */
+    public BigDecimal getPrice(String currency) {
+        return prices.get(currency);
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    private void refresh() {
+        try {
+            String result = okHttpUtil.get(THIRD_PARTY_PRICE_API, null);
+            if (StringUtils.isEmpty(result)) {
+                logger.warn("refresh eth price failed, keep price of " + updatedAt);
+                return;
+            }
+            Map<String, Object> map = JsonUtil.convertJsonStrToMap(result);
+            Map<String, BigDecimal> refreshed = new LinkedHashMap<>();
+            for (Map.Entry<String, Object> entry : map.entrySet()) {
+                if (entry.getValue() instanceof Number) {
+                    refreshed.put(entry.getKey(), ConvertUtil.getBigDecimal(entry.getValue()));
+                }
+            }
+            if (refreshed.isEmpty()) {
+                logger.warn("unexpected eth price response: " + result);
+                return;
+            }
+            prices = Collections.unmodifiableMap(refreshed);
+            updatedAt = System.currentTimeMillis();
+            logger.debug("eth price " + refreshed);
+        } catch (Exception e) {
+            logger.warn("refresh eth price error: " + e.getMessage());
+        }
+    }
+}
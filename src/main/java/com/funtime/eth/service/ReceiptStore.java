@@ -0,0 +1,241 @@
+package com.funtime.eth.service;
+
+import com.alibaba.fastjson.JSON;
+import com.funtime.eth.event.ChainReorgEvent;
+import com.funtime.eth.model.TransactionReceiptResponse;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 已确认交易收据存储
+ * <p>
+ * 达到{@code config.receipt_store.confirmations}个确认的交易结果不会再变化,以JSON行追加写入
+ * {@code config.transaction_receipt_path}下的receipts.log,内存中只保留hash到文件位置的索引和少量热点记录.
+ * 手续费按接口的默认gas上限计算,同一交易在不同接口下结果不同,因此按(hash,默认gas)分别保存.
+ * 每行格式为{@code key\tblockNumber\tjson},json为空表示该记录因链重组作废.启动时扫描文件重建索引,
+ * 末尾未写完整的记录会被截断.
+ */
+@Component
+public class ReceiptStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReceiptStore.class);
+
+    private static final String FILE_NAME = "receipts.log";
+
+    @Value("${config.transaction_receipt_path}")
+    public String TRANSACTION_RECEIPT_PATH;
+
+    @Value("${config.receipt_store.confirmations:12}")
+    public int CONFIRMATIONS;
+
+    @Value("${config.receipt_store.hot_size:10000}")
+    public long HOT_SIZE;
+
+    private final BlockHeadTracker blockHeadTracker;
+
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+
+    private Cache<String, TransactionReceiptResponse> hot;
+
+    private FileChannel channel;
+
+    public ReceiptStore(BlockHeadTracker blockHeadTracker) {
+        this.blockHeadTracker = blockHeadTracker;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        hot = CacheBuilder.newBuilder().maximumSize(HOT_SIZE).build();
+        File dir = new File(TRANSACTION_RECEIPT_PATH);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("create receipt store dir failed: " + dir);
+        }
+        channel = FileChannel.open(new File(dir, FILE_NAME).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long end = rebuildIndex();
+        if (end < channel.size()) {
+            logger.warn("truncate incomplete receipt record at " + end);
+            channel.truncate(end);
+        }
+        logger.info("receipt store loaded " + index.size() + " receipts");
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * 查询已保存的交易结果
+     *
+     * @param transactionHash 交易hash
+     * @param defaultGas      计算手续费时使用的gas上限
+     * @return 交易结果,未保存时返回null
+     */
+    public TransactionReceiptResponse get(String transactionHash, BigInteger defaultGas) {
+        String key = key(transactionHash, defaultGas);
+        TransactionReceiptResponse response = hot.getIfPresent(key);
+        if (response != null) {
+            return response;
+        }
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(location.length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, location.offset + buffer.position()) < 0) {
+                    throw new IOException("unexpected end of receipt store");
+                }
+            }
+            String record = new String(buffer.array(), StandardCharsets.UTF_8);
+            response = JSON.parseObject(record.split("\t", 3)[2], TransactionReceiptResponse.class);
+            hot.put(key, response);
+            return response;
+        } catch (IOException e) {
+            logger.error("read receipt error, hash " + transactionHash, e);
+            return null;
+        }
+    }
+
+    /**
+     * 交易达到确认数时保存,未达到时忽略
+     *
+     * @param response   交易结果
+     * @param defaultGas 计算手续费时使用的gas上限
+     */
+    public void putIfFinal(TransactionReceiptResponse response, BigInteger defaultGas) {
+        if (response == null || response.getTransactionHash() == null || response.getBlockNumber() == null) {
+            return;
+        }
+        long head = blockHeadTracker.getHead();
+        if (head < 0 || head - Long.parseLong(response.getBlockNumber()) + 1 < CONFIRMATIONS) {
+            return;
+        }
+        String key = key(response.getTransactionHash(), defaultGas);
+        if (index.containsKey(key)) {
+            return;
+        }
+        try {
+            append(key, response);
+        } catch (IOException e) {
+            logger.error("save receipt error, hash " + key, e);
+        }
+    }
+
+    private synchronized void append(String key, TransactionReceiptResponse response) throws IOException {
+        if (index.containsKey(key)) {
+            return;
+        }
+        long blockNumber = Long.parseLong(response.getBlockNumber());
+        byte[] record = (key + "\t" + blockNumber + "\t" + JSON.toJSONString(response)).getBytes(StandardCharsets.UTF_8);
+        long offset = write(record);
+        index.put(key, new Location(offset, record.length, blockNumber));
+        hot.put(key, response);
+    }
+
+    private long write(byte[] record) throws IOException {
+        long offset = channel.size();
+        ByteBuffer buffer = ByteBuffer.allocate(record.length + 1);
+        buffer.put(record).put((byte) '\n').flip();
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return offset;
+    }
+
+    /**
+     * 超过确认数的重组很少见,发生时作废被替换区块中的记录
+     */
+    @EventListener
+    public synchronized void onReorg(ChainReorgEvent event) {
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            if (entry.getValue().blockNumber < event.getForkBlock()) {
+                continue;
+            }
+            try {
+                write((entry.getKey() + "\t" + entry.getValue().blockNumber + "\t").getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                // 保留索引,与文件一致,下一次链重组时重试
+                logger.error("write receipt tombstone error, key " + entry.getKey(), e);
+                continue;
+            }
+            index.remove(entry.getKey());
+            hot.invalidate(entry.getKey());
+            logger.warn("drop receipt " + entry.getKey() + " of reorged block " + entry.getValue().blockNumber);
+        }
+    }
+
+    /**
+     * 扫描文件重建索引
+     *
+     * @return 最后一条完整记录的结束位置
+     */
+    private long rebuildIndex() throws IOException {
+        channel.position(0);
+        // 不关闭该流,关闭会同时关闭channel
+        InputStream in = new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long offset = 0;
+        long position = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            position++;
+            if (b != '\n') {
+                line.write(b);
+                continue;
+            }
+            int length = line.size();
+            String[] parts = line.toString(StandardCharsets.UTF_8.name()).split("\t", 3);
+            if (parts.length < 3) {
+                logger.warn("skip broken receipt record at " + offset);
+            } else if (parts[2].isEmpty()) {
+                index.remove(parts[0]);
+            } else {
+                index.put(parts[0], new Location(offset, length, Long.parseLong(parts[1])));
+            }
+            line.reset();
+            offset = position;
+        }
+        return offset;
+    }
+
+    private static String key(String transactionHash, BigInteger defaultGas) {
+        return transactionHash.toLowerCase() + "|" + defaultGas;
+    }
+
+    private static class Location {
+        private final long offset;
+        private final int length;
+        private final long blockNumber;
+
+        private Location(long offset, int length, long blockNumber) {
+            this.offset = offset;
+            this.length = length;
+            this.blockNumber = blockNumber;
+        }
+    }
+}
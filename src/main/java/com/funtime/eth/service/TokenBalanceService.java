@@ -0,0 +1,140 @@
+package com.funtime.eth.service;
+
+import com.funtime.eth.model.TokenBalance;
+import com.funtime.eth.model.TokenMetadata;
+import com.funtime.eth.rpc.JsonRpcBatchClient;
+import com.funtime.eth.utils.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.web3j.abi.FunctionEncoder;
+import org.web3j.abi.FunctionReturnDecoder;
+import org.web3j.abi.TypeReference;
+import org.web3j.abi.datatypes.Address;
+import org.web3j.abi.datatypes.Function;
+import org.web3j.abi.datatypes.Type;
+import org.web3j.abi.datatypes.generated.Uint256;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.DefaultBlockParameterName;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.methods.request.Transaction;
+import org.web3j.protocol.core.methods.response.EthCall;
+
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * 批量查询代币余额
+ * <p>
+ * 地址 × 合约的所有balanceOf调用组装为JSON-RPC批量请求,按{@code config.rpc_batch_size}拆分后并行发送,
+ * 某一批次失败只影响该批次的结果.单次最多查询{@code config.token_balance.max_pairs}个(地址,合约)组合.
+ */
+@Service
+public class TokenBalanceService {
+
+    private static final Logger logger = LoggerFactory.getLogger(TokenBalanceService.class);
+
+    @Value("${config.token_balance.max_pairs:10000}")
+    public int MAX_PAIRS;
+
+    private final Web3j web3j;
+    private final JsonRpcBatchClient batchClient;
+    private final TokenMetadataCache tokenMetadataCache;
+
+    public TokenBalanceService(Web3j web3j, JsonRpcBatchClient batchClient, TokenMetadataCache tokenMetadataCache) {
+        this.web3j = web3j;
+        this.batchClient = batchClient;
+        this.tokenMetadataCache = tokenMetadataCache;
+    }
+
+    /**
+     * 查询多个地址在多个合约上的余额
+     *
+     * @param addresses         钱包地址
+     * @param contractAddresses 代币合约地址
+     * @return 每个(地址,合约)一条,按地址、合约的输入顺序排列
+     */
+    public List<TokenBalance> getBalances(List<String> addresses, List<String> contractAddresses) {
+        if ((long) addresses.size() * contractAddresses.size() > MAX_PAIRS) {
+            throw new IllegalArgumentException("too many addresses x contracts, max " + MAX_PAIRS);
+        }
+        Map<String, Integer> decimals = new HashMap<>();
+        for (String contractAddress : contractAddresses) {
+            TokenMetadata tokenMetadata = tokenMetadataCache.get(contractAddress);
+            decimals.put(contractAddress, tokenMetadata == null ? 18 : tokenMetadata.getDecimals());
+        }
+
+        List<TokenBalance> balances = new ArrayList<>(addresses.size() * contractAddresses.size());
+        List<Request<?, EthCall>> requests = new ArrayList<>(addresses.size() * contractAddresses.size());
+        for (String address : addresses) {
+            for (String contractAddress : contractAddresses) {
+                TokenBalance balance = new TokenBalance();
+                balance.setAddress(address);
+                balance.setContractAddress(contractAddress);
+                balances.add(balance);
+                Transaction transaction = Transaction.createEthCallTransaction(address, contractAddress,
+                        FunctionEncoder.encode(balanceOf(address)));
+                requests.add(web3j.ethCall(transaction, DefaultBlockParameterName.LATEST));
+            }
+        }
+        if (requests.isEmpty()) {
+            return balances;
+        }
+
+        // 每批单独发送,失败时只标记该批次
+        List<CompletableFuture<List<EthCall>>> chunks = new ArrayList<>();
+        for (int from = 0; from < requests.size(); from += batchClient.RPC_BATCH_SIZE) {
+            int to = Math.min(from + batchClient.RPC_BATCH_SIZE, requests.size());
+            chunks.add(batchClient.sendParallel(requests.subList(from, to), EthCall.class));
+        }
+
+        Function function = balanceOf(Constants.EMPTY_ADDRESS);
+        for (int chunk = 0; chunk < chunks.size(); chunk++) {
+            int from = chunk * batchClient.RPC_BATCH_SIZE;
+            List<TokenBalance> chunkBalances = balances.subList(from, Math.min(from + batchClient.RPC_BATCH_SIZE, balances.size()));
+            List<EthCall> responses;
+            try {
+                responses = chunks.get(chunk).join();
+            } catch (CompletionException e) {
+                logger.error("batch balanceOf error, entries " + from + " - " + (from + chunkBalances.size() - 1), e);
+                for (TokenBalance balance : chunkBalances) {
+                    balance.setError(e.getCause().getMessage());
+                }
+                continue;
+            }
+            decode(chunkBalances, responses, function, decimals);
+        }
+        logger.info("batch balanceOf size " + balances.size());
+        return balances;
+    }
+
+    private static void decode(List<TokenBalance> balances, List<EthCall> responses, Function function,
+                               Map<String, Integer> decimals) {
+        for (int i = 0; i < balances.size(); i++) {
+            TokenBalance balance = balances.get(i);
+            EthCall ethCall = responses.get(i);
+            if (ethCall.hasError()) {
+                balance.setError(ethCall.getError().getMessage());
+                continue;
+            }
+            List<Type> results = FunctionReturnDecoder.decode(ethCall.getValue(), function.getOutputParameters());
+            if (results.isEmpty()) {
+                balance.setError("empty result");
+                continue;
+            }
+            balance.setBalance(TokenService.toDecimal(decimals.get(balance.getContractAddress()), (BigInteger) results.get(0).getValue()));
+        }
+    }
+
+    private static Function balanceOf(String address) {
+        List<Type> inputParameters = new ArrayList<>();
+        inputParameters.add(new Address(address));
+        List<TypeReference<?>> outputParameters = new ArrayList<>();
+        outputParameters.add(new TypeReference<Uint256>() {
+        });
+        return new Function("balanceOf", inputParameters, outputParameters);
+    }
+}
@@ -0,0 +1,262 @@
+package com.funtime.eth.service;
+
+import com.alibaba.fastjson.JSON;
+import com.funtime.eth.model.TokenMetadata;
+import com.funtime.eth.rpc.JsonRpcBatchClient;
+import com.funtime.eth.utils.Constants;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.web3j.abi.FunctionEncoder;
+import org.web3j.abi.FunctionReturnDecoder;
+import org.web3j.abi.TypeReference;
+import org.web3j.abi.datatypes.Function;
+import org.web3j.abi.datatypes.Type;
+import org.web3j.abi.datatypes.Utf8String;
+import org.web3j.abi.datatypes.generated.Uint256;
+import org.web3j.abi.datatypes.generated.Uint8;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.DefaultBlockParameterName;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.methods.request.Transaction;
+import org.web3j.protocol.core.methods.response.EthCall;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 代币基础信息缓存
+ * <p>
+ * name/symbol/decimals对同一合约不会变化,首次查询时通过一次JSON-RPC批量请求同时获取四个字段,之后从内存返回;
+ * totalSupply可能变化,单独缓存较短时间.配置{@code config.token_metadata_snapshot_path}后,
+ * 新增的内容每{@code config.token_metadata.flush_seconds}秒和关闭时落盘,启动时加载.
+ */
+@Component
+public class TokenMetadataCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(TokenMetadataCache.class);
+
+    @Value("${config.token_metadata.max_size:10000}")
+    public long MAX_SIZE;
+
+    @Value("${config.token_metadata.total_supply_ttl_seconds:30}")
+    public long TOTAL_SUPPLY_TTL_SECONDS;
+
+    @Value("${config.token_metadata_snapshot_path:}")
+    public String SNAPSHOT_PATH;
+
+    @Value("${config.token_metadata.flush_seconds:60}")
+    public long FLUSH_SECONDS;
+
+    private final Web3j web3j;
+    private final JsonRpcBatchClient batchClient;
+
+    private Cache<String, TokenMetadata> metadata;
+    private Cache<String, BigInteger> totalSupply;
+
+    /**
+     * 上次落盘后有新增内容
+     */
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    private ScheduledExecutorService scheduler;
+
+    public TokenMetadataCache(Web3j web3j, JsonRpcBatchClient batchClient) {
+        this.web3j = web3j;
+        this.batchClient = batchClient;
+    }
+
+    @PostConstruct
+    public void init() {
+        metadata = CacheBuilder.newBuilder().maximumSize(MAX_SIZE).build();
+        totalSupply = CacheBuilder.newBuilder()
+                .maximumSize(MAX_SIZE)
+                .expireAfterWrite(TOTAL_SUPPLY_TTL_SECONDS, TimeUnit.SECONDS)
+                .build();
+        loadSnapshot();
+        if (StringUtils.isNotEmpty(SNAPSHOT_PATH)) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("token-metadata-flush-%d").setDaemon(true).build());
+            scheduler.scheduleWithFixedDelay(this::flush, FLUSH_SECONDS, FLUSH_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        flush();
+    }
+
+    /**
+     * 查询代币信息
+     *
+     * @param contractAddress 合约地址
+     * @return 代币信息,节点不可用时返回null
+     */
+    public TokenMetadata get(String contractAddress) {
+        String key = contractAddress.toLowerCase();
+        TokenMetadata cached = metadata.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            TokenMetadata loaded = metadata.get(key, () -> load(key));
+            dirty.set(true);
+            return loaded;
+        } catch (ExecutionException | RuntimeException e) {
+            logger.error("load token metadata error, contract " + contractAddress, e);
+            return null;
+        }
+    }
+
+    /**
+     * 查询代币发行总量
+     *
+     * @param contractAddress 合约地址
+     * @return 发行总量,节点不可用时返回0
+     */
+    public BigInteger getTotalSupply(String contractAddress) {
+        String key = contractAddress.toLowerCase();
+        try {
+            return totalSupply.get(key, () -> loadTotalSupply(key));
+        } catch (ExecutionException | RuntimeException e) {
+            logger.error("load token totalSupply error, contract " + contractAddress, e);
+            return BigInteger.ZERO;
+        }
+    }
+
+    private TokenMetadata load(String contractAddress) throws IOException {
+        Function name = function("name", new TypeReference<Utf8String>() {
+        });
+        Function symbol = function("symbol", new TypeReference<Utf8String>() {
+        });
+        Function decimals = function("decimals", new TypeReference<Uint8>() {
+        });
+        Function supply = function("totalSupply", new TypeReference<Uint256>() {
+        });
+        List<Request<?, EthCall>> requests = new ArrayList<>();
+        requests.add(ethCall(contractAddress, name));
+        requests.add(ethCall(contractAddress, symbol));
+        requests.add(ethCall(contractAddress, decimals));
+        requests.add(ethCall(contractAddress, supply));
+        List<EthCall> responses = batchClient.send(requests, EthCall.class);
+
+        Object decimalsValue = decode(responses.get(2), decimals);
+        if (decimalsValue == null) {
+            throw new IOException("decimals unavailable for contract " + contractAddress);
+        }
+        TokenMetadata tokenMetadata = new TokenMetadata();
+        tokenMetadata.setContractAddress(contractAddress);
+        tokenMetadata.setName((String) decode(responses.get(0), name));
+        tokenMetadata.setSymbol((String) decode(responses.get(1), symbol));
+        tokenMetadata.setDecimals(((BigInteger) decimalsValue).intValue());
+
+        BigInteger supplyValue = (BigInteger) decode(responses.get(3), supply);
+        if (supplyValue != null) {
+            totalSupply.put(contractAddress, supplyValue);
+        }
+        logger.info("token metadata loaded " + JSON.toJSONString(tokenMetadata));
+        return tokenMetadata;
+    }
+
+    private BigInteger loadTotalSupply(String contractAddress) throws IOException {
+        Function supply = function("totalSupply", new TypeReference<Uint256>() {
+        });
+        EthCall ethCall = ethCall(contractAddress, supply).send();
+        BigInteger value = (BigInteger) decode(ethCall, supply);
+        if (value == null) {
+            throw new IOException("totalSupply unavailable for contract " + contractAddress);
+        }
+        return value;
+    }
+
+    private static Function function(String methodName, TypeReference<?> output) {
+        List<TypeReference<?>> outputParameters = new ArrayList<>();
+        outputParameters.add(output);
+        return new Function(methodName, Collections.emptyList(), outputParameters);
+    }
+
+    private Request<?, EthCall> ethCall(String contractAddress, Function function) {
+        Transaction transaction = Transaction.createEthCallTransaction(Constants.EMPTY_ADDRESS, contractAddress,
+                FunctionEncoder.encode(function));
+        return web3j.ethCall(transaction, DefaultBlockParameterName.LATEST);
+    }
+
+    private static Object decode(EthCall ethCall, Function function) {
+        if (ethCall.hasError() || StringUtils.isEmpty(ethCall.getValue()) || "0x".equals(ethCall.getValue())) {
+            return null;
+        }
+        try {
+            List<Type> results = FunctionReturnDecoder.decode(ethCall.getValue(), function.getOutputParameters());
+            return results.isEmpty() ? null : results.get(0).getValue();
+        } catch (RuntimeException e) {
+            // 部分老合约name/symbol返回bytes32,无法按string解析
+            logger.warn("decode " + function.getName() + " error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void loadSnapshot() {
+        if (StringUtils.isEmpty(SNAPSHOT_PATH)) {
+            return;
+        }
+        File file = new File(SNAPSHOT_PATH);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            List<TokenMetadata> snapshot = JSON.parseArray(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8), TokenMetadata.class);
+            for (TokenMetadata tokenMetadata : snapshot) {
+                metadata.put(tokenMetadata.getContractAddress().toLowerCase(), tokenMetadata);
+            }
+            logger.info("token metadata snapshot loaded, size " + snapshot.size());
+        } catch (Exception e) {
+            logger.error("load token metadata snapshot error", e);
+        }
+    }
+
+    private void flush() {
+        if (dirty.compareAndSet(true, false)) {
+            saveSnapshot();
+        }
+    }
+
+    private synchronized void saveSnapshot() {
+        if (StringUtils.isEmpty(SNAPSHOT_PATH)) {
+            return;
+        }
+        File file = new File(SNAPSHOT_PATH);
+        File tmp = new File(SNAPSHOT_PATH + ".tmp");
+        try {
+            if (file.getParentFile() != null) {
+                file.getParentFile().mkdirs();
+            }
+            Files.write(tmp.toPath(), JSON.toJSONString(new ArrayList<>(metadata.asMap().values())).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty.set(true);
+            logger.error("save token metadata snapshot error", e);
+        }
+    }
+}
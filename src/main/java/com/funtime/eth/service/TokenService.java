@@ -3,7 +3,10 @@ package com.funtime.eth.service;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.funtime.eth.model.EthHDWallet;
+import com.funtime.eth.model.TokenMetadata;
+import com.funtime.eth.model.SignedTransaction;
 import com.funtime.eth.model.TokenTransaction;
+import com.funtime.eth.model.TransactionFees;
 import com.funtime.eth.utils.Constants;
 import org.bitcoinj.crypto.*;
 import org.bitcoinj.wallet.DeterministicSeed;
@@ -15,7 +18,6 @@ import org.web3j.abi.FunctionReturnDecoder;
 import org.web3j.abi.TypeReference;
 import org.web3j.abi.datatypes.*;
 import org.web3j.abi.datatypes.generated.Uint256;
-import org.web3j.abi.datatypes.generated.Uint8;
 import org.web3j.crypto.*;
 import org.web3j.protocol.ObjectMapperFactory;
 import org.web3j.protocol.Web3j;
@@ -25,8 +27,6 @@ import org.web3j.protocol.core.DefaultBlockParameterNumber;
 import org.web3j.protocol.core.Request;
 import org.web3j.protocol.core.methods.request.Transaction;
 import org.web3j.protocol.core.methods.response.*;
-import org.web3j.tx.ChainId;
-import org.web3j.utils.Convert;
 import org.web3j.utils.Numeric;
 
 import java.io.IOException;
@@ -44,12 +44,35 @@ public class TokenService {
     private static final Logger logger = LoggerFactory.getLogger(TokenService.class);
 
     private final Web3j web3j;
+
+    private final NonceManager nonceManager;
+
+    private final TokenMetadataCache tokenMetadataCache;
+
+    private final BalanceCache balanceCache;
+
+    private final BlockCache blockCache;
+
+    private final ConfirmationTracker confirmationTracker;
+    private final TransactionSigner transactionSigner;
+    private final GasLimitEstimator gasLimitEstimator;
+    private final PendingTransactionMonitor pendingTransactionMonitor;
 //    private final Admin admin;
 
     private static SecureRandom secureRandom = new SecureRandom();
 
-    public TokenService(Web3j web3j) {
+    public TokenService(Web3j web3j, NonceManager nonceManager, TokenMetadataCache tokenMetadataCache, BalanceCache balanceCache,
+                        BlockCache blockCache, ConfirmationTracker confirmationTracker, TransactionSigner transactionSigner,
+                        GasLimitEstimator gasLimitEstimator, PendingTransactionMonitor pendingTransactionMonitor) {
         this.web3j = web3j;
+        this.nonceManager = nonceManager;
+        this.tokenMetadataCache = tokenMetadataCache;
+        this.balanceCache = balanceCache;
+        this.blockCache = blockCache;
+        this.confirmationTracker = confirmationTracker;
+        this.transactionSigner = transactionSigner;
+        this.gasLimitEstimator = gasLimitEstimator;
+        this.pendingTransactionMonitor = pendingTransactionMonitor;
 //        this.admin = admin;
     }
 
@@ -74,17 +97,27 @@ public class TokenService {
         String data = FunctionEncoder.encode(function);
         Transaction transaction = Transaction.createEthCallTransaction(fromAddress, contractAddress, data);
 
-        EthCall ethCall;
-        BigInteger balanceValue = BigInteger.ZERO;
+        BigInteger balanceValue;
         try {
-            ethCall = web3j.ethCall(transaction, DefaultBlockParameterName.LATEST).send();
-            List<Type> results = FunctionReturnDecoder.decode(ethCall.getValue(), function.getOutputParameters());
-            balanceValue = (BigInteger) results.get(0).getValue();
+            balanceValue = balanceCache.get(fromAddress, contractAddress, () -> {
+                EthCall ethCall = web3j.ethCall(transaction, DefaultBlockParameterName.LATEST).send();
+                if (ethCall.hasError()) {
+                    throw new IOException(ethCall.getError().getMessage());
+                }
+                List<Type> results = FunctionReturnDecoder.decode(ethCall.getValue(), function.getOutputParameters());
+                if (results.isEmpty()) {
+                    throw new IOException("empty balanceOf result from " + contractAddress);
+                }
+                return (BigInteger) results.get(0).getValue();
+            });
         } catch (IOException e) {
-            e.printStackTrace();
+            // 查询失败不能返回0,调用方会误以为余额为空
+            logger.error("get balance of " + fromAddress + " on " + contractAddress + " error: " + e.getMessage());
+            return null;
         }
 
-        String decimal = toDecimal(18, balanceValue);
+        TokenMetadata tokenMetadata = tokenMetadataCache.get(contractAddress);
+        String decimal = toDecimal(tokenMetadata == null ? 18 : tokenMetadata.getDecimals(), balanceValue);
         logger.info(" balance " + balanceValue);
         return decimal;
     }
@@ -106,30 +139,8 @@ public class TokenService {
      * @return
      */
     public String getTokenName(String contractAddress) {
-        String methodName = "name";
-        String name = null;
-        String fromAddr = Constants.EMPTY_ADDRESS;
-        List<Type> inputParameters = new ArrayList<>();
-        List<TypeReference<?>> outputParameters = new ArrayList<>();
-
-        TypeReference<Utf8String> typeReference = new TypeReference<Utf8String>() {
-        };
-        outputParameters.add(typeReference);
-
-        Function function = new Function(methodName, inputParameters, outputParameters);
-
-        String data = FunctionEncoder.encode(function);
-        Transaction transaction = Transaction.createEthCallTransaction(fromAddr, contractAddress, data);
-
-        EthCall ethCall;
-        try {
-            ethCall = web3j.ethCall(transaction, DefaultBlockParameterName.LATEST).sendAsync().get();
-            List<Type> results = FunctionReturnDecoder.decode(ethCall.getValue(), function.getOutputParameters());
-            name = results.get(0).getValue().toString();
-        } catch (InterruptedException | ExecutionException e) {
-            e.printStackTrace();
-        }
-        return name;
+        TokenMetadata tokenMetadata = tokenMetadataCache.get(contractAddress);
+        return tokenMetadata == null ? null : tokenMetadata.getName();
     }
 
     /**
@@ -139,30 +150,8 @@ public class TokenService {
      * @return
      */
     public String getTokenSymbol(String contractAddress) {
-        String methodName = "symbol";
-        String symbol = null;
-        String fromAddr = Constants.EMPTY_ADDRESS;
-        List<Type> inputParameters = new ArrayList<>();
-        List<TypeReference<?>> outputParameters = new ArrayList<>();
-
-        TypeReference<Utf8String> typeReference = new TypeReference<Utf8String>() {
-        };
-        outputParameters.add(typeReference);
-
-        Function function = new Function(methodName, inputParameters, outputParameters);
-
-        String data = FunctionEncoder.encode(function);
-        Transaction transaction = Transaction.createEthCallTransaction(fromAddr, contractAddress, data);
-
-        EthCall ethCall;
-        try {
-            ethCall = web3j.ethCall(transaction, DefaultBlockParameterName.LATEST).sendAsync().get();
-            List<Type> results = FunctionReturnDecoder.decode(ethCall.getValue(), function.getOutputParameters());
-            symbol = results.get(0).getValue().toString();
-        } catch (InterruptedException | ExecutionException e) {
-            e.printStackTrace();
-        }
-        return symbol;
+        TokenMetadata tokenMetadata = tokenMetadataCache.get(contractAddress);
+        return tokenMetadata == null ? null : tokenMetadata.getSymbol();
     }
 
     /**
@@ -172,30 +161,8 @@ public class TokenService {
      * @return
      */
     public int getTokenDecimals(String contractAddress) {
-        String methodName = "decimals";
-        String fromAddr = Constants.EMPTY_ADDRESS;
-        int decimal = 0;
-        List<Type> inputParameters = new ArrayList<>();
-        List<TypeReference<?>> outputParameters = new ArrayList<>();
-
-        TypeReference<Uint8> typeReference = new TypeReference<Uint8>() {
-        };
-        outputParameters.add(typeReference);
-
-        Function function = new Function(methodName, inputParameters, outputParameters);
-
-        String data = FunctionEncoder.encode(function);
-        Transaction transaction = Transaction.createEthCallTransaction(fromAddr, contractAddress, data);
-
-        EthCall ethCall;
-        try {
-            ethCall = web3j.ethCall(transaction, DefaultBlockParameterName.LATEST).sendAsync().get();
-            List<Type> results = FunctionReturnDecoder.decode(ethCall.getValue(), function.getOutputParameters());
-            decimal = Integer.parseInt(results.get(0).getValue().toString());
-        } catch (InterruptedException | ExecutionException e) {
-            e.printStackTrace();
-        }
-        return decimal;
+        TokenMetadata tokenMetadata = tokenMetadataCache.get(contractAddress);
+        return tokenMetadata == null ? 0 : tokenMetadata.getDecimals();
     }
 
     /**
@@ -205,30 +172,7 @@ public class TokenService {
      * @return
      */
     public BigInteger getTokenTotalSupply(String contractAddress) {
-        String methodName = "totalSupply";
-        String fromAddr = Constants.EMPTY_ADDRESS;
-        BigInteger totalSupply = BigInteger.ZERO;
-        List<Type> inputParameters = new ArrayList<>();
-        List<TypeReference<?>> outputParameters = new ArrayList<>();
-
-        TypeReference<Uint256> typeReference = new TypeReference<Uint256>() {
-        };
-        outputParameters.add(typeReference);
-
-        Function function = new Function(methodName, inputParameters, outputParameters);
-
-        String data = FunctionEncoder.encode(function);
-        Transaction transaction = Transaction.createEthCallTransaction(fromAddr, contractAddress, data);
-
-        EthCall ethCall;
-        try {
-            ethCall = web3j.ethCall(transaction, DefaultBlockParameterName.LATEST).sendAsync().get();
-            List<Type> results = FunctionReturnDecoder.decode(ethCall.getValue(), function.getOutputParameters());
-            totalSupply = (BigInteger) results.get(0).getValue();
-        } catch (InterruptedException | ExecutionException e) {
-            e.printStackTrace();
-        }
-        return totalSupply;
+        return tokenMetadataCache.getTotalSupply(contractAddress);
     }
 
     /**
@@ -286,21 +230,79 @@ public class TokenService {
      * @param transaction
      */
     public EthSendTransaction tokenTransaction(TokenTransaction transaction) {
-        transaction.setDecimals(18);
+        if (!applyDecimals(transaction)) {
+            return null;
+        }
         BigInteger nonce;
-        EthGetTransactionCount ethGetTransactionCount = null;
         try {
-            ethGetTransactionCount = web3j.ethGetTransactionCount(transaction.getFromAddress(), DefaultBlockParameterName.PENDING).send();
+            nonce = nonceManager.reserve(transaction.getFromAddress());
         } catch (IOException e) {
             e.printStackTrace();
+            return null;
         }
-        if (ethGetTransactionCount == null) ;
-        nonce = ethGetTransactionCount.getTransactionCount();
-        System.out.println("nonce " + nonce);
-        BigInteger gasPrice = Convert.toWei(transaction.getWei(), Convert.Unit.GWEI).toBigInteger();
-        BigInteger gasLimit = BigInteger.valueOf(60000);
+        logger.info("nonce " + nonce);
         BigInteger value = BigInteger.ZERO;
-        //token转账参数
+        String data;
+        BigInteger gasLimit;
+        SignedTransaction signed;
+        try {
+            TransactionFees fees = transactionSigner.fees(transaction.getWei());
+            data = encodeTransferData(transaction);
+            gasLimit = gasLimitEstimator.estimate(transaction.getFromAddress(), transaction.getContractAddress(), value, data,
+                    Constants.GAS_LIMIT_TOKEN_TX);
+            signed = transactionSigner.sign(nonce, fees, gasLimit, transaction.getContractAddress(), value, data,
+                    transaction.getPrivateKey());
+        } catch (RuntimeException e) {
+            // 交易未发出,nonce可以直接回收
+            nonceManager.release(transaction.getFromAddress(), nonce);
+            logger.error("build token transaction failed", e);
+            return null;
+        }
+
+        EthSendTransaction ethSendTransaction;
+        try {
+            ethSendTransaction = web3j.ethSendRawTransaction(signed.getHexValue()).send();
+        } catch (IOException | RuntimeException e) {
+            nonceManager.onSendFailure(transaction.getFromAddress(), nonce, null);
+            logger.error("send token transaction failed", e);
+            return null;
+        }
+        if (ethSendTransaction.hasError()) {
+            nonceManager.onSendFailure(transaction.getFromAddress(), nonce, ethSendTransaction.getError().getMessage());
+        } else {
+            nonceManager.sent(transaction.getFromAddress(), nonce);
+            confirmationTracker.register(ethSendTransaction.getTransactionHash(), transaction.getFromAddress(),
+                    transaction.getContractAddress(), transaction.getBusinesCode());
+            gasLimitEstimator.track(ethSendTransaction.getTransactionHash(), transaction.getContractAddress(), data, gasLimit);
+            pendingTransactionMonitor.track(transaction.getFromAddress(), transaction.getContractAddress(), signed,
+                    transaction.getPrivateKey(), transaction.getBusinesCode());
+        }
+        return ethSendTransaction;
+    }
+
+    /**
+     * 按合约的精度设置转账的decimals
+     *
+     * @param transaction 代币转账
+     * @return 代币信息无法获取时返回false
+     */
+    public boolean applyDecimals(TokenTransaction transaction) {
+        TokenMetadata tokenMetadata = tokenMetadataCache.get(transaction.getContractAddress());
+        if (tokenMetadata == null) {
+            logger.error("token metadata unavailable, contract " + transaction.getContractAddress());
+            return false;
+        }
+        transaction.setDecimals(tokenMetadata.getDecimals());
+        return true;
+    }
+
+    /**
+     * 代币转账参数
+     *
+     * @param transaction 转账信息,金额按decimals换算
+     * @return transfer(address,uint256) 调用数据
+     */
+    public String encodeTransferData(TokenTransaction transaction) {
         String methodName = "transfer";
         List<Type> inputParameters = new ArrayList<>();
         List<TypeReference<?>> outputParameters = new ArrayList<>();
@@ -312,51 +314,7 @@ public class TokenService {
         };
         outputParameters.add(typeReference);
         Function function = new Function(methodName, inputParameters, outputParameters);
-        String data = FunctionEncoder.encode(function);
-
-        byte chainId = ChainId.NONE;
-        String signedData;
-        EthSendTransaction ethSendTransaction = null;
-        try {
-            signedData = signTransaction(nonce, gasPrice, gasLimit, transaction.getContractAddress(), value, data, chainId, transaction.getPrivateKey());
-            if (signedData != null) {
-                ethSendTransaction = web3j.ethSendRawTransaction(signedData).send();
-                System.out.println(ethSendTransaction.getTransactionHash());
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return ethSendTransaction;
-    }
-
-    /**
-     * 签名
-     */
-    public String signTransaction(BigInteger nonce, BigInteger gasPrice, BigInteger gasLimit, String to,
-                                  BigInteger value, String data, byte chainId, String privateKey) throws IOException {
-        byte[] signedMessage;
-        RawTransaction rawTransaction = RawTransaction.createTransaction(
-                nonce,
-                gasPrice,
-                gasLimit,
-                to,
-                value,
-                data);
-
-        if (privateKey.startsWith("0x")) {
-            privateKey = privateKey.substring(2);
-        }
-        ECKeyPair ecKeyPair = ECKeyPair.create(new BigInteger(privateKey, 16));
-        Credentials credentials = Credentials.create(ecKeyPair);
-
-        if (chainId > ChainId.NONE) {
-            signedMessage = TransactionEncoder.signMessage(rawTransaction, chainId, credentials);
-        } else {
-            signedMessage = TransactionEncoder.signMessage(rawTransaction, credentials);
-        }
-
-        String hexValue = Numeric.toHexString(signedMessage);
-        return hexValue;
+        return FunctionEncoder.encode(function);
     }
 
     public EthHDWallet generateMnemonic(String path, String password) {
@@ -470,23 +428,6 @@ public class TokenService {
         return ethHDWallet;
     }
 
-    /**
-     * 获取普通交易的gas上限
-     *
-     * @param transaction 交易对象
-     * @return gas 上限
-     */
-    private BigInteger getTransactionGasLimit(Transaction transaction) {
-        BigInteger gasLimit = BigInteger.ZERO;
-        try {
-            EthEstimateGas ethEstimateGas = web3j.ethEstimateGas(transaction).send();
-            gasLimit = ethEstimateGas.getAmountUsed();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return gasLimit;
-    }
-
     /**
      * 交易状态查询
      *
@@ -526,4 +467,15 @@ public class TokenService {
         EthBlock ethBlock = request.send();
         return ethBlock;
     }
+
+    /**
+     * 获得区块头,不含交易体,优先从缓存读取
+     *
+     * @param blockNumber 根据区块编号
+     * @return
+     * @throws IOException
+     */
+    public EthBlock.Block getBlockHeader(long blockNumber) throws IOException {
+        return blockCache.getByNumber(blockNumber);
+    }
 }
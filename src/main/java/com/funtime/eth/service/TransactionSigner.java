@@ -0,0 +1,228 @@
+package com.funtime.eth.service;
+
+import com.funtime.eth.model.GasPriceSuggestion;
+import com.funtime.eth.model.SignedTransaction;
+import com.funtime.eth.model.TransactionFees;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.web3j.crypto.ECKeyPair;
+import org.web3j.crypto.Hash;
+import org.web3j.crypto.Sign;
+import org.web3j.rlp.RlpEncoder;
+import org.web3j.rlp.RlpList;
+import org.web3j.rlp.RlpString;
+import org.web3j.rlp.RlpType;
+import org.web3j.utils.Bytes;
+import org.web3j.utils.Convert;
+import org.web3j.utils.Numeric;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 交易签名
+ * <p>
+ * {@code config.tx_type}为2且节点支持EIP-1559时签名type 2交易:maxPriorityFeePerGas取{@link GasPriceOracle}的小费建议,
+ * maxFeePerGas为下一区块基础费用乘以{@code config.fee.base_fee_multiplier}再加小费,基础费用连续上涨时仍能打包,
+ * 实际只支付基础费用加小费.否则签名带EIP-155重放保护的legacy交易.链id按环境配置{@code config.chain_id}.
+ * web3j 3.x不支持type 2交易,这里直接按EIP-2718/1559的RLP格式编码.
+ * <p>
+ * 加价重发时两个费用都至少提高{@code config.fee.bump_percent}(节点替换交易要求不低于10%),且不低于当前的快档建议,
+ * 上限为{@code config.fee.max_fee_gwei}.
+ */
+@Service
+public class TransactionSigner {
+
+    public static final int LEGACY = 0;
+
+    public static final int DYNAMIC_FEE = 2;
+
+    @Value("${config.chain_id}")
+    public long CHAIN_ID;
+
+    @Value("${config.tx_type:2}")
+    public int TX_TYPE;
+
+    @Value("${config.fee.base_fee_multiplier:2}")
+    public BigDecimal BASE_FEE_MULTIPLIER;
+
+    @Value("${config.fee.bump_percent:12}")
+    public int BUMP_PERCENT;
+
+    @Value("${config.fee.max_fee_gwei:1000}")
+    public BigDecimal MAX_FEE_GWEI;
+
+    private final GasPriceOracle gasPriceOracle;
+
+    public TransactionSigner(GasPriceOracle gasPriceOracle) {
+        this.gasPriceOracle = gasPriceOracle;
+    }
+
+    /**
+     * 交易费用
+     *
+     * @param gwei 调用方指定的价格,单位gwei,为null时按建议价格.type 2交易中作为maxFeePerGas,小费不超过该值
+     * @return 费用参数
+     */
+    public TransactionFees fees(BigDecimal gwei) {
+        BigInteger baseFee = gasPriceOracle.getBaseFee();
+        BigInteger[] priorityFees = gasPriceOracle.getPriorityFees();
+        TransactionFees fees = new TransactionFees();
+        if (TX_TYPE != DYNAMIC_FEE || baseFee == null || priorityFees == null) {
+            GasPriceSuggestion suggestion = gwei == null ? gasPriceOracle.getSuggestion() : null;
+            fees.setType(LEGACY);
+            fees.setGasPrice(toWei(gwei != null ? gwei : suggestion.getStandard()));
+            return fees;
+        }
+        BigInteger priorityFee = priorityFees[1];
+        BigInteger maxFee = maxFee(baseFee, priorityFee);
+        if (gwei != null) {
+            maxFee = toWei(gwei);
+            priorityFee = priorityFee.min(maxFee);
+        }
+        fees.setType(DYNAMIC_FEE);
+        fees.setMaxFeePerGas(maxFee);
+        fees.setMaxPriorityFeePerGas(priorityFee);
+        return fees;
+    }
+
+    /**
+     * 替换交易的费用
+     *
+     * @param previous 原交易的费用
+     * @return 加价后的费用,已达上限无法再加价时返回null
+     */
+    public TransactionFees bump(TransactionFees previous) {
+        BigInteger cap = toWei(MAX_FEE_GWEI);
+        TransactionFees fees = new TransactionFees();
+        fees.setType(previous.getType());
+        if (previous.getType() == DYNAMIC_FEE) {
+            BigInteger priorityFee = increase(previous.getMaxPriorityFeePerGas());
+            BigInteger maxFee = increase(previous.getMaxFeePerGas());
+            BigInteger baseFee = gasPriceOracle.getBaseFee();
+            BigInteger[] priorityFees = gasPriceOracle.getPriorityFees();
+            if (baseFee != null && priorityFees != null) {
+                priorityFee = priorityFee.max(priorityFees[2]);
+                maxFee = maxFee.max(maxFee(baseFee, priorityFee));
+            }
+            maxFee = maxFee.min(cap);
+            priorityFee = priorityFee.min(maxFee);
+            if (maxFee.compareTo(increase(previous.getMaxFeePerGas())) < 0
+                    || priorityFee.compareTo(increase(previous.getMaxPriorityFeePerGas())) < 0) {
+                return null;
+            }
+            fees.setMaxFeePerGas(maxFee);
+            fees.setMaxPriorityFeePerGas(priorityFee);
+            return fees;
+        }
+        BigInteger gasPrice = increase(previous.getGasPrice()).max(toWei(gasPriceOracle.getSuggestion().getFast())).min(cap);
+        if (gasPrice.compareTo(increase(previous.getGasPrice())) < 0) {
+            return null;
+        }
+        fees.setGasPrice(gasPrice);
+        return fees;
+    }
+
+    /**
+     * 签名
+     *
+     * @param nonce      nonce
+     * @param fees       费用参数
+     * @param gasLimit   gas上限
+     * @param to         接收地址或合约地址
+     * @param value      转账金额,单位wei
+     * @param data       调用数据,普通转账为空
+     * @param privateKey 私钥,可以带0x前缀
+     * @return 签名后的交易及本地计算的交易hash
+     */
+    public SignedTransaction sign(BigInteger nonce, TransactionFees fees, BigInteger gasLimit, String to,
+                                  BigInteger value, String data, String privateKey) {
+        ECKeyPair keyPair = ECKeyPair.create(Numeric.toBigInt(privateKey));
+        byte[] encoded = fees.getType() == DYNAMIC_FEE
+                ? encodeDynamicFee(nonce, fees, gasLimit, to, value, data, keyPair)
+                : encodeLegacy(nonce, fees, gasLimit, to, value, data, keyPair);
+        SignedTransaction signed = new SignedTransaction();
+        signed.setHexValue(Numeric.toHexString(encoded));
+        signed.setTransactionHash(Numeric.toHexString(Hash.sha3(encoded)));
+        signed.setNonce(nonce);
+        signed.setTo(to);
+        signed.setValue(value);
+        signed.setData(data);
+        signed.setGasLimit(gasLimit);
+        signed.setFees(fees);
+        return signed;
+    }
+
+    /**
+     * 0x02 || rlp([chainId, nonce, maxPriorityFeePerGas, maxFeePerGas, gasLimit, to, value, data, accessList, yParity, r, s])
+     */
+    private byte[] encodeDynamicFee(BigInteger nonce, TransactionFees fees, BigInteger gasLimit, String to,
+                                    BigInteger value, String data, ECKeyPair keyPair) {
+        List<RlpType> fields = new ArrayList<>();
+        fields.add(RlpString.create(BigInteger.valueOf(CHAIN_ID)));
+        fields.add(RlpString.create(nonce));
+        fields.add(RlpString.create(fees.getMaxPriorityFeePerGas()));
+        fields.add(RlpString.create(fees.getMaxFeePerGas()));
+        fields.add(RlpString.create(gasLimit));
+        fields.add(RlpString.create(Numeric.hexStringToByteArray(to)));
+        fields.add(RlpString.create(value));
+        fields.add(RlpString.create(Numeric.hexStringToByteArray(data == null ? "" : data)));
+        fields.add(new RlpList());
+        Sign.SignatureData signature = Sign.signMessage(typed(RlpEncoder.encode(new RlpList(fields))), keyPair);
+        fields.add(RlpString.create(BigInteger.valueOf(signature.getV() - 27)));
+        fields.add(RlpString.create(Bytes.trimLeadingZeroes(signature.getR())));
+        fields.add(RlpString.create(Bytes.trimLeadingZeroes(signature.getS())));
+        return typed(RlpEncoder.encode(new RlpList(fields)));
+    }
+
+    /**
+     * rlp([nonce, gasPrice, gasLimit, to, value, data, v, r, s]),链id不为0时按EIP-155签名
+     */
+    private byte[] encodeLegacy(BigInteger nonce, TransactionFees fees, BigInteger gasLimit, String to,
+                                BigInteger value, String data, ECKeyPair keyPair) {
+        List<RlpType> fields = new ArrayList<>();
+        fields.add(RlpString.create(nonce));
+        fields.add(RlpString.create(fees.getGasPrice()));
+        fields.add(RlpString.create(gasLimit));
+        fields.add(RlpString.create(Numeric.hexStringToByteArray(to)));
+        fields.add(RlpString.create(value));
+        fields.add(RlpString.create(Numeric.hexStringToByteArray(data == null ? "" : data)));
+        List<RlpType> signing = new ArrayList<>(fields);
+        if (CHAIN_ID > 0) {
+            signing.add(RlpString.create(BigInteger.valueOf(CHAIN_ID)));
+            signing.add(RlpString.create(BigInteger.ZERO));
+            signing.add(RlpString.create(BigInteger.ZERO));
+        }
+        Sign.SignatureData signature = Sign.signMessage(RlpEncoder.encode(new RlpList(signing)), keyPair);
+        BigInteger v = BigInteger.valueOf(signature.getV());
+        if (CHAIN_ID > 0) {
+            v = v.subtract(BigInteger.valueOf(27)).add(BigInteger.valueOf(CHAIN_ID * 2 + 35));
+        }
+        fields.add(RlpString.create(v));
+        fields.add(RlpString.create(Bytes.trimLeadingZeroes(signature.getR())));
+        fields.add(RlpString.create(Bytes.trimLeadingZeroes(signature.getS())));
+        return RlpEncoder.encode(new RlpList(fields));
+    }
+
+    private static byte[] typed(byte[] payload) {
+        byte[] typed = new byte[payload.length + 1];
+        typed[0] = DYNAMIC_FEE;
+        System.arraycopy(payload, 0, typed, 1, payload.length);
+        return typed;
+    }
+
+    private BigInteger maxFee(BigInteger baseFee, BigInteger priorityFee) {
+        return new BigDecimal(baseFee).multiply(BASE_FEE_MULTIPLIER).toBigInteger().add(priorityFee);
+    }
+
+    private BigInteger increase(BigInteger fee) {
+        BigInteger[] divided = fee.multiply(BigInteger.valueOf(100 + BUMP_PERCENT)).divideAndRemainder(BigInteger.valueOf(100));
+        return divided[1].signum() > 0 ? divided[0].add(BigInteger.ONE) : divided[0];
+    }
+
+    private static BigInteger toWei(BigDecimal gwei) {
+        return Convert.toWei(gwei, Convert.Unit.GWEI).toBigInteger();
+    }
+}
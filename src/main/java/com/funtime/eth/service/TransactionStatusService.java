@@ -0,0 +1,110 @@
+package com.funtime.eth.service;
+
+import com.funtime.eth.model.TransactionReceiptResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.methods.response.EthBlock;
+import org.web3j.protocol.core.methods.response.EthGetTransactionReceipt;
+import org.web3j.protocol.core.methods.response.EthTransaction;
+import org.web3j.protocol.core.methods.response.Transaction;
+import org.web3j.protocol.core.methods.response.TransactionReceipt;
+import org.web3j.utils.Convert;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 交易状态查询
+ * <p>
+ * 交易和收据并行查询,区块头在两者返回后链式获取,全程不阻塞调用线程.已确认的交易结果由{@link ReceiptStore}保存,
+ * 之后的查询不再访问节点.
+ */
+@Service
+public class TransactionStatusService {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransactionStatusService.class);
+
+    private final Web3j web3j;
+    private final BlockCache blockCache;
+    private final ReceiptStore receiptStore;
+
+    public TransactionStatusService(Web3j web3j, BlockCache blockCache, ReceiptStore receiptStore) {
+        this.web3j = web3j;
+        this.blockCache = blockCache;
+        this.receiptStore = receiptStore;
+    }
+
+    /**
+     * 交易状态查询
+     *
+     * @param transactionHash 交易hash
+     * @param defaultGas      计算手续费时使用的gas上限
+     * @return 交易状态,收据不存在时为null
+     */
+    public CompletableFuture<TransactionReceiptResponse> getTransactionStatus(String transactionHash, BigInteger defaultGas) {
+        TransactionReceiptResponse stored = receiptStore.get(transactionHash, defaultGas);
+        if (stored != null) {
+            return CompletableFuture.completedFuture(stored);
+        }
+        CompletableFuture<EthTransaction> transactionFuture = web3j.ethGetTransactionByHash(transactionHash).sendAsync();
+        CompletableFuture<EthGetTransactionReceipt> receiptFuture = web3j.ethGetTransactionReceipt(transactionHash).sendAsync();
+
+        return transactionFuture.thenCombine(receiptFuture, Pair::new)
+                .thenCompose(pair -> {
+                    TransactionReceipt receipt = pair.receipt.getResult();
+                    Transaction transaction = pair.transaction.getResult();
+                    if (receipt == null) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    if (transaction == null) {
+                        return CompletableFuture.completedFuture(new TransactionReceiptResponse());
+                    }
+                    return blockCache.getByNumberAsync(transaction.getBlockNumber().longValue())
+                            .thenApply(block -> {
+                                TransactionReceiptResponse response = toResponse(transaction, receipt, block, defaultGas);
+                                receiptStore.putIfFinal(response, defaultGas);
+                                return response;
+                            });
+                })
+                .exceptionally(e -> {
+                    logger.error("query transaction status error, hash " + transactionHash, e);
+                    return null;
+                });
+    }
+
+    private static TransactionReceiptResponse toResponse(Transaction transaction, TransactionReceipt receipt,
+                                                         EthBlock.Block block, BigInteger defaultGas) {
+        TransactionReceiptResponse response = new TransactionReceiptResponse();
+        BigInteger gasPrice = transaction.getGasPrice();
+        BigInteger gasLimit = transaction.getGas().compareTo(defaultGas) == 1 ? defaultGas : transaction.getGas();
+        BigInteger bgasUsed = gasLimit.multiply(gasPrice);
+        BigDecimal gasUsed = Convert.fromWei(bgasUsed.toString(), Convert.Unit.ETHER);
+        BigDecimal amount = Convert.fromWei(transaction.getValue().toString(), Convert.Unit.ETHER);
+        response.setAmount(String.valueOf(amount));
+        response.setBlockHash(transaction.getBlockHash());
+        response.setBlockNumber(transaction.getBlockNumber().toString());
+        response.setContractAddress(receipt.getContractAddress());
+        response.setFrom(transaction.getFrom());
+        response.setGasPrice(gasPrice.toString());
+        response.setGasUsed(String.valueOf(gasUsed));
+        response.setStatus(receipt.getStatus());
+        response.setTo(transaction.getTo());
+        response.setTransactionHash(transaction.getHash());
+        response.setTransactionIndex(transaction.getTransactionIndex().toString());
+        response.setDateTime(block == null ? null : String.valueOf(block.getTimestamp()));
+        return response;
+    }
+
+    private static class Pair {
+        private final EthTransaction transaction;
+        private final EthGetTransactionReceipt receipt;
+
+        private Pair(EthTransaction transaction, EthGetTransactionReceipt receipt) {
+            this.transaction = transaction;
+            this.receipt = receipt;
+        }
+    }
+}
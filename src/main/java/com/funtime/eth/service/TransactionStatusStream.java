@@ -0,0 +1,293 @@
+package com.funtime.eth.service;
+
+import com.alibaba.fastjson.JSON;
+import com.funtime.eth.event.TransactionStatusEvent;
+import com.funtime.eth.model.TransactionConfirmation;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * 交易状态推送
+ * <p>
+ * 客户端通过SSE订阅一组交易hash或地址,{@link ConfirmationTracker}发布的每次状态变化(pending、mined及确认数增加、
+ * confirmed、failed、dropped)都推送给订阅方,代替轮询交易查询接口.订阅时先推送已知的当前状态,
+ * 尚未跟踪的交易hash会登记到{@link ConfirmationTracker},只推送不回调,同时跟踪中的这类hash不超过
+ * {@code config.status_stream.max_registered}个,超出后不再登记.
+ * 每个订阅方的消息在自己的队列中按顺序发送,由{@code config.status_stream.threads}个线程轮流处理,
+ * 积压超过{@code config.status_stream.max_pending}条的慢客户端会被断开,不影响其他订阅方.
+ */
+@Component
+public class TransactionStatusStream {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransactionStatusStream.class);
+
+    private static final Pattern HASH_PATTERN = Pattern.compile("^0x[0-9a-fA-F]{64}$");
+
+    private static final String EVENT_NAME = "status";
+
+    @Value("${config.status_stream.timeout_ms:1800000}")
+    public long TIMEOUT_MS;
+
+    @Value("${config.status_stream.max_keys:1000}")
+    public int MAX_KEYS;
+
+    @Value("${config.status_stream.heartbeat_seconds:15}")
+    public long HEARTBEAT_SECONDS;
+
+    @Value("${config.status_stream.max_registered:10000}")
+    public int MAX_REGISTERED;
+
+    @Value("${config.status_stream.threads:4}")
+    public int THREADS;
+
+    @Value("${config.status_stream.max_pending:100}")
+    public int MAX_PENDING;
+
+    private final ConfirmationTracker confirmationTracker;
+
+    private final Map<String, Set<Subscriber>> byHash = new ConcurrentHashMap<>();
+
+    private final Map<String, Set<Subscriber>> byAddress = new ConcurrentHashMap<>();
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 由订阅方登记、尚未结束跟踪的交易hash
+     */
+    private final Set<String> registered = ConcurrentHashMap.newKeySet();
+
+    private ScheduledExecutorService scheduler;
+
+    private ExecutorService sender;
+
+    public TransactionStatusStream(ConfirmationTracker confirmationTracker) {
+        this.confirmationTracker = confirmationTracker;
+    }
+
+    @PostConstruct
+    public void init() {
+        // 推送不在确认跟踪线程中执行,同一订阅方的消息按顺序发送
+        sender = Executors.newFixedThreadPool(THREADS,
+                new ThreadFactoryBuilder().setNameFormat("status-stream-%d").setDaemon(true).build());
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("status-stream-heartbeat-%d").setDaemon(true).build());
+        scheduler.scheduleWithFixedDelay(this::heartbeat, HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        sender.shutdownNow();
+        for (Subscriber subscriber : subscribers) {
+            subscriber.emitter.complete();
+        }
+    }
+
+    /**
+     * 订阅交易状态
+     *
+     * @param hashes    交易hash
+     * @param addresses 发送方或接收方地址,代币转账的接收方为合约地址
+     * @return SSE连接,超时后客户端重新订阅即可
+     */
+    public SseEmitter subscribe(List<String> hashes, List<String> addresses) {
+        Set<String> hashKeys = normalize(hashes);
+        Set<String> addressKeys = normalize(addresses);
+        if (hashKeys.size() + addressKeys.size() > MAX_KEYS) {
+            throw new IllegalArgumentException("too many hashes and addresses, max " + MAX_KEYS);
+        }
+        SseEmitter emitter = new SseEmitter(TIMEOUT_MS);
+        Subscriber subscriber = new Subscriber(emitter, hashKeys, addressKeys);
+        emitter.onCompletion(() -> remove(subscriber));
+        emitter.onTimeout(() -> remove(subscriber));
+        emitter.onError(e -> remove(subscriber));
+        subscribers.add(subscriber);
+        for (String hash : hashKeys) {
+            byHash.computeIfAbsent(hash, key -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        }
+        for (String address : addressKeys) {
+            byAddress.computeIfAbsent(address, key -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        }
+        enqueue(subscriber, () -> sendInitial(subscriber));
+        return emitter;
+    }
+
+    @EventListener
+    public void onStatus(TransactionStatusEvent event) {
+        TransactionConfirmation confirmation = event.getConfirmation();
+        if (isFinished(confirmation.getStatus())) {
+            registered.remove(confirmation.getTransactionHash().toLowerCase());
+        }
+        Set<Subscriber> targets = new LinkedHashSet<>();
+        collect(targets, byHash, confirmation.getTransactionHash());
+        collect(targets, byAddress, confirmation.getFromAddress());
+        collect(targets, byAddress, confirmation.getToAddress());
+        if (targets.isEmpty()) {
+            return;
+        }
+        for (Subscriber subscriber : targets) {
+            enqueue(subscriber, () -> send(subscriber, confirmation));
+        }
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    private void sendInitial(Subscriber subscriber) {
+        for (String hash : subscriber.hashes) {
+            if (!HASH_PATTERN.matcher(hash).matches()) {
+                continue;
+            }
+            TransactionConfirmation confirmation = confirmationTracker.get(hash);
+            if (confirmation == null) {
+                if (registered.size() >= MAX_REGISTERED || !registered.add(hash)) {
+                    continue;
+                }
+                // 登记时会发布pending事件,由onStatus推送
+                confirmationTracker.register(hash, null, null, null);
+            } else {
+                send(subscriber, confirmation);
+            }
+        }
+    }
+
+    private void send(Subscriber subscriber, TransactionConfirmation confirmation) {
+        try {
+            subscriber.emitter.send(SseEmitter.event()
+                    .name(EVENT_NAME)
+                    .id(confirmation.getTransactionHash() + ":" + confirmation.getStatus() + ":" + confirmation.getConfirmations())
+                    .data(JSON.toJSONString(confirmation)));
+        } catch (IOException | IllegalStateException e) {
+            logger.debug("status stream client gone: " + e.getMessage());
+            remove(subscriber);
+        }
+    }
+
+    private void heartbeat() {
+        for (Subscriber subscriber : subscribers) {
+            enqueue(subscriber, () -> {
+                try {
+                    subscriber.emitter.send(SseEmitter.event().comment("ping"));
+                } catch (IOException | IllegalStateException e) {
+                    remove(subscriber);
+                }
+            });
+        }
+    }
+
+    private void enqueue(Subscriber subscriber, Runnable task) {
+        if (subscriber.pending.incrementAndGet() > MAX_PENDING) {
+            logger.warn("status stream client too slow, " + subscriber.pending.get() + " messages pending, disconnect");
+            if (remove(subscriber)) {
+                subscriber.emitter.complete();
+            }
+            return;
+        }
+        subscriber.queue.add(task);
+        if (subscriber.scheduled.compareAndSet(false, true)) {
+            sender.execute(() -> drain(subscriber));
+        }
+    }
+
+    private void drain(Subscriber subscriber) {
+        Runnable task;
+        while ((task = subscriber.queue.poll()) != null) {
+            subscriber.pending.decrementAndGet();
+            if (subscribers.contains(subscriber)) {
+                task.run();
+            }
+        }
+        subscriber.scheduled.set(false);
+        // 释放标记前新加入的消息
+        if (!subscriber.queue.isEmpty() && subscriber.scheduled.compareAndSet(false, true)) {
+            sender.execute(() -> drain(subscriber));
+        }
+    }
+
+    private boolean remove(Subscriber subscriber) {
+        if (!subscribers.remove(subscriber)) {
+            return false;
+        }
+        for (String hash : subscriber.hashes) {
+            detach(byHash, hash, subscriber);
+        }
+        for (String address : subscriber.addresses) {
+            detach(byAddress, address, subscriber);
+        }
+        return true;
+    }
+
+    private static boolean isFinished(String status) {
+        return !TransactionConfirmation.PENDING.equals(status) && !TransactionConfirmation.MINED.equals(status);
+    }
+
+    private static void detach(Map<String, Set<Subscriber>> index, String key, Subscriber subscriber) {
+        index.computeIfPresent(key, (k, set) -> {
+            set.remove(subscriber);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    private static void collect(Set<Subscriber> targets, Map<String, Set<Subscriber>> index, String key) {
+        if (key == null) {
+            return;
+        }
+        Set<Subscriber> matched = index.get(key.toLowerCase());
+        if (matched != null) {
+            targets.addAll(matched);
+        }
+    }
+
+    private static Set<String> normalize(List<String> keys) {
+        if (keys == null) {
+            return Collections.emptySet();
+        }
+        Set<String> normalized = new LinkedHashSet<>();
+        for (String key : keys) {
+            if (key != null && !key.trim().isEmpty()) {
+                normalized.add(key.trim().toLowerCase());
+            }
+        }
+        return normalized;
+    }
+
+    private static class Subscriber {
+        private final SseEmitter emitter;
+        private final Set<String> hashes;
+        private final Set<String> addresses;
+        private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private Subscriber(SseEmitter emitter, Set<String> hashes, Set<String> addresses) {
+            this.emitter = emitter;
+            this.hashes = hashes;
+            this.addresses = addresses;
+        }
+    }
+}
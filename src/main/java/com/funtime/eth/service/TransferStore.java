@@ -0,0 +1,376 @@
+package com.funtime.eth.service;
+
+import com.alibaba.fastjson.JSON;
+import com.funtime.eth.model.IndexedTransaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 地址交易记录存储
+ * <p>
+ * 记录以JSON行追加写入{@code config.indexer.path}下的transfers.log,内存中按地址保存记录在文件中的位置,并按区块排序.
+ * 实时索引每个区块写完后更新checkpoint,启动时超过checkpoint的记录属于未完成的区块,从文件中截掉,由实时索引重新写入;
+ * 回填的历史记录都在checkpoint以内,不影响checkpoint,已有的记录(相同hash和logIndex)不会重复写入.
+ * 链重组时写入一行回滚标记,分叉点及之后的记录从索引中移除,重建索引时同样按标记处理.
+ */
+@Component
+public class TransferStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(TransferStore.class);
+
+    private static final String FILE_NAME = "transfers.log";
+
+    private static final String CHECKPOINT_NAME = "transfers.checkpoint";
+
+    private static final String ROLLBACK_MARK = "#rollback ";
+
+    @Value("${config.indexer.path:/root/dev/wallet/indexer/}")
+    public String INDEXER_PATH;
+
+    private final Map<String, Postings> index = new ConcurrentHashMap<>();
+
+    private FileChannel channel;
+
+    private volatile long checkpoint = -1;
+
+    /**
+     * 重建索引时第一条超过checkpoint的记录位置,之后没有其他记录时从这里截断
+     */
+    private long pendingOffset = -1;
+
+    /**
+     * 超过checkpoint的记录之后还有其他记录,不能截断
+     */
+    private boolean pendingInterleaved;
+
+    @PostConstruct
+    public void init() throws IOException {
+        File dir = new File(INDEXER_PATH);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("create indexer dir failed: " + dir);
+        }
+        File checkpointFile = new File(dir, CHECKPOINT_NAME);
+        if (checkpointFile.exists()) {
+            checkpoint = Long.parseLong(new String(Files.readAllBytes(checkpointFile.toPath()), StandardCharsets.UTF_8).trim());
+        }
+        channel = FileChannel.open(new File(dir, FILE_NAME).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long end = rebuildIndex();
+        if (pendingOffset >= 0) {
+            logger.warn("truncate transfer records after checkpoint " + checkpoint + " at " + pendingOffset);
+            end = pendingOffset;
+        }
+        if (end < channel.size()) {
+            logger.warn("truncate incomplete transfer record at " + end);
+            channel.truncate(end);
+        }
+        if (pendingInterleaved) {
+            // 写入回滚标记,下次重建索引时移除这些记录,只保留实时索引重新写入的一份
+            rollback(checkpoint + 1);
+        }
+        logger.info("transfer store loaded " + index.size() + " addresses, checkpoint " + checkpoint);
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * 最后一个完整写入的区块
+     *
+     * @return 区块高度,尚未写入时返回-1
+     */
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * 追加一个区块的记录并更新checkpoint
+     *
+     * @param blockNumber  区块高度
+     * @param transactions 该区块中涉及跟踪地址的记录
+     */
+    public synchronized void append(long blockNumber, List<IndexedTransaction> transactions) throws IOException {
+        long start = channel.size();
+        try {
+            write(transactions);
+            saveCheckpoint(blockNumber);
+        } catch (IOException e) {
+            // 撤销未完成的区块,保证超过checkpoint的记录只会出现在文件末尾
+            removePostings(blockNumber);
+            channel.truncate(start);
+            throw e;
+        }
+    }
+
+    /**
+     * 追加回填的历史记录,不更新checkpoint
+     *
+     * @param transactions checkpoint以内区块的记录
+     */
+    public synchronized void appendHistorical(List<IndexedTransaction> transactions) throws IOException {
+        List<IndexedTransaction> missing = new ArrayList<>(transactions.size());
+        Set<String> keys = new HashSet<>();
+        for (IndexedTransaction transaction : transactions) {
+            if (keys.add(transaction.getHash() + ":" + transaction.getLogIndex()) && !exists(transaction)) {
+                missing.add(transaction);
+            }
+        }
+        write(missing);
+    }
+
+    /**
+     * 同一区块中是否已有相同hash和logIndex的记录,回填重复执行时跳过
+     */
+    private boolean exists(IndexedTransaction transaction) throws IOException {
+        String address = transaction.getFrom() != null ? transaction.getFrom() : transaction.getTo();
+        Postings postings = address == null ? null : index.get(address.toLowerCase());
+        if (postings == null) {
+            return false;
+        }
+        for (long[] location : postings.find(Long.parseLong(transaction.getBlockNumber()))) {
+            IndexedTransaction existing = read(location[0], (int) location[1]);
+            if (Objects.equals(existing.getHash(), transaction.getHash())
+                    && Objects.equals(existing.getLogIndex(), transaction.getLogIndex())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 链重组回滚,移除分叉点及之后区块的记录,checkpoint退回分叉点前一个区块
+     *
+     * @param forkBlock 第一个被替换的区块
+     */
+    public synchronized void rollback(long forkBlock) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((ROLLBACK_MARK + forkBlock + "\n").getBytes(StandardCharsets.UTF_8));
+        long position = channel.size();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        removePostings(forkBlock);
+        saveCheckpoint(forkBlock - 1);
+        logger.warn("transfer store rolled back to " + (forkBlock - 1));
+    }
+
+    private void write(List<IndexedTransaction> transactions) throws IOException {
+        long position = channel.size();
+        for (IndexedTransaction transaction : transactions) {
+            byte[] record = JSON.toJSONString(transaction).getBytes(StandardCharsets.UTF_8);
+            ByteBuffer buffer = ByteBuffer.allocate(record.length + 1);
+            buffer.put(record).put((byte) '\n').flip();
+            long offset = position;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            addPostings(transaction, offset, record.length);
+        }
+    }
+
+    /**
+     * 分页查询地址的交易记录
+     *
+     * @param address 钱包地址
+     * @param page    页码,从1开始
+     * @param offset  每页条数
+     * @param desc    是否按时间倒序
+     * @return 交易记录
+     */
+    public List<IndexedTransaction> query(String address, int page, int offset, boolean desc) throws IOException {
+        Postings postings = index.get(address.toLowerCase());
+        if (postings == null || page < 1 || offset < 1) {
+            return Collections.emptyList();
+        }
+        int from = (page - 1) * offset;
+        List<long[]> locations = new ArrayList<>();
+        synchronized (postings) {
+            for (int i = from; i < postings.size && i < from + offset; i++) {
+                int position = desc ? postings.size - 1 - i : i;
+                locations.add(new long[]{postings.offsets[position], postings.lengths[position]});
+            }
+        }
+        List<IndexedTransaction> transactions = new ArrayList<>(locations.size());
+        for (long[] location : locations) {
+            transactions.add(read(location[0], (int) location[1]));
+        }
+        return transactions;
+    }
+
+    private IndexedTransaction read(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("unexpected end of transfer store");
+            }
+        }
+        return JSON.parseObject(new String(buffer.array(), StandardCharsets.UTF_8), IndexedTransaction.class);
+    }
+
+    private void addPostings(IndexedTransaction transaction, long offset, int length) {
+        long blockNumber = Long.parseLong(transaction.getBlockNumber());
+        add(transaction.getFrom(), blockNumber, offset, length);
+        if (transaction.getTo() != null && !transaction.getTo().equalsIgnoreCase(transaction.getFrom())) {
+            add(transaction.getTo(), blockNumber, offset, length);
+        }
+    }
+
+    private void add(String address, long blockNumber, long offset, int length) {
+        if (address == null) {
+            return;
+        }
+        index.computeIfAbsent(address.toLowerCase(), key -> new Postings()).add(blockNumber, offset, length);
+    }
+
+    private void removePostings(long forkBlock) {
+        for (Postings postings : index.values()) {
+            postings.truncate(forkBlock);
+        }
+    }
+
+    private void saveCheckpoint(long blockNumber) throws IOException {
+        File file = new File(INDEXER_PATH, CHECKPOINT_NAME);
+        File tmp = new File(INDEXER_PATH, CHECKPOINT_NAME + ".tmp");
+        Files.write(tmp.toPath(), String.valueOf(blockNumber).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        checkpoint = blockNumber;
+    }
+
+    /**
+     * 扫描文件重建索引
+     *
+     * @return 最后一条完整记录的结束位置
+     */
+    private long rebuildIndex() throws IOException {
+        channel.position(0);
+        // 不关闭该流,关闭会同时关闭channel
+        InputStream in = new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long offset = 0;
+        long position = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            position++;
+            if (b != '\n') {
+                line.write(b);
+                continue;
+            }
+            String text = line.toString(StandardCharsets.UTF_8.name());
+            if (text.startsWith(ROLLBACK_MARK)) {
+                removePostings(Long.parseLong(text.substring(ROLLBACK_MARK.length()).trim()));
+                line.reset();
+                offset = position;
+                pendingOffset = -1;
+                pendingInterleaved = false;
+                continue;
+            }
+            try {
+                IndexedTransaction transaction = JSON.parseObject(text, IndexedTransaction.class);
+                if (Long.parseLong(transaction.getBlockNumber()) <= checkpoint) {
+                    addPostings(transaction, offset, line.size());
+                    if (pendingOffset >= 0) {
+                        logger.warn("transfer records after checkpoint at " + pendingOffset + " are not at the end");
+                        pendingOffset = -1;
+                        pendingInterleaved = true;
+                    }
+                } else if (pendingOffset < 0) {
+                    pendingOffset = offset;
+                }
+            } catch (Exception e) {
+                logger.warn("skip broken transfer record at " + offset);
+            }
+            line.reset();
+            offset = position;
+        }
+        return offset;
+    }
+
+    /**
+     * 单个地址的记录位置,按区块排序,同一区块内保持写入顺序
+     */
+    private static class Postings {
+        private long[] blockNumbers = new long[4];
+        private long[] offsets = new long[4];
+        private int[] lengths = new int[4];
+        private int size;
+
+        private synchronized void add(long blockNumber, long offset, int length) {
+            if (size == offsets.length) {
+                blockNumbers = Arrays.copyOf(blockNumbers, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            // 实时索引总是追加在末尾,只有回填的历史记录需要移动
+            int position = size;
+            while (position > 0 && blockNumbers[position - 1] > blockNumber) {
+                position--;
+            }
+            if (position < size) {
+                System.arraycopy(blockNumbers, position, blockNumbers, position + 1, size - position);
+                System.arraycopy(offsets, position, offsets, position + 1, size - position);
+                System.arraycopy(lengths, position, lengths, position + 1, size - position);
+            }
+            blockNumbers[position] = blockNumber;
+            offsets[position] = offset;
+            lengths[position] = length;
+            size++;
+        }
+
+        /**
+         * 指定区块的记录位置
+         */
+        private synchronized List<long[]> find(long blockNumber) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (blockNumbers[middle] < blockNumber) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            List<long[]> locations = new ArrayList<>();
+            for (int i = low; i < size && blockNumbers[i] == blockNumber; i++) {
+                locations.add(new long[]{offsets[i], lengths[i]});
+            }
+            return locations;
+        }
+
+        /**
+         * 移除指定区块及之后的记录,这些记录都在末尾
+         */
+        private synchronized void truncate(long blockNumber) {
+            while (size > 0 && blockNumbers[size - 1] >= blockNumber) {
+                size--;
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.funtime.eth.service;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 需要建立交易索引的地址
+ * <p>
+ * 每行一条{@code address,sinceBlock}追加保存在{@code config.indexer.watched_addresses_path},
+ * sinceBlock为实时索引覆盖的第一个区块,此前的历史需要回填.回填完成的地址每行一个追加保存在同名的.backfilled文件中,
+ * 完成前本地索引的记录不完整.
+ */
+@Component
+public class WatchedAddressRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(WatchedAddressRegistry.class);
+
+    @Value("${config.indexer.watched_addresses_path:}")
+    public String WATCHED_ADDRESSES_PATH;
+
+    @Value("${config.indexer.confirmations:12}")
+    public int CONFIRMATIONS;
+
+    private final BlockHeadTracker blockHeadTracker;
+    private final TransferStore transferStore;
+
+    private final Map<String, Long> watched = new ConcurrentHashMap<>();
+
+    private final Set<String> backfilled = ConcurrentHashMap.newKeySet();
+
+    public WatchedAddressRegistry(BlockHeadTracker blockHeadTracker, TransferStore transferStore) {
+        this.blockHeadTracker = blockHeadTracker;
+        this.transferStore = transferStore;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (StringUtils.isEmpty(WATCHED_ADDRESSES_PATH)) {
+            return;
+        }
+        File file = new File(WATCHED_ADDRESSES_PATH);
+        if (!file.exists()) {
+            return;
+        }
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+            String[] parts = line.trim().split(",");
+            if (parts.length == 2) {
+                watched.putIfAbsent(parts[0], Long.parseLong(parts[1]));
+            }
+        }
+        File backfilledFile = backfilledFile();
+        if (backfilledFile.exists()) {
+            for (String line : Files.readAllLines(backfilledFile.toPath(), StandardCharsets.UTF_8)) {
+                if (!line.trim().isEmpty()) {
+                    backfilled.add(line.trim());
+                }
+            }
+        }
+        logger.info("watched addresses loaded, size " + watched.size() + ", backfilled " + backfilled.size());
+    }
+
+    /**
+     * 添加地址,已存在的地址忽略
+     *
+     * @param addresses 钱包地址
+     * @return 新增的地址
+     */
+    public synchronized List<String> add(List<String> addresses) throws IOException {
+        long checkpoint = transferStore.getCheckpoint();
+        // 实时索引尚未开始时,首轮从当前高度减确认数开始
+        long since = checkpoint >= 0 ? checkpoint + 1 : Math.max(0, blockHeadTracker.getHead() - CONFIRMATIONS);
+        List<String> added = new ArrayList<>();
+        StringBuilder lines = new StringBuilder();
+        for (String address : addresses) {
+            String key = address.toLowerCase();
+            if (watched.containsKey(key)) {
+                continue;
+            }
+            added.add(key);
+            lines.append(key).append(',').append(since).append('\n');
+        }
+        if (!added.isEmpty() && StringUtils.isNotEmpty(WATCHED_ADDRESSES_PATH)) {
+            File file = new File(WATCHED_ADDRESSES_PATH);
+            File dir = file.getParentFile();
+            if (dir != null && !dir.exists() && !dir.mkdirs()) {
+                throw new IOException("create dir failed: " + dir);
+            }
+            Files.write(file.toPath(), lines.toString().getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        for (String key : added) {
+            watched.put(key, since);
+        }
+        return added;
+    }
+
+    /**
+     * 标记地址的历史已回填
+     *
+     * @param addresses 钱包地址
+     */
+    public synchronized void markBackfilled(Collection<String> addresses) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        List<String> added = new ArrayList<>();
+        for (String address : addresses) {
+            String key = address.toLowerCase();
+            if (watched.containsKey(key) && !backfilled.contains(key)) {
+                added.add(key);
+                lines.append(key).append('\n');
+            }
+        }
+        if (!added.isEmpty() && StringUtils.isNotEmpty(WATCHED_ADDRESSES_PATH)) {
+            Files.write(backfilledFile().toPath(), lines.toString().getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        backfilled.addAll(added);
+    }
+
+    /**
+     * 地址的历史是否已回填,从第0个区块开始跟踪的地址不需要回填
+     */
+    public boolean isBackfilled(String address) {
+        String key = address.toLowerCase();
+        Long since = watched.get(key);
+        return since != null && (since == 0 || backfilled.contains(key));
+    }
+
+    public Set<String> getAddresses() {
+        return watched.keySet();
+    }
+
+    private File backfilledFile() {
+        return new File(WATCHED_ADDRESSES_PATH + ".backfilled");
+    }
+
+    public boolean contains(String address) {
+        return address != null && watched.containsKey(address.toLowerCase());
+    }
+
+    /**
+     * 实时索引覆盖该地址的第一个区块
+     *
+     * @param address 钱包地址
+     * @return 区块高度,未跟踪时返回null
+     */
+    public Long getSince(String address) {
+        return watched.get(address.toLowerCase());
+    }
+
+    public int size() {
+        return watched.size();
+    }
+}
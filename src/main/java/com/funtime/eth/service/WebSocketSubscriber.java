@@ -0,0 +1,213 @@
+package com.funtime.eth.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.web3j.protocol.ObjectMapperFactory;
+import org.web3j.utils.Numeric;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * WebSocket订阅
+ * <p>
+ * 配置{@code web3j.ws-address}后通过eth_subscribe订阅newHeads推送给{@link BlockHeadTracker}.
+ * 断线后按指数退避重连并重新订阅,断线期间的区块由{@link BlockHeadTracker}立即轮询补齐.未配置时不建立连接,
+ * 新区块仍由轮询获得.充值和交易索引只处理已确认的区块,由新区块事件驱动扫描,不订阅未确认的日志.
+ * 普通请求仍走HTTP节点池.
+ */
+@Component
+public class WebSocketSubscriber extends WebSocketListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(WebSocketSubscriber.class);
+
+    private static final long MAX_RECONNECT_MILLIS = 60_000;
+
+    @Value("${web3j.ws-address:}")
+    public String WS_ADDRESS;
+
+    @Value("${config.ws.reconnect_millis:1000}")
+    public long RECONNECT_MILLIS;
+
+    @Value("${config.ws.ping_seconds:20}")
+    public long PING_SECONDS;
+
+    private final ObjectMapper objectMapper = ObjectMapperFactory.getObjectMapper();
+
+    private final OkHttpClient httpClient;
+    private final BlockHeadTracker blockHeadTracker;
+
+    /**
+     * 已发出、等待返回订阅id的请求id
+     */
+    private volatile long requestId = -1;
+
+    /**
+     * 节点返回的newHeads订阅id
+     */
+    private volatile String subscriptionId;
+
+    private final AtomicLong nextId = new AtomicLong();
+
+    private OkHttpClient wsClient;
+
+    private ScheduledExecutorService scheduler;
+
+    private volatile WebSocket webSocket;
+
+    private volatile boolean stopped;
+
+    private int attempts;
+
+    public WebSocketSubscriber(OkHttpClient httpClient, BlockHeadTracker blockHeadTracker) {
+        this.httpClient = httpClient;
+        this.blockHeadTracker = blockHeadTracker;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!isEnabled()) {
+            logger.info("web3j.ws-address not configured, new heads are polled");
+            return;
+        }
+        // 长连接不设读超时,由ping检测断线
+        wsClient = httpClient.newBuilder()
+                .readTimeout(0, TimeUnit.MILLISECONDS)
+                .pingInterval(PING_SECONDS, TimeUnit.SECONDS)
+                .build();
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("ws-subscriber-%d").setDaemon(true).build());
+        connect();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        stopped = true;
+        if (webSocket != null) {
+            webSocket.close(1000, "shutdown");
+        }
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return StringUtils.isNotEmpty(WS_ADDRESS);
+    }
+
+    private synchronized void connect() {
+        if (stopped) {
+            return;
+        }
+        webSocket = wsClient.newWebSocket(new Request.Builder().url(WS_ADDRESS).build(), this);
+    }
+
+    private synchronized void scheduleReconnect() {
+        if (stopped) {
+            return;
+        }
+        long delay = Math.min(MAX_RECONNECT_MILLIS, RECONNECT_MILLIS << Math.min(attempts, 6));
+        attempts++;
+        logger.info("reconnect websocket in " + delay + "ms");
+        scheduler.schedule(this::connect, delay, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void onOpen(WebSocket webSocket, Response response) {
+        synchronized (this) {
+            attempts = 0;
+        }
+        logger.info("websocket connected to " + response.request().url().host());
+        subscriptionId = null;
+        subscribe(webSocket);
+    }
+
+    @Override
+    public void onMessage(WebSocket webSocket, String text) {
+        try {
+            JsonNode message = objectMapper.readTree(text);
+            if (message.has("id")) {
+                onSubscribed(message);
+            } else if ("eth_subscription".equals(message.path("method").asText())) {
+                JsonNode params = message.path("params");
+                if (params.path("subscription").asText().equals(subscriptionId)) {
+                    blockHeadTracker.notifyHead(Numeric.decodeQuantity(params.path("result").path("number").asText()).longValue());
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("handle websocket message error: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onClosing(WebSocket webSocket, int code, String reason) {
+        webSocket.close(code, null);
+    }
+
+    @Override
+    public void onClosed(WebSocket webSocket, int code, String reason) {
+        logger.warn("websocket closed: " + code + " " + reason);
+        onDisconnected(webSocket);
+    }
+
+    @Override
+    public void onFailure(WebSocket webSocket, Throwable t, Response response) {
+        logger.warn("websocket failure: " + t.getMessage());
+        onDisconnected(webSocket);
+    }
+
+    private void onDisconnected(WebSocket closed) {
+        if (closed != webSocket) {
+            return;
+        }
+        blockHeadTracker.setPushActive(false);
+        scheduleReconnect();
+    }
+
+    private void subscribe(WebSocket target) {
+        long id = nextId.incrementAndGet();
+        ObjectNode request = objectMapper.createObjectNode();
+        request.put("jsonrpc", "2.0");
+        request.put("id", id);
+        request.put("method", "eth_subscribe");
+        ArrayNode params = request.putArray("params");
+        params.add("newHeads");
+        requestId = id;
+        target.send(request.toString());
+    }
+
+    /**
+     * 订阅成功后才跳过轮询,被拒绝时继续轮询
+     */
+    private void onSubscribed(JsonNode message) {
+        if (message.path("id").asLong() != requestId) {
+            return;
+        }
+        requestId = -1;
+        if (message.has("error")) {
+            logger.error("eth_subscribe newHeads rejected: " + message.path("error"));
+            blockHeadTracker.setPushActive(false);
+            return;
+        }
+        subscriptionId = message.path("result").asText();
+        blockHeadTracker.setPushActive(true);
+        logger.info("subscribed newHeads");
+    }
+}
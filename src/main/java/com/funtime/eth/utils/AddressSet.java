@@ -0,0 +1,182 @@
+package com.funtime.eth.utils;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 以太坊地址集合
+ * <p>
+ * 开放寻址哈希表,每个地址拆成3个long直接存放在数组中(前8字节、中8字节、后4字节加占用标记),
+ * 每个地址约占32字节,百万级地址不会产生对象开销.查询时直接解析十六进制字符串,不创建临时对象.
+ */
+public class AddressSet {
+
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private static final long OCCUPIED = 1L << 32;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private long[] slots;
+
+    private int mask;
+
+    private int size;
+
+    public AddressSet() {
+        this(1024);
+    }
+
+    public AddressSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        slots = new long[capacity * 3];
+        mask = capacity - 1;
+    }
+
+    /**
+     * 添加地址
+     *
+     * @param address 带或不带0x前缀的地址,大小写不敏感
+     * @return 地址原本不存在时返回true
+     */
+    public boolean add(String address) {
+        long a = parse(address, 0, 16);
+        long b = parse(address, 16, 16);
+        long c = parse(address, 32, 8) | OCCUPIED;
+        lock.writeLock().lock();
+        try {
+            if (size + 1 > (mask + 1) * LOAD_FACTOR) {
+                resize();
+            }
+            if (!insert(slots, mask, a, b, c)) {
+                return false;
+            }
+            size++;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 是否包含地址
+     *
+     * @param address 带或不带0x前缀的地址,大小写不敏感,null或格式错误返回false
+     */
+    public boolean contains(String address) {
+        if (address == null || address.length() - offset(address) != 40) {
+            return false;
+        }
+        long a;
+        long b;
+        long c;
+        try {
+            a = parse(address, 0, 16);
+            b = parse(address, 16, 16);
+            c = parse(address, 32, 8) | OCCUPIED;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        lock.readLock().lock();
+        try {
+            int slot = hash(a, b) & mask;
+            while (true) {
+                int i = slot * 3;
+                if (slots[i + 2] == 0) {
+                    return false;
+                }
+                if (slots[i] == a && slots[i + 1] == b && slots[i + 2] == c) {
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 地址格式是否正确
+     *
+     * @param address 带或不带0x前缀的地址
+     */
+    public static boolean isValid(String address) {
+        if (address == null || address.length() - offset(address) != 40) {
+            return false;
+        }
+        for (int i = offset(address); i < address.length(); i++) {
+            if (Character.digit(address.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void resize() {
+        int capacity = (mask + 1) << 1;
+        long[] resized = new long[capacity * 3];
+        for (int i = 0; i < slots.length; i += 3) {
+            if (slots[i + 2] != 0) {
+                insert(resized, capacity - 1, slots[i], slots[i + 1], slots[i + 2]);
+            }
+        }
+        slots = resized;
+        mask = capacity - 1;
+    }
+
+    private static boolean insert(long[] table, int mask, long a, long b, long c) {
+        int slot = hash(a, b) & mask;
+        while (true) {
+            int i = slot * 3;
+            if (table[i + 2] == 0) {
+                table[i] = a;
+                table[i + 1] = b;
+                table[i + 2] = c;
+                return true;
+            }
+            if (table[i] == a && table[i + 1] == b && table[i + 2] == c) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static int hash(long a, long b) {
+        // murmur3 fmix64
+        long h = a ^ (b * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private static int offset(String address) {
+        return address.startsWith("0x") || address.startsWith("0X") ? 2 : 0;
+    }
+
+    private static long parse(String address, int from, int length) {
+        int start = offset(address) + from;
+        if (address.length() < start + length) {
+            throw new IllegalArgumentException("invalid address: " + address);
+        }
+        long value = 0;
+        for (int i = start; i < start + length; i++) {
+            int digit = Character.digit(address.charAt(i), 16);
+            if (digit < 0) {
+                throw new IllegalArgumentException("invalid address: " + address);
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+}
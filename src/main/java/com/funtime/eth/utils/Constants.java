@@ -18,6 +18,9 @@ public class Constants {
 
     public static final String EMPTY_ADDRESS = "0x0000000000000000000000000000000000000000";
 
+    // keccak256("Transfer(address,address,uint256)")
+    public static final String TRANSFER_EVENT_TOPIC = "0xddf252ad1be2c89b69c2b068fc378daa952ba7f163c4a11628f55a4df523b3ef";
+
     public static final String DEFAULT_PASSWORD = "123456";
 
     public static final String TXT = ".txt";
@@ -27,6 +30,7 @@ public class Constants {
 
     // http://ethereum.stackexchange.com/questions/1832/cant-send-transaction-exceeds-block-gas-limit-or-intrinsic-gas-too-low
     public static final BigInteger GAS_LIMIT_ETHER_TX = BigInteger.valueOf(21_000);
+    public static final BigInteger GAS_LIMIT_TOKEN_TX = BigInteger.valueOf(60_000);
     public static final BigInteger GAS_LIMIT_GREETER_TX = BigInteger.valueOf(500_000L);
 
     public static final int CONFIRMATION_ATTEMPTS = 40;
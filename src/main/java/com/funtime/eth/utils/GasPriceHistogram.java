@@ -0,0 +1,124 @@
+package com.funtime.eth.utils;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 最近若干区块的gas价格分布
+ * <p>
+ * 价格按对数分桶,相邻桶相差5%,从0.1 gwei覆盖到约3万gwei.每个区块保存自己的桶计数,加入新区块时累加到总计数,
+ * 超出窗口的区块从总计数中减去,不需要重新扫描.同一高度再次加入时(链重组)先减去旧的计数.分位数返回所在桶的上界.
+ */
+public class GasPriceHistogram {
+
+    private static final double BASE_WEI = 1e8;
+
+    private static final double RATIO = 1.05;
+
+    private static final int BUCKETS = 256;
+
+    private final int windowBlocks;
+
+    private final TreeMap<Long, int[]> blocks = new TreeMap<>();
+
+    private final long[] totals = new long[BUCKETS];
+
+    private long samples;
+
+    public GasPriceHistogram(int windowBlocks) {
+        this.windowBlocks = windowBlocks;
+    }
+
+    /**
+     * 加入一个区块的交易价格
+     *
+     * @param blockNumber 区块高度
+     * @param gasPrices   交易的gas价格,单位wei,0价格的交易应事先排除
+     */
+    public synchronized void addBlock(long blockNumber, List<BigInteger> gasPrices) {
+        if (blocks.size() >= windowBlocks && !blocks.containsKey(blockNumber) && blockNumber < blocks.firstKey()) {
+            return;
+        }
+        int[] counts = new int[BUCKETS];
+        for (BigInteger gasPrice : gasPrices) {
+            counts[bucket(gasPrice)]++;
+        }
+        int[] replaced = blocks.put(blockNumber, counts);
+        if (replaced != null) {
+            subtract(replaced);
+        }
+        add(counts);
+        while (blocks.size() > windowBlocks) {
+            subtract(blocks.pollFirstEntry().getValue());
+        }
+    }
+
+    /**
+     * 分位数
+     *
+     * @param percentile 0到100
+     * @return 单位wei,没有样本时返回null
+     */
+    public synchronized BigInteger percentile(double percentile) {
+        if (samples == 0) {
+            return null;
+        }
+        long target = Math.max(1, (long) Math.ceil(samples * percentile / 100));
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += totals[i];
+            if (cumulative >= target) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    public synchronized long getSamples() {
+        return samples;
+    }
+
+    public synchronized int getBlocks() {
+        return blocks.size();
+    }
+
+    /**
+     * 窗口内最新的区块
+     *
+     * @return 没有区块时返回-1
+     */
+    public synchronized long getLatestBlock() {
+        Map.Entry<Long, int[]> last = blocks.lastEntry();
+        return last == null ? -1 : last.getKey();
+    }
+
+    private void add(int[] counts) {
+        for (int i = 0; i < BUCKETS; i++) {
+            totals[i] += counts[i];
+            samples += counts[i];
+        }
+    }
+
+    private void subtract(int[] counts) {
+        for (int i = 0; i < BUCKETS; i++) {
+            totals[i] -= counts[i];
+            samples -= counts[i];
+        }
+    }
+
+    static int bucket(BigInteger gasPrice) {
+        double wei = gasPrice.doubleValue();
+        if (wei < BASE_WEI * RATIO) {
+            return 0;
+        }
+        int bucket = (int) (Math.log(wei / BASE_WEI) / Math.log(RATIO));
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    static BigInteger upperBound(int bucket) {
+        return new BigDecimal(BASE_WEI * Math.pow(RATIO, bucket + 1)).toBigInteger();
+    }
+}
@@ -4,13 +4,28 @@ import okhttp3.*;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
+/**
+ * HTTP请求工具,使用{@link com.funtime.eth.config.HttpClientConfig}中共享的客户端
+ */
+@Component
 public class OkHttpUtil {
     private static final Logger logger = LoggerFactory.getLogger(OkHttpUtil.class);
 
+    private final OkHttpClient okHttpClient;
+
+    public OkHttpUtil(OkHttpClient okHttpClient) {
+        this.okHttpClient = okHttpClient;
+    }
+
     /**
      * get
      *
@@ -18,7 +33,7 @@ public class OkHttpUtil {
      * @param queries Request params，url?param=0&param=1
      * @return
      */
-    public static String get(String url, Map<String, String> queries) {
+    public String get(String url, Map<String, String> queries) {
         String responseBody = "";
         StringBuffer sb = new StringBuffer(url);
         if (queries != null && queries.keySet().size() > 0) {
@@ -39,8 +54,7 @@ public class OkHttpUtil {
                 .build();
         Response response = null;
         try {
-            OkHttpClient okHttpClient = new OkHttpClient();
-            response = okHttpClient.newCall(request).execute();
+            response = execute(request);
             int status = response.code();
             if (response.isSuccessful()) {
                 return response.body().string();
@@ -62,7 +76,7 @@ public class OkHttpUtil {
      * @param params post form params
      * @return
      */
-    public static String post(String url, Map<String, String> params) {
+    public String post(String url, Map<String, String> params) {
         String responseBody = "";
         FormBody.Builder builder = new FormBody.Builder();
         //添加参数
@@ -77,8 +91,7 @@ public class OkHttpUtil {
                 .build();
         Response response = null;
         try {
-            OkHttpClient okHttpClient = new OkHttpClient();
-            response = okHttpClient.newCall(request).execute();
+            response = execute(request);
             int status = response.code();
             if (response.isSuccessful()) {
                 return response.body().string();
@@ -100,7 +113,7 @@ public class OkHttpUtil {
      * @param queries Request params，url?param=0&param=1
      * @return
      */
-    public static String getForHeader(String url, Map<String, String> queries) {
+    public String getForHeader(String url, Map<String, String> queries) {
         String responseBody = "";
         StringBuffer sb = new StringBuffer(url);
         if (queries != null && queries.keySet().size() > 0) {
@@ -122,8 +135,7 @@ public class OkHttpUtil {
                 .build();
         Response response = null;
         try {
-            OkHttpClient okHttpClient = new OkHttpClient();
-            response = okHttpClient.newCall(request).execute();
+            response = execute(request);
             int status = response.code();
             if (response.isSuccessful()) {
                 return response.body().string();
@@ -144,7 +156,7 @@ public class OkHttpUtil {
      * param：Request JSON
      * param：Callback
      */
-    public static String postJsonParams(String url, String jsonParams) {
+    public String postJsonParams(String url, String jsonParams) {
         String responseBody = "";
         RequestBody requestBody = RequestBody.create(MediaType.parse("application/json; charset=utf-8"), jsonParams);
         Request request = new Request.Builder()
@@ -153,8 +165,7 @@ public class OkHttpUtil {
                 .build();
         Response response = null;
         try {
-            OkHttpClient okHttpClient = new OkHttpClient();
-            response = okHttpClient.newCall(request).execute();
+            response = execute(request);
             int status = response.code();
             if (response.isSuccessful()) {
                 return response.body().string();
@@ -169,13 +180,43 @@ public class OkHttpUtil {
         return responseBody;
     }
 
+    /**
+     * Post method,send JSON data and report whether the receiver accepted it
+     *
+     * @param url        Request url
+     * @param jsonParams Request JSON
+     * @return true if the response status is 2xx
+     */
+    public boolean postJsonParamsAccepted(String url, String jsonParams) {
+        RequestBody requestBody = RequestBody.create(MediaType.parse("application/json; charset=utf-8"), jsonParams);
+        Request request = new Request.Builder()
+                .url(url)
+                .post(requestBody)
+                .build();
+        Response response = null;
+        try {
+            response = execute(request);
+            if (!response.isSuccessful()) {
+                logger.warn("okhttp3 post rejected >> url = {}, status = {}", url, response.code());
+            }
+            return response.isSuccessful();
+        } catch (Exception e) {
+            logger.error("okhttp3 post error >> ex = {}", ExceptionUtils.getStackTrace(e));
+        } finally {
+            if (response != null) {
+                response.close();
+            }
+        }
+        return false;
+    }
+
     /**
      * Post method,send xml data....
      * param：Request Url
      * param：Request xmlString
      * param：Callback
      */
-    public static String postXmlParams(String url, String xml) {
+    public String postXmlParams(String url, String xml) {
         String responseBody = "";
         RequestBody requestBody = RequestBody.create(MediaType.parse("application/xml; charset=utf-8"), xml);
         Request request = new Request.Builder()
@@ -184,8 +225,7 @@ public class OkHttpUtil {
                 .build();
         Response response = null;
         try {
-            OkHttpClient okHttpClient = new OkHttpClient();
-            response = okHttpClient.newCall(request).execute();
+            response = execute(request);
             int status = response.code();
             if (response.isSuccessful()) {
                 return response.body().string();
@@ -199,4 +239,36 @@ public class OkHttpUtil {
         }
         return responseBody;
     }
-}
\ No newline at end of file
+
+    /**
+     * 通过调度器执行请求,使单host并发限制对同步调用同样生效.等待时被中断会取消请求,
+     * 之后才到达的响应直接关闭,并保留线程的中断标记
+     */
+    private Response execute(Request request) throws IOException {
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        Call call = okHttpClient.newCall(request);
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                future.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                if (!future.complete(response)) {
+                    response.close();
+                }
+            }
+        });
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            call.cancel();
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for " + request.url().host());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.funtime.eth.rpc;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NodeLimiterTest {
+
+    @Test
+    public void halvesConcurrencyOnOverloadAndRecoversSlowly() throws InterruptedException {
+        NodeLimiter limiter = new NodeLimiter(0, 0, 2, 16);
+        assertTrue(limiter.acquire(RpcPriority.READ, 1, 0));
+        limiter.release(true);
+        assertEquals(8, limiter.getLimit(), 0.001);
+
+        assertTrue(limiter.acquire(RpcPriority.READ, 1, 0));
+        limiter.release(false);
+        assertEquals(8.125, limiter.getLimit(), 0.001);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.acquire(RpcPriority.READ, 1, 0));
+            limiter.release(true);
+        }
+        assertEquals(2, limiter.getLimit(), 0.001);
+    }
+
+    @Test
+    public void higherPriorityIsServedFirst() throws InterruptedException {
+        NodeLimiter limiter = new NodeLimiter(0, 0, 1, 1);
+        assertTrue(limiter.acquire(RpcPriority.READ, 1, 0));
+
+        CountDownLatch waiting = new CountDownLatch(1);
+        AtomicBoolean sendAcquired = new AtomicBoolean();
+        Thread sender = new Thread(() -> {
+            try {
+                waiting.countDown();
+                sendAcquired.set(limiter.acquire(RpcPriority.SEND, 1, 5000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        sender.start();
+        waiting.await();
+        TimeUnit.MILLISECONDS.sleep(100);
+
+        // 发送交易的请求在等待,回填请求拿不到配额
+        limiter.release(false);
+        assertFalse(limiter.acquire(RpcPriority.BACKFILL, 1, 50));
+        sender.join(5000);
+        assertTrue(sendAcquired.get());
+    }
+
+    @Test
+    public void limitsRequestRate() throws InterruptedException {
+        NodeLimiter limiter = new NodeLimiter(10, 2, 1, 64);
+        assertTrue(limiter.acquire(RpcPriority.READ, 2, 0));
+        limiter.release(false);
+        assertFalse(limiter.acquire(RpcPriority.READ, 1, 0));
+        assertTrue(limiter.acquire(RpcPriority.READ, 1, 500));
+        limiter.release(false);
+    }
+
+    @Test
+    public void chargesBatchLargerThanBurst() throws InterruptedException {
+        NodeLimiter limiter = new NodeLimiter(10, 2, 1, 64);
+        assertTrue(limiter.acquire(RpcPriority.READ, 5, 0));
+        limiter.release(false);
+        // 5个请求消耗5个令牌,需要约400ms还清欠账并补足1个令牌
+        assertFalse(limiter.acquire(RpcPriority.READ, 1, 200));
+        assertTrue(limiter.acquire(RpcPriority.READ, 1, 1000));
+        limiter.release(false);
+    }
+}
@@ -0,0 +1,82 @@
+package com.funtime.eth.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.web3j.protocol.Web3j;
+import org.web3j.protocol.core.DefaultBlockParameterName;
+import org.web3j.protocol.core.Request;
+import org.web3j.protocol.core.methods.response.EthGetTransactionCount;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class NonceManagerTest {
+
+    private static final String ADDRESS = "0xbe782DDC49A055680f825aEce6D60e276F281659";
+
+    private Web3j web3j;
+
+    private NonceManager nonceManager;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        web3j = Mockito.mock(Web3j.class);
+        Request request = Mockito.mock(Request.class);
+        EthGetTransactionCount count = new EthGetTransactionCount();
+        count.setResult("0xa");
+        when(request.send()).thenReturn(count);
+        when(web3j.ethGetTransactionCount(anyString(), eq(DefaultBlockParameterName.PENDING))).thenReturn(request);
+        nonceManager = new NonceManager(web3j);
+    }
+
+    @Test
+    public void reservesSequentialNoncesWithSingleSync() throws Exception {
+        assertEquals(BigInteger.valueOf(10), nonceManager.reserve(ADDRESS));
+        assertEquals(BigInteger.valueOf(11), nonceManager.reserve(ADDRESS.toLowerCase()));
+        assertEquals(Arrays.asList(BigInteger.valueOf(12), BigInteger.valueOf(13)), nonceManager.reserve(ADDRESS, 2));
+        verify(web3j, times(1)).ethGetTransactionCount(anyString(), eq(DefaultBlockParameterName.PENDING));
+    }
+
+    @Test
+    public void releasedNonceIsRefilledFirst() throws Exception {
+        nonceManager.reserve(ADDRESS, 3);
+        nonceManager.onSendFailure(ADDRESS, BigInteger.valueOf(11), "insufficient funds for gas * price + value");
+        assertEquals(BigInteger.valueOf(11), nonceManager.reserve(ADDRESS));
+        assertEquals(BigInteger.valueOf(13), nonceManager.reserve(ADDRESS));
+    }
+
+    @Test
+    public void nonceTooLowTriggersResync() throws Exception {
+        nonceManager.reserve(ADDRESS);
+        nonceManager.onSendFailure(ADDRESS, BigInteger.valueOf(10), "nonce too low");
+        assertEquals(BigInteger.valueOf(10), nonceManager.reserve(ADDRESS));
+        verify(web3j, times(2)).ethGetTransactionCount(anyString(), eq(DefaultBlockParameterName.PENDING));
+    }
+
+    @Test
+    public void resyncKeepsNoncesReservedInFlight() throws Exception {
+        nonceManager.reserve(ADDRESS, 2);
+        // 10未送达,11仍在发送中,节点pending nonce还是10
+        nonceManager.onSendFailure(ADDRESS, BigInteger.valueOf(10), null);
+        assertEquals(BigInteger.valueOf(12), nonceManager.reserve(ADDRESS));
+        nonceManager.sent(ADDRESS, BigInteger.valueOf(11));
+        nonceManager.sent(ADDRESS, BigInteger.valueOf(12));
+        assertEquals(BigInteger.valueOf(10), nonceManager.reserve(ADDRESS));
+    }
+
+    @Test
+    public void deferredSyncDoesNotRefetchOnEveryReserve() throws Exception {
+        nonceManager.reserve(ADDRESS, 2);
+        nonceManager.onSendFailure(ADDRESS, BigInteger.valueOf(10), null);
+        assertEquals(BigInteger.valueOf(12), nonceManager.reserve(ADDRESS));
+        assertEquals(BigInteger.valueOf(13), nonceManager.reserve(ADDRESS));
+        verify(web3j, times(2)).ethGetTransactionCount(anyString(), eq(DefaultBlockParameterName.PENDING));
+    }
+}
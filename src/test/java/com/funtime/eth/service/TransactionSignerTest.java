@@ -0,0 +1,107 @@
+package com.funtime.eth.service;
+
+import com.funtime.eth.model.SignedTransaction;
+import com.funtime.eth.model.TransactionFees;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.web3j.crypto.Credentials;
+import org.web3j.crypto.Hash;
+import org.web3j.crypto.Keys;
+import org.web3j.crypto.RawTransaction;
+import org.web3j.crypto.Sign;
+import org.web3j.crypto.TransactionEncoder;
+import org.web3j.rlp.RlpDecoder;
+import org.web3j.rlp.RlpEncoder;
+import org.web3j.rlp.RlpList;
+import org.web3j.rlp.RlpString;
+import org.web3j.rlp.RlpType;
+import org.web3j.utils.Numeric;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TransactionSignerTest {
+
+    private static final String PRIVATE_KEY = "0x4c0883a69102937d6231471b5dbb6204fe5129617082792ae468d01a3f362318";
+
+    private static final String TO = "0x3535353535353535353535353535353535353535";
+
+    private TransactionSigner signer;
+
+    @Before
+    public void setUp() {
+        signer = new TransactionSigner(Mockito.mock(GasPriceOracle.class));
+        signer.CHAIN_ID = 1;
+        signer.BUMP_PERCENT = 12;
+        signer.MAX_FEE_GWEI = new BigDecimal(1000);
+        signer.BASE_FEE_MULTIPLIER = new BigDecimal(2);
+    }
+
+    @Test
+    public void legacyMatchesEip155Encoder() {
+        TransactionFees fees = new TransactionFees();
+        fees.setType(TransactionSigner.LEGACY);
+        fees.setGasPrice(BigInteger.valueOf(20_000_000_000L));
+        SignedTransaction signed = signer.sign(BigInteger.valueOf(9), fees, BigInteger.valueOf(21000), TO,
+                BigInteger.TEN.pow(18), null, PRIVATE_KEY);
+
+        RawTransaction raw = RawTransaction.createEtherTransaction(BigInteger.valueOf(9), BigInteger.valueOf(20_000_000_000L),
+                BigInteger.valueOf(21000), TO, BigInteger.TEN.pow(18));
+        byte[] expected = TransactionEncoder.signMessage(raw, (byte) 1, Credentials.create(PRIVATE_KEY));
+        assertEquals(Numeric.toHexString(expected), signed.getHexValue());
+        assertEquals(Numeric.toHexString(Hash.sha3(expected)), signed.getTransactionHash());
+    }
+
+    @Test
+    public void dynamicFeeSignatureRecoversSender() throws Exception {
+        TransactionFees fees = new TransactionFees();
+        fees.setType(TransactionSigner.DYNAMIC_FEE);
+        fees.setMaxFeePerGas(BigInteger.valueOf(30_000_000_000L));
+        fees.setMaxPriorityFeePerGas(BigInteger.valueOf(1_500_000_000L));
+        SignedTransaction signed = signer.sign(BigInteger.ZERO, fees, BigInteger.valueOf(60000), TO, BigInteger.ZERO,
+                "0xa9059cbb", PRIVATE_KEY);
+
+        byte[] encoded = Numeric.hexStringToByteArray(signed.getHexValue());
+        assertEquals(TransactionSigner.DYNAMIC_FEE, encoded[0]);
+        List<RlpType> fields = ((RlpList) RlpDecoder.decode(Arrays.copyOfRange(encoded, 1, encoded.length)).getValues().get(0)).getValues();
+        assertEquals(12, fields.size());
+        assertEquals(BigInteger.ONE, toBigInt(fields.get(0)));
+        assertTrue(((RlpList) fields.get(8)).getValues().isEmpty());
+
+        byte[] unsigned = RlpEncoder.encode(new RlpList(fields.subList(0, 9)));
+        byte[] message = new byte[unsigned.length + 1];
+        message[0] = TransactionSigner.DYNAMIC_FEE;
+        System.arraycopy(unsigned, 0, message, 1, unsigned.length);
+        byte v = (byte) (toBigInt(fields.get(9)).intValue() + 27);
+        Sign.SignatureData signature = new Sign.SignatureData(v,
+                Numeric.toBytesPadded(toBigInt(fields.get(10)), 32),
+                Numeric.toBytesPadded(toBigInt(fields.get(11)), 32));
+        String sender = "0x" + Keys.getAddress(Sign.signedMessageToKey(message, signature));
+        assertEquals(Credentials.create(PRIVATE_KEY).getAddress(), sender);
+    }
+
+    @Test
+    public void bumpRaisesBothFeesAndStopsAtCap() {
+        signer.MAX_FEE_GWEI = new BigDecimal(40);
+        TransactionFees fees = new TransactionFees();
+        fees.setType(TransactionSigner.DYNAMIC_FEE);
+        fees.setMaxFeePerGas(BigInteger.valueOf(30_000_000_000L));
+        fees.setMaxPriorityFeePerGas(BigInteger.valueOf(1_000_000_000L));
+
+        TransactionFees bumped = signer.bump(fees);
+        assertEquals(BigInteger.valueOf(33_600_000_000L), bumped.getMaxFeePerGas());
+        assertEquals(BigInteger.valueOf(1_120_000_000L), bumped.getMaxPriorityFeePerGas());
+        assertNull(signer.bump(signer.bump(bumped)));
+    }
+
+    private static BigInteger toBigInt(RlpType field) {
+        return Numeric.toBigInt(((RlpString) field).getBytes());
+    }
+}
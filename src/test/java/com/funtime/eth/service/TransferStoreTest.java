@@ -0,0 +1,157 @@
+package com.funtime.eth.service;
+
+import com.alibaba.fastjson.JSON;
+import com.funtime.eth.model.IndexedTransaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TransferStoreTest {
+
+    private static final String ADDRESS = "0xbe782DDC49A055680f825aEce6D60e276F281659";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TransferStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        store = open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+    }
+
+    @Test
+    public void truncatesRecordsOfUnfinishedBlock() throws IOException {
+        store.append(1, Collections.singletonList(transaction(1, "0x01")));
+        long size = log().length();
+        // 区块2的记录已写入,更新checkpoint前进程退出
+        reopen(record(transaction(2, "0x02")));
+
+        assertEquals(1, store.getCheckpoint());
+        assertEquals(Collections.singletonList("0x01"), hashes());
+        assertEquals(size, log().length());
+
+        store.append(2, Collections.singletonList(transaction(2, "0x02")));
+        reopen();
+        assertEquals(Arrays.asList("0x01", "0x02"), hashes());
+    }
+
+    @Test
+    public void rollsBackUnfinishedBlockFollowedByHistoricalRecords() throws IOException {
+        store.append(5, Collections.singletonList(transaction(5, "0x05")));
+        // 未完成区块6的记录之后还有回填写入的历史记录,不能直接截断
+        reopen(record(transaction(6, "0x06")) + record(transaction(3, "0x03")));
+
+        assertEquals(5, store.getCheckpoint());
+        assertEquals(Arrays.asList("0x03", "0x05"), hashes());
+
+        store.append(6, Collections.singletonList(transaction(6, "0x06")));
+        reopen();
+        assertEquals(Arrays.asList("0x03", "0x05", "0x06"), hashes());
+    }
+
+    @Test
+    public void reappliesRollbackMarkerOnReload() throws IOException {
+        for (long block = 1; block <= 3; block++) {
+            store.append(block, Collections.singletonList(transaction(block, "0x0" + block)));
+        }
+        store.rollback(2);
+        store.append(2, Collections.singletonList(transaction(2, "0x12")));
+        reopen();
+
+        assertEquals(2, store.getCheckpoint());
+        assertEquals(Arrays.asList("0x01", "0x12"), hashes());
+    }
+
+    @Test
+    public void truncatesPartialRecord() throws IOException {
+        store.append(1, Collections.singletonList(transaction(1, "0x01")));
+        long size = log().length();
+        String partial = record(transaction(1, "0x02"));
+        reopen(partial.substring(0, partial.length() / 2));
+
+        assertEquals(Collections.singletonList("0x01"), hashes());
+        assertEquals(size, log().length());
+
+        store.append(2, Collections.singletonList(transaction(2, "0x02")));
+        reopen();
+        assertEquals(Arrays.asList("0x01", "0x02"), hashes());
+    }
+
+    @Test
+    public void skipsHistoricalRecordsAlreadyStored() throws IOException {
+        store.append(5, Collections.singletonList(transaction(5, "0x05")));
+        List<IndexedTransaction> historical = Arrays.asList(transaction(3, "0x03"), transaction(3, "0x03"));
+        store.appendHistorical(historical);
+        store.appendHistorical(historical);
+        reopen();
+
+        assertEquals(Arrays.asList("0x03", "0x05"), hashes());
+    }
+
+    private TransferStore open() throws IOException {
+        TransferStore transferStore = new TransferStore();
+        transferStore.INDEXER_PATH = folder.getRoot().getPath();
+        transferStore.init();
+        return transferStore;
+    }
+
+    /**
+     * 关闭后在文件末尾追加内容再重新打开,模拟写入中途退出
+     */
+    private void reopen(String appended) throws IOException {
+        store.close();
+        Files.write(log().toPath(), appended.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        store = open();
+    }
+
+    private void reopen() throws IOException {
+        store.close();
+        store = open();
+    }
+
+    private File log() {
+        return new File(folder.getRoot(), "transfers.log");
+    }
+
+    private List<String> hashes() throws IOException {
+        List<String> hashes = new ArrayList<>();
+        for (IndexedTransaction transaction : store.query(ADDRESS, 1, 100, false)) {
+            hashes.add(transaction.getHash());
+        }
+        return hashes;
+    }
+
+    private static String record(IndexedTransaction transaction) {
+        return JSON.toJSONString(transaction) + "\n";
+    }
+
+    private static IndexedTransaction transaction(long blockNumber, String hash) {
+        IndexedTransaction transaction = new IndexedTransaction();
+        transaction.setBlockNumber(String.valueOf(blockNumber));
+        transaction.setHash(hash);
+        transaction.setLogIndex("0");
+        transaction.setFrom(ADDRESS);
+        transaction.setTo("0x0000000000000000000000000000000000000001");
+        return transaction;
+    }
+}
@@ -0,0 +1,58 @@
+package com.funtime.eth.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AddressSetTest {
+
+    @Test
+    public void matchesIgnoringCaseAndPrefix() {
+        AddressSet set = new AddressSet();
+        assertTrue(set.add("0xbe782DDC49A055680f825aEce6D60e276F281659"));
+        assertFalse(set.add("BE782DDC49A055680F825AECE6D60E276F281659"));
+
+        assertTrue(set.contains("0xbe782ddc49a055680f825aece6d60e276f281659"));
+        assertTrue(set.contains("be782ddc49a055680f825aece6d60e276f281659"));
+        assertFalse(set.contains("0xbe782ddc49a055680f825aece6d60e276f281658"));
+        assertFalse(set.contains(null));
+        assertFalse(set.contains("0x1234"));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    public void keepsAllAddressesAcrossResize() {
+        AddressSet set = new AddressSet(16);
+        Random random = new Random(42);
+        List<String> addresses = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            StringBuilder address = new StringBuilder("0x");
+            for (int j = 0; j < 40; j++) {
+                address.append(Character.forDigit(random.nextInt(16), 16));
+            }
+            addresses.add(address.toString());
+            set.add(address.toString());
+        }
+        assertEquals(10000, set.size());
+        for (String address : addresses) {
+            assertTrue(set.contains(address));
+        }
+        assertTrue(set.add(Constants.EMPTY_ADDRESS));
+        assertTrue(set.contains(Constants.EMPTY_ADDRESS));
+    }
+
+    @Test
+    public void validatesFormat() {
+        assertTrue(AddressSet.isValid("0xbe782DDC49A055680f825aEce6D60e276F281659"));
+        assertTrue(AddressSet.isValid("be782ddc49a055680f825aece6d60e276f281659"));
+        assertFalse(AddressSet.isValid("0xbe782DDC49A055680f825aEce6D60e276F28165"));
+        assertFalse(AddressSet.isValid("0xze782DDC49A055680f825aEce6D60e276F281659"));
+        assertFalse(AddressSet.isValid(null));
+    }
+}
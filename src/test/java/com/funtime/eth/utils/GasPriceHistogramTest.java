@@ -0,0 +1,62 @@
+package com.funtime.eth.utils;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GasPriceHistogramTest {
+
+    private static final BigInteger GWEI = BigInteger.valueOf(1_000_000_000L);
+
+    @Test
+    public void percentileIsWithinBucketOfSample() {
+        GasPriceHistogram histogram = new GasPriceHistogram(10);
+        assertNull(histogram.percentile(50));
+
+        List<BigInteger> prices = new ArrayList<>();
+        for (int i = 1; i <= 100; i++) {
+            prices.add(GWEI.multiply(BigInteger.valueOf(i)));
+        }
+        histogram.addBlock(1, prices);
+
+        assertEquals(100, histogram.getSamples());
+        assertBetween(histogram.percentile(50), gwei(50), gwei(50 * 1.05));
+        assertBetween(histogram.percentile(90), gwei(90), gwei(90 * 1.05));
+        assertBetween(histogram.percentile(100), gwei(100), gwei(100 * 1.05));
+    }
+
+    @Test
+    public void evictsOldBlocksAndReplacesReorgedBlock() {
+        GasPriceHistogram histogram = new GasPriceHistogram(2);
+        histogram.addBlock(1, Collections.nCopies(10, gwei(100)));
+        histogram.addBlock(2, Collections.nCopies(10, gwei(10)));
+        histogram.addBlock(3, Collections.nCopies(10, gwei(10)));
+        assertEquals(20, histogram.getSamples());
+        assertTrue(histogram.percentile(100).compareTo(gwei(20)) < 0);
+
+        histogram.addBlock(3, Arrays.asList(gwei(5), gwei(5)));
+        assertEquals(12, histogram.getSamples());
+        assertEquals(3, histogram.getLatestBlock());
+
+        // 比窗口更旧的区块不影响统计
+        histogram.addBlock(1, Collections.nCopies(10, gwei(100)));
+        assertEquals(12, histogram.getSamples());
+    }
+
+    private static BigInteger gwei(double value) {
+        return BigInteger.valueOf((long) (value * 1_000_000_000L));
+    }
+
+    private static void assertBetween(BigInteger actual, BigInteger low, BigInteger high) {
+        assertTrue(actual + " < " + low, actual.compareTo(low) >= 0);
+        assertTrue(actual + " > " + high, actual.compareTo(high) <= 0);
+    }
+}